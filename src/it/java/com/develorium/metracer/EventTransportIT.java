@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.lang.*;
+import java.util.*;
+import java.io.*;
+import java.util.regex.*;
+import org.junit.*;
+import org.junit.Assert;
+
+// Measures how many events of a test program reach metracer within a time window and how long they take to get
+// there (a lag between a timestamp of an event and a moment it is seen in stdout), for each event transport
+public class EventTransportIT extends BaseClass {
+	private static final long MeasurementDuration = 3000;
+	// timestamps carry a 12-hour clock, so only minutes, seconds and milliseconds are compared
+	private static final Pattern TimestampPattern = Pattern.compile("^\\d{4}\\.\\d{2}\\.\\d{2} \\d{2}:(\\d{2}):(\\d{2})\\.(\\d{3}) ");
+
+	private static class MeasurementScenario extends Scenario {
+		private String transport = null;
+		private int parsedLength = 0;
+		private long firstEventTime = 0;
+		public long eventsCount = 0;
+		public long totalLag = 0;
+		public long maxLag = 0;
+
+		public MeasurementScenario(String thePid, String theTransport) {
+			pid = thePid;
+			transport = theTransport;
+		}
+
+		@Override
+		public String[] getLaunchArguments() {
+			return new String[] { "-T", transport, pid, TestProgramMainClassName };
+		}
+
+		@Override
+		public int process() {
+			long now = System.currentTimeMillis();
+			String text = stdout.toString();
+			int end = text.lastIndexOf('\n') + 1;
+
+			if(end <= parsedLength)
+				return firstEventTime != 0 && now - firstEventTime >= MeasurementDuration ? 'q' : 0;
+
+			for(String line : text.substring(parsedLength, end).split("\n")) {
+				Matcher matcher = TimestampPattern.matcher(line);
+
+				if(!matcher.find())
+					continue;
+
+				long eventTime = Integer.parseInt(matcher.group(1)) * 60000L + Integer.parseInt(matcher.group(2)) * 1000L + Integer.parseInt(matcher.group(3));
+				long lag = (getTimeWithinHour(now) - eventTime + 3600000L) % 3600000L;
+				totalLag += lag;
+				maxLag = Math.max(maxLag, lag);
+				++eventsCount;
+			}
+
+			parsedLength = end;
+
+			if(firstEventTime == 0 && eventsCount > 0)
+				firstEventTime = now;
+
+			return 0;
+		}
+
+		public double getMeanLag() {
+			return eventsCount > 0 ? (double)totalLag / eventsCount : 0;
+		}
+
+		private static long getTimeWithinHour(long theTime) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(theTime);
+			return calendar.get(Calendar.MINUTE) * 60000L + calendar.get(Calendar.SECOND) * 1000L + calendar.get(Calendar.MILLISECOND);
+		}
+	}
+
+	@Test(timeout = 15000)
+	public void testTransports() throws Throwable {
+		MeasurementScenario jmxScenario = new MeasurementScenario(pid, "jmx");
+		runMetracerScenario(jmxScenario);
+		MeasurementScenario socketScenario = new MeasurementScenario(pid, "socket");
+		runMetracerScenario(socketScenario);
+
+		for(MeasurementScenario scenario : Arrays.asList(jmxScenario, socketScenario)) {
+			System.out.format("Transport %s: %d events in %d ms, mean lag %.1f ms, max lag %d ms\n",
+				scenario.transport, scenario.eventsCount, MeasurementDuration, scenario.getMeanLag(), scenario.maxLag);
+			Assert.assertTrue(scenario.eventsCount > 0);
+		}
+	}
+}
@@ -285,6 +285,27 @@ public class MainIT extends BaseClass {
 		runMetracerScenario(instrumentWithPatternsFromFileScenario);
 	}
 
+	@Test(timeout = 10000)
+	public void testStackTracesSavingAfterPreviousSession() throws Throwable {
+		runMetracerScenario(new InstrumentationOutputWithStackTracesScenario(pid));
+		String fileName = String.format("%s/target/stacktrace-after-session.txt", System.getProperty("basedir"));
+		runMetracerScenario(new InstrumentationWithStackTracesSavingScenario(pid, fileName));
+		StringBuilder patterns = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+
+		try {
+			String line = null;
+
+			while((line = reader.readLine()) != null)
+				patterns.append(line).append('\n');
+		} finally {
+			reader.close();
+		}
+
+		for(int i = 0; i <= 4; ++i)
+			Assert.assertTrue(patterns.toString(), patterns.indexOf(String.format("com.develorium.metracertest.Main::testStackTrace%d\n", i)) >= 0);
+	}
+
 	public static class ReturnValuePrintingScenario extends Scenario {
 		public ReturnValuePrintingScenario(String thePid) {
 			pid = thePid;
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.nio.*;
+import java.util.zip.*;
+
+// Client side of a dynamic.BlockCompressor, also keeps statistics of received blocks, compressed or not
+public class BlockDecompressor {
+	private final Inflater inflater = new Inflater();
+	private byte[] output = new byte[0];
+	private long receivedBytesCount = 0;
+	private long rawBytesCount = 0;
+	private long firstBlockTime = 0;
+	private long lastBlockTime = 0;
+
+	// theRawLength is a length of a block before a compression or 0 if a block is not compressed. A returned
+	// buffer is reused by a next call
+	public ByteBuffer decompress(byte[] theBlock, int theOffset, int theLength, int theRawLength) {
+		if(theRawLength == 0) {
+			countBlock(theLength, theLength);
+			return ByteBuffer.wrap(theBlock, theOffset, theLength);
+		}
+
+		if(output.length < theRawLength)
+			output = new byte[theRawLength];
+
+		inflater.reset();
+		inflater.setInput(theBlock, theOffset, theLength);
+
+		try {
+			int length = 0;
+
+			while(length < theRawLength && !inflater.finished()) {
+				int inflatedLength = inflater.inflate(output, length, theRawLength - length);
+
+				if(inflatedLength == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+
+				length += inflatedLength;
+			}
+
+			if(length != theRawLength)
+				throw new RuntimeException(String.format("Block of %d bytes inflated into %d bytes instead of %d", theLength, length, theRawLength));
+		} catch(DataFormatException e) {
+			throw new RuntimeException(String.format("Failed to inflate block of %d bytes: %s", theLength, e.getMessage()), e);
+		}
+
+		countBlock(theLength, theRawLength);
+		return ByteBuffer.wrap(output, 0, theRawLength);
+	}
+
+	// to be called for a block which is read without a decompressor
+	public void countBlock(int theLength, int theRawLength) {
+		long now = System.currentTimeMillis();
+
+		if(firstBlockTime == 0)
+			firstBlockTime = now;
+
+		lastBlockTime = now;
+		receivedBytesCount += theLength;
+		rawBytesCount += theRawLength;
+	}
+
+	public long getReceivedBytesCount() {
+		return receivedBytesCount;
+	}
+
+	public long getRawBytesCount() {
+		return rawBytesCount;
+	}
+
+	// volume, a compression ratio and a throughput of received blocks
+	public String formatStatistics() {
+		double seconds = Math.max(lastBlockTime - firstBlockTime, 1) / 1000.0;
+		return String.format("%d KB (%d KB before compression, ratio %.1f), %.1f KB/s received, %.1f KB/s decompressed",
+			receivedBytesCount / 1024, rawBytesCount / 1024, receivedBytesCount > 0 ? (double)rawBytesCount / receivedBytesCount : 1.0,
+			receivedBytesCount / 1024.0 / seconds, rawBytesCount / 1024.0 / seconds);
+	}
+}
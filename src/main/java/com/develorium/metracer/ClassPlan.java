@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.lang.ref.*;
+import java.lang.reflect.*;
+import java.util.*;
+import com.develorium.metracer.asm.*;
+
+// What ObjectDumper needs to know of a class to dump its instances, computed once per class. Fields are made
+// accessible here once, so a dump neither walks a class hierarchy nor toggles accessibility of fields. Once a class
+// is dumped ReaderGenerationThreshold times, fields are read by a reader generated for it
+final class ClassPlan {
+	// how instances are dumped
+	static final int AsString = 0;
+	static final int AsFields = 1;
+	static final int AsArray = 2;
+	static final int AsCollection = 3;
+	static final int AsMap = 4;
+	// only a part of a value which fits a dump is read
+	static final int AsCharSequence = 5;
+	static final int AsBitSet = 6;
+	static final int ReaderGenerationThreshold = 1000;
+	private static final Cache cache = Cache.create();
+	final int kind;
+	// instances are printed by toString, so they aren't checked for repeats
+	final boolean isImmediatePrintable;
+	// "(<compact type name>){" of fields, "(<compact type name>)" of a summary of a collection or a map
+	final String header;
+	// size() of a collection or a map walks all of it
+	final boolean isSizeCostly;
+	final Field[] fields;
+	// "<field name>="
+	final String[] fieldPrefixes;
+	// why a field can't be read, null if it can
+	final String[] fieldFailures;
+	private volatile FieldReader reader = null;
+	// a race may lose some counts, it only delays a generation then
+	private int dumpsCount = 0;
+
+	private ClassPlan(Class<?> theClass) {
+		isImmediatePrintable = theClass == ObjectDumper.CharSequencePrefix.class || ObjectDumper.isImmediatePrintable(theClass);
+
+		if(theClass.isArray())
+			kind = AsArray;
+		else if(Collection.class.isAssignableFrom(theClass))
+			kind = AsCollection;
+		else if(Map.class.isAssignableFrom(theClass))
+			kind = AsMap;
+		else if(isImmediatePrintable && CharSequence.class.isAssignableFrom(theClass))
+			kind = AsCharSequence;
+		else if(isImmediatePrintable && BitSet.class.isAssignableFrom(theClass))
+			kind = AsBitSet;
+		else if(isImmediatePrintable)
+			kind = AsString;
+		else
+			kind = AsFields;
+
+		isSizeCostly = isSizeCostly(theClass);
+
+		if(kind != AsFields) {
+			header = kind == AsCollection || kind == AsMap ? "(" + ObjectDumper.compactTypeName(theClass.getName()) + ")" : null;
+			fields = new Field[0];
+			fieldPrefixes = new String[0];
+			fieldFailures = new String[0];
+			reader = new FieldReader(fields);
+			return;
+		}
+
+		header = "(" + ObjectDumper.compactTypeName(theClass.getName()) + "){";
+		List<Field> allFields = ObjectDumper.getAllDeclaredFields(theClass);
+		fields = allFields.toArray(new Field[allFields.size()]);
+		fieldPrefixes = new String[fields.length];
+		fieldFailures = new String[fields.length];
+
+		for(int i = 0; i < fields.length; ++i) {
+			fieldPrefixes[i] = fields[i].getName() + "=";
+
+			try {
+				fields[i].setAccessible(true);
+			} catch(SecurityException e) {
+				fieldFailures[i] = "N/A (security)";
+			} catch(RuntimeException e) {
+				// InaccessibleObjectException of Java 9+ for fields of modules which aren't open
+				fieldFailures[i] = "N/A (inaccessible)";
+			}
+		}
+
+		reader = new FieldReader(fields);
+	}
+
+	// of fields of a given instance, which is to be dumped
+	FieldReader getReader(Object theInstance) {
+		if(dumpsCount < ReaderGenerationThreshold && ++dumpsCount == ReaderGenerationThreshold)
+			generateReader(theInstance);
+
+		return reader;
+	}
+
+	private synchronized void generateReader(Object theInstance) {
+		if(reader.getClass() != FieldReader.class)
+			return;
+
+		try {
+			FieldReader generated = FieldReaderGenerator.generate(theInstance, fields);
+
+			if(generated != null)
+				reader = generated;
+		} catch(Throwable e) {
+			Runtime.say(String.format("Failed to generate field reader of %s: %s", theInstance.getClass().getName(), e.getMessage()));
+		}
+	}
+
+	private static boolean isSizeCostly(Class<?> theClass) {
+		for(Class<?> c : SizeCostlyClasses) {
+			if(c.isAssignableFrom(theClass))
+				return true;
+		}
+
+		// key sets, values and sub maps
+		return theClass.getName().startsWith("java.util.concurrent.ConcurrentSkipListMap$");
+	}
+
+	private static final Class<?>[] SizeCostlyClasses = { 
+		java.util.concurrent.ConcurrentLinkedQueue.class, 
+		java.util.concurrent.ConcurrentSkipListMap.class, 
+		java.util.concurrent.ConcurrentSkipListSet.class 
+	};
+
+	static ClassPlan get(Class<?> theClass) {
+		return cache.get(theClass);
+	}
+
+	private static abstract class Cache {
+		abstract ClassPlan get(Class<?> theClass);
+
+		static Cache create() {
+			try {
+				return new ClassValueCache();
+			} catch(Throwable e) {
+				return new WeakMapCache();
+			}
+		}
+	}
+
+	// plans are kept by classes themselves, so a plan referring to its class doesn't prevent unloading of it (Java 7+)
+	private static class ClassValueCache extends Cache {
+		private final ClassValue<ClassPlan> plans = new ClassValue<ClassPlan>() {
+			@Override
+			protected ClassPlan computeValue(Class<?> theClass) {
+				return new ClassPlan(theClass);
+			}
+		};
+
+		@Override
+		ClassPlan get(Class<?> theClass) {
+			return plans.get(theClass);
+		}
+	}
+
+	// a plan refers to its class by fields, so it's held softly not to keep a class and its loader forever
+	private static class WeakMapCache extends Cache {
+		private final Map<Class<?>, SoftReference<ClassPlan>> plans = new WeakHashMap<Class<?>, SoftReference<ClassPlan>>();
+
+		@Override
+		synchronized ClassPlan get(Class<?> theClass) {
+			SoftReference<ClassPlan> reference = plans.get(theClass);
+			ClassPlan rv = reference != null ? reference.get() : null;
+
+			if(rv == null) {
+				rv = new ClassPlan(theClass);
+				plans.put(theClass, new SoftReference<ClassPlan>(rv));
+			}
+
+			return rv;
+		}
+	}
+}
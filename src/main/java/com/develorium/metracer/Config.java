@@ -18,6 +18,7 @@ package com.develorium.metracer;
 
 import java.util.*;
 import java.util.regex.*;
+import com.develorium.metracer.probe.*;
 
 public class Config {
 	public static class BadConfig extends RuntimeException {
@@ -30,7 +31,8 @@ public class Config {
 		HELP(false, false), 
 		LIST(true, false),
 		INSTRUMENT(true, true), 
-		DEINSTRUMENT(true, true);
+		DEINSTRUMENT(true, true),
+		READ_JOURNAL(false, false);
 
 		COMMAND(boolean theIsToolsJarNeeded, boolean theIsImpersonationNeeded) {
 			isToolsJarNeeded = theIsToolsJarNeeded;
@@ -50,6 +52,20 @@ public class Config {
 	public String methodMatchingPattern = null;
 	public String patternsFileName = null;
 	public int methodArgumentDumpLimit = 32;
+	public boolean isWithCollectionSummaries = false;
+	// arguments and return values are rendered by a drain thread of target JVM instead of traced threads
+	public boolean isWithDeferredRendering = false;
+	public boolean isWithInvokeDynamic = false;
+	// max number of bytes an instrumentation may add to a single method, 0 - unlimited
+	public int maxCodeGrowth = 0;
+	public TracingMode tracingMode = TracingMode.TRACE;
+	public OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+	// size (in notifications) of a JMX connector buffer, 0 - a default one
+	public int notificationBufferSize = 0;
+	public boolean isWithJournal = false;
+	public boolean isWithCompression = false;
+	public EventTransport eventTransport = EventTransport.JMX;
+	public String journalDirectoryName = null;
 	private LinkedList<String> argumentList = null;
 
 	public Config(String[] theArguments) throws BadConfig {
@@ -71,6 +87,9 @@ public class Config {
 			parsePositionalArguments();
 			checkThereAreNoMoreArguments(command.toString());
 			return;
+		case READ_JOURNAL:
+			checkThereAreNoMoreArguments(command.toString());
+			return;
 		default:
 			throw new BadConfig("Failed to recognize any known command");
 		}
@@ -119,6 +138,16 @@ public class Config {
 		else if(argumentList.remove("-r")) {
 			return COMMAND.DEINSTRUMENT;
 		}
+		else if(argumentList.contains("-J")) {
+			int index = argumentList.indexOf("-J");
+			argumentList.remove(index);
+
+			if(index >= argumentList.size()) 
+				throw new BadConfig("-J requires an accompanying journal directory");
+
+			journalDirectoryName = argumentList.remove(index);
+			return COMMAND.READ_JOURNAL;
+		}
 		else {
 			return COMMAND.INSTRUMENT;
 		}
@@ -183,6 +212,122 @@ public class Config {
 
 				it.remove();
 			}
+
+			if(option.equals("-c")) {
+				isWithCollectionSummaries = true;
+				it.remove();
+			}
+
+			if(option.equals("-d")) {
+				isWithDeferredRendering = true;
+				it.remove();
+			}
+
+			if(option.equals("-b")) {
+				it.remove();
+
+				if(!it.hasNext()) 
+					throw new BadConfig("-b requires an accompanying integer limit (of a method code growth in bytes)");
+
+				String value = it.next();
+
+				try {
+					maxCodeGrowth = Integer.parseInt(value);
+
+					if(maxCodeGrowth < 0)
+						throw new NumberFormatException();
+				} catch(NumberFormatException e) {
+					throw new BadConfig(String.format("Limit of a method code growth must be a integer >=0 but \"%s\" was given", value));
+				}
+
+				it.remove();
+			}
+
+			if(option.equals("-i")) {
+				isWithInvokeDynamic = true;
+				it.remove();
+			}
+
+			if(option.equals("-t")) {
+				it.remove();
+
+				if(!it.hasNext()) 
+					throw new BadConfig("-t requires an accompanying tracing mode");
+
+				String value = it.next();
+
+				try {
+					tracingMode = TracingMode.valueOf(value.toUpperCase());
+				} catch(IllegalArgumentException e) {
+					throw new BadConfig(String.format("Unknown tracing mode \"%s\"", value));
+				}
+
+				it.remove();
+			}
+
+			if(option.equals("-o")) {
+				it.remove();
+
+				if(!it.hasNext()) 
+					throw new BadConfig("-o requires an accompanying overflow policy");
+
+				String value = it.next();
+
+				try {
+					overflowPolicy = OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+				} catch(IllegalArgumentException e) {
+					throw new BadConfig(String.format("Unknown overflow policy \"%s\"", value));
+				}
+
+				it.remove();
+			}
+
+			if(option.equals("-n")) {
+				it.remove();
+
+				if(!it.hasNext()) 
+					throw new BadConfig("-n requires an accompanying integer size (of a notification buffer)");
+
+				String value = it.next();
+
+				try {
+					notificationBufferSize = Integer.parseInt(value);
+
+					if(notificationBufferSize <= 0)
+						throw new NumberFormatException();
+				} catch(NumberFormatException e) {
+					throw new BadConfig(String.format("Size of a notification buffer must be a integer >0 but \"%s\" was given", value));
+				}
+
+				it.remove();
+			}
+
+			if(option.equals("-j")) {
+				isWithJournal = true;
+				it.remove();
+			}
+
+			if(option.equals("-z")) {
+				isWithCompression = true;
+				it.remove();
+			}
+
+			if(option.equals("-T")) {
+				it.remove();
+
+				if(!it.hasNext()) 
+					throw new BadConfig("-T requires an accompanying event transport");
+
+				String value = it.next();
+
+				try {
+					eventTransport = EventTransport.valueOf(value.toUpperCase());
+				} catch(IllegalArgumentException e) {
+					throw new BadConfig(String.format("Unknown event transport \"%s\"", value));
+				}
+
+				it.remove();
+			}
 		}
 	}
 
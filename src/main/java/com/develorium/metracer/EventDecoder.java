@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import com.develorium.metracer.dynamic.*;
+
+// Client side of an EventEncoder, turns records back into TraceEvents and renders them as text
+public class EventDecoder {
+	private static final Charset Utf8 = Charset.forName("UTF-8");
+	private final List<String> classNames = new ArrayList<String>();
+	// class and method names by method ids
+	private final Map<Integer, String[]> methods = new HashMap<Integer, String[]>();
+	private final List<Long> threadIds = new ArrayList<Long>();
+	private final List<String> threadNames = new ArrayList<String>();
+	private final Map<Integer, String[]> stacks = new HashMap<Integer, String[]>();
+	private long previousTime = 0;
+	private final TraceEvent event = new TraceEvent();
+	private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+	private final StringBuilder text = new StringBuilder(256);
+	private byte[] bytes = new byte[256];
+
+	// to be called when an encoder is reset
+	public void reset() {
+		classNames.clear();
+		methods.clear();
+		threadIds.clear();
+		threadNames.clear();
+		stacks.clear();
+		previousTime = 0;
+	}
+
+	// reads a next event along with definitions preceding it, a returned event is reused by a next call
+	public TraceEvent decode(ByteBuffer theInput) {
+		while(true) {
+			int kind = theInput.get();
+
+			if(kind == EventEncoder.ClassDefinition) {
+				int classId = getVarint(theInput);
+				String className = getString(theInput);
+
+				if(classId != classNames.size())
+					throw new RuntimeException(String.format("Unexpected definition of class #%d", classId));
+
+				classNames.add(className);
+			} else if(kind == EventEncoder.MethodDefinition) {
+				int methodId = getVarint(theInput);
+				int classId = getVarint(theInput);
+
+				if(classId < 0 || classId >= classNames.size())
+					throw new RuntimeException(String.format("Method #%d refers to undefined class #%d", methodId, classId));
+
+				methods.put(methodId, new String[] { classNames.get(classId), getString(theInput) });
+			} else if(kind == EventEncoder.ThreadDefinition) {
+				int threadIndex = getVarint(theInput);
+				long threadId = getLongVarint(theInput);
+				String threadName = getString(theInput);
+
+				if(threadIndex != threadIds.size())
+					throw new RuntimeException(String.format("Unexpected definition of thread #%d", threadIndex));
+
+				threadIds.add(threadId);
+				threadNames.add(threadName);
+			} else if(kind == EventEncoder.StackDefinition) {
+				int stackId = getVarint(theInput);
+				int framesCount = getVarint(theInput);
+
+				if(framesCount < 0 || framesCount > theInput.remaining())
+					throw new RuntimeException(String.format("Malformed definition of stack #%d of %d frames", stackId, framesCount));
+
+				String[] frames = new String[framesCount];
+
+				for(int i = 0; i < framesCount; ++i)
+					frames[i] = getString(theInput);
+
+				stacks.put(stackId, frames);
+			} else if(kind == TraceEvent.Note) {
+				event.kind = kind;
+				event.time = previousTime += getSignedVarint(theInput);
+				event.threadId = 0;
+				event.threadName = null;
+				event.methodId = 0;
+				event.className = null;
+				event.methodName = null;
+				event.callDepth = 0;
+				event.details = getString(theInput);
+				event.stackFrames = null;
+				return event;
+			} else if(kind == TraceEvent.Entry || kind == TraceEvent.Exit || kind == TraceEvent.StackFrame || kind == EventEncoder.EntryWithStack) {
+				int threadIndex = getVarint(theInput);
+				int methodId = getVarint(theInput);
+				String[] method = methods.get(methodId);
+
+				if(threadIndex < 0 || threadIndex >= threadIds.size() || method == null)
+					throw new RuntimeException(String.format("Event refers to undefined thread #%d or method #%d", threadIndex, methodId));
+
+				event.kind = kind == EventEncoder.EntryWithStack ? TraceEvent.Entry : kind;
+				event.threadId = threadIds.get(threadIndex);
+				event.threadName = threadNames.get(threadIndex);
+				event.methodId = methodId;
+				event.className = method[0];
+				event.methodName = method[1];
+				event.callDepth = (int)getSignedVarint(theInput);
+				event.time = previousTime += getSignedVarint(theInput);
+				event.details = getString(theInput);
+				event.stackFrames = null;
+
+				if(kind == EventEncoder.EntryWithStack) {
+					int stackId = getVarint(theInput);
+					event.stackFrames = stacks.get(stackId);
+
+					if(event.stackFrames == null)
+						throw new RuntimeException(String.format("Event refers to undefined stack #%d", stackId));
+				}
+
+				return event;
+			} else
+				throw new RuntimeException(String.format("Unknown kind of event record: %d", kind));
+		}
+	}
+
+	// "<timestamp> <text of an event>", an entry is followed by frames of its stack trace, if any
+	public void print(ByteBuffer theInput, PrintStream theOutput) {
+		TraceEvent e = decode(theInput);
+		printEvent(e, theOutput);
+
+		if(e.stackFrames == null)
+			return;
+
+		String details = e.details;
+		e.kind = TraceEvent.StackFrame;
+
+		for(String frame : e.stackFrames) {
+			e.details = frame;
+			printEvent(e, theOutput);
+		}
+
+		e.kind = TraceEvent.Entry;
+		e.details = details;
+	}
+
+	private void printEvent(TraceEvent theEvent, PrintStream theOutput) {
+		text.setLength(0);
+		timestampFormatter.format(theEvent.time, text);
+		text.append(' ');
+		theEvent.render(text);
+		theOutput.println(text);
+	}
+
+	private static int getVarint(ByteBuffer theInput) {
+		return (int)getLongVarint(theInput);
+	}
+
+	private static long getLongVarint(ByteBuffer theInput) {
+		long rv = 0;
+
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = theInput.get();
+			rv |= (long)(b & 0x7F) << shift;
+
+			if((b & 0x80) == 0)
+				return rv;
+		}
+
+		throw new RuntimeException("Malformed varint");
+	}
+
+	private static long getSignedVarint(ByteBuffer theInput) {
+		long value = getLongVarint(theInput);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private String getString(ByteBuffer theInput) {
+		int length = getVarint(theInput);
+
+		if(length < 0 || length > theInput.remaining())
+			throw new RuntimeException(String.format("Malformed string of %d bytes", length));
+
+		if(bytes.length < length)
+			bytes = new byte[Math.max(length, 2 * bytes.length)];
+
+		theInput.get(bytes, 0, length);
+		return new String(bytes, 0, length, Utf8);
+	}
+}
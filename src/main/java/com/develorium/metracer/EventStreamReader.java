@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import com.develorium.metracer.dynamic.*;
+
+// Client side of an EventStream, reads frames of events into direct buffers
+public class EventStreamReader {
+	private final SocketChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocateDirect(EventStream.FrameHeaderSize);
+	private final ByteBuffer payload = ByteBuffer.allocateDirect(EventStream.MaxPayloadSize);
+	private final EventDecoder decoder = new EventDecoder();
+	private final BlockDecompressor decompressor = new BlockDecompressor();
+	// a deflater takes a heap array only
+	private byte[] compressedPayload = new byte[0];
+	private long readCount = 0;
+
+	public EventStreamReader(int thePort, long theToken) throws IOException {
+		channel = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), thePort));
+
+		try {
+			ByteBuffer token = ByteBuffer.allocate(8);
+			token.putLong(theToken);
+			token.flip();
+
+			while(token.hasRemaining())
+				channel.write(token);
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public long getReadCount() {
+		return readCount;
+	}
+
+	public BlockDecompressor getDecompressor() {
+		return decompressor;
+	}
+
+	// prints events of a next frame, blocks till one arrives, returns a number of printed events or -1 once a
+	// stream is closed by an agent
+	public int read(PrintStream theOutput) throws IOException {
+		header.clear();
+
+		if(!readFully(header))
+			return -1;
+
+		int payloadLength = header.getInt(0);
+		int eventsCount = header.getInt(4);
+		int rawLength = header.getInt(8);
+
+		if(payloadLength < 0 || payloadLength > payload.capacity() || eventsCount < 0 || rawLength < 0 || rawLength > payload.capacity())
+			throw new IOException(String.format("Malformed frame of %d events in %d bytes", eventsCount, payloadLength));
+
+		payload.clear();
+		payload.limit(payloadLength);
+
+		if(!readFully(payload))
+			return -1;
+
+		payload.flip();
+
+		try {
+			ByteBuffer events = payload;
+
+			if(rawLength > 0) {
+				if(compressedPayload.length < payloadLength)
+					compressedPayload = new byte[payload.capacity()];
+
+				payload.get(compressedPayload, 0, payloadLength);
+				events = decompressor.decompress(compressedPayload, 0, payloadLength, rawLength);
+			} else
+				decompressor.countBlock(payloadLength, payloadLength);
+
+			for(int i = 0; i < eventsCount; ++i)
+				decoder.print(events, theOutput);
+		} catch(RuntimeException e) {
+			throw new IOException(String.format("Malformed frame of %d events in %d bytes: %s", eventsCount, payloadLength, e.toString()), e);
+		}
+
+		readCount += eventsCount;
+		return eventsCount;
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch(IOException e) {
+		}
+	}
+
+	private boolean readFully(ByteBuffer theBuffer) throws IOException {
+		while(theBuffer.hasRemaining()) {
+			if(channel.read(theBuffer) < 0)
+				return false;
+		}
+
+		return true;
+	}
+}
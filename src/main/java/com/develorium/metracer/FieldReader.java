@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer;
+
+import java.lang.reflect.*;
+
+// Reads fields of a ClassPlan by their indexes. This one uses reflection, ones generated for hot classes (see
+// asm.FieldReaderGenerator) read accessible fields directly and fall back to it for others
+public class FieldReader {
+	protected final Field[] fields;
+
+	public FieldReader(Field[] theFields) {
+		fields = theFields;
+	}
+
+	public Object get(Object theObject, int theIndex) throws IllegalAccessException {
+		return fields[theIndex].get(theObject);
+	}
+}
@@ -21,6 +21,7 @@ import java.io.*;
 import java.net.*;
 import com.sun.tools.attach.*;
 import java.lang.management.*;
+import com.develorium.metracer.dynamic.*;
 
 public class Helper {
 	public static class JvmAutoDiscoverFailure extends Exception {
@@ -32,6 +33,10 @@ public class Helper {
 		}
 	}
 
+	public interface KeyListener {
+		public void onKey(int theSymbol);
+	}
+
 	public static void printUsage(PrintStream theOutput, String theLaunchString) {
 		try {
 			theOutput.println(loadAndProcessTextResource("usage.txt", theLaunchString));
@@ -69,6 +74,11 @@ public class Helper {
 	}
 	
 	public static boolean waitForQuit(InputStream theStdin, PrintStream theStdout) {
+		return waitForQuit(theStdin, theStdout, null);
+	}
+
+	// keys other than quit ones are passed to a listener
+	public static boolean waitForQuit(InputStream theStdin, PrintStream theStdout, KeyListener theKeyListener) {
 		while(true) {
 			try {
 				int symbol = theStdin.read();
@@ -81,11 +91,61 @@ public class Helper {
 					if(System.getenv().get(Constants.METRACER_IS_CBREAK_DISABLED) != null)
 						theStdout.println("");
 				}
+				else if(symbol >= 0 && theKeyListener != null)
+					theKeyListener.onKey(symbol);
 			} catch(IOException e) {
 			}
 		}
 	}
 
+	// durations are printed in microseconds, methods with a greatest total time go first
+	public static void printTimings(PrintStream theOutput, AgentMXBean.Timings theTimings) {
+		List<AgentMXBean.MethodTiming> methods = new ArrayList<AgentMXBean.MethodTiming>(theTimings.methods);
+		Collections.sort(methods, new Comparator<AgentMXBean.MethodTiming>() {
+			@Override
+			public int compare(AgentMXBean.MethodTiming theLeft, AgentMXBean.MethodTiming theRight) {
+				return Double.compare(theRight.getTotal(), theLeft.getTotal());
+			}
+		});
+		String format = "%10s %12s %10s %10s %10s %10s %10s %10s %10s  %s\n";
+		theOutput.format(format, "count", "total, ms", "mean, us", "min", "p50", "p90", "p99", "p99.9", "max", "method");
+
+		for(AgentMXBean.MethodTiming m : methods) {
+			theOutput.format(format, 
+				Long.toString(m.count),
+				String.format("%.3f", m.getTotal() / 1e6),
+				formatMicroseconds(m.mean),
+				formatMicroseconds(m.min),
+				formatMicroseconds(m.p50),
+				formatMicroseconds(m.p90),
+				formatMicroseconds(m.p99),
+				formatMicroseconds(m.p999),
+				formatMicroseconds(m.max),
+				String.format("%s::%s", m.className, m.methodName));
+		}
+	}
+
+	// methods with a greatest call rate (or a number of calls, if rates are unknown yet) go first
+	public static void printCallCounts(PrintStream theOutput, AgentMXBean.CallCounts theCallCounts, int theTopSize) {
+		List<AgentMXBean.MethodCallCount> methods = new ArrayList<AgentMXBean.MethodCallCount>(theCallCounts.methods);
+		Collections.sort(methods, new Comparator<AgentMXBean.MethodCallCount>() {
+			@Override
+			public int compare(AgentMXBean.MethodCallCount theLeft, AgentMXBean.MethodCallCount theRight) {
+				int rv = Double.compare(theRight.rate, theLeft.rate);
+				return rv != 0 ? rv : Long.valueOf(theRight.count).compareTo(theLeft.count);
+			}
+		});
+		String format = "%12s %12s  %s\n";
+		theOutput.format(format, "calls", "calls/s", "method");
+
+		for(AgentMXBean.MethodCallCount m : methods.subList(0, Math.min(theTopSize, methods.size())))
+			theOutput.format(format, Long.toString(m.count), String.format("%.1f", m.rate), String.format("%s::%s", m.className, m.methodName));
+	}
+
+	private static String formatMicroseconds(double theNanoseconds) {
+		return String.format("%.1f", theNanoseconds / 1e3);
+	}
+
 	public static File getSelfJarFile() throws URISyntaxException {
 		return new File(Helper.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath());
 	}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer;
+
+import java.util.*;
+
+// Set of objects compared by identity, an open addressing hash table with linear probing. Unlike a HashSet it
+// never calls hashCode or equals of objects, which may be costly or fail. Meant to be cleared and reused
+final class IdentitySet {
+	private static final int InitialCapacity = 32;
+	// a bigger table isn't kept for reuse
+	private static final int MaxRetainedCapacity = 1024;
+	private Object[] table = new Object[InitialCapacity];
+	private int size = 0;
+
+	// returns false if an object is in a set already
+	boolean add(Object theObject) {
+		int mask = table.length - 1;
+		int i = hash(theObject) & mask;
+
+		while(table[i] != null) {
+			if(table[i] == theObject)
+				return false;
+
+			i = (i + 1) & mask;
+		}
+
+		table[i] = theObject;
+
+		// load factor is kept at most 1/2
+		if(++size * 2 > table.length)
+			grow();
+
+		return true;
+	}
+
+	boolean contains(Object theObject) {
+		int mask = table.length - 1;
+		int i = hash(theObject) & mask;
+
+		while(table[i] != null) {
+			if(table[i] == theObject)
+				return true;
+
+			i = (i + 1) & mask;
+		}
+
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		if(size == 0)
+			return;
+
+		if(table.length > MaxRetainedCapacity)
+			table = new Object[InitialCapacity];
+		else
+			Arrays.fill(table, null);
+
+		size = 0;
+	}
+
+	private void grow() {
+		Object[] oldTable = table;
+		table = new Object[oldTable.length * 2];
+		int mask = table.length - 1;
+
+		for(Object o : oldTable) {
+			if(o == null)
+				continue;
+
+			int i = hash(o) & mask;
+
+			while(table[i] != null)
+				i = (i + 1) & mask;
+
+			table[i] = o;
+		}
+	}
+
+	// identity hash codes are spread poorly in low bits on some JVMs
+	private static int hash(Object theObject) {
+		int h = System.identityHashCode(theObject);
+		return h ^ (h >>> 16);
+	}
+}
@@ -17,6 +17,9 @@
 package com.develorium.metracer;
 
 public class JmxNotificationTypes {
+	// a single event in a message, sent by agents of previous versions
 	public static final String EntryExitNotificationType = "com.develorium.metracer.entryexitnotification";
+	// serialized AgentMXBean.EventBatch in a user data
+	public static final String EventBatchNotificationType = "com.develorium.metracer.eventbatchnotification";
 	public static final String StackTraceNotificationType = "com.develorium.metracer.stacktracenotification";
 }
\ No newline at end of file
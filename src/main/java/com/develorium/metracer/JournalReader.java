@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import com.develorium.metracer.dynamic.*;
+
+// Reads events from a Journal, either a closed one or one which is still being written by a target JVM. Segments
+// are mapped read only, so reading doesn't disturb a writer. Segments deleted by a writer, which keeps only
+// Journal.MaxSegmentsCount latest ones, before they are read are skipped
+public class JournalReader {
+	private final File directory;
+	private final EventDecoder decoder = new EventDecoder();
+	private MappedByteBuffer segment = null;
+	private int segmentIndex = 0;
+	private boolean isClosed = false;
+	private long readCount = 0;
+	private int skippedSegmentsCount = 0;
+
+	public JournalReader(File theDirectory) {
+		directory = theDirectory;
+		segmentIndex = findFirstSegmentIndex(0);
+
+		if(segmentIndex < 0)
+			throw new RuntimeException(String.format("\"%s\" is not a metracer journal", directory.getPath()));
+	}
+
+	public boolean getIsClosed() {
+		return isClosed;
+	}
+
+	public long getReadCount() {
+		return readCount;
+	}
+
+	// segments deleted by a writer after a reader had been created and before they were read
+	public int getSkippedSegmentsCount() {
+		return skippedSegmentsCount;
+	}
+
+	// prints events appended since a previous call, returns a number of them
+	public int read(PrintStream theOutput) {
+		int rv = 0;
+
+		while(!isClosed) {
+			if(segment == null && !openSegment())
+				break;
+
+			int length = segment.getInt(segment.position());
+
+			if(length == 0) {
+				break;
+			}
+			else if(length == Journal.EndOfJournal) {
+				isClosed = true;
+			}
+			else if(length == Journal.EndOfSegment) {
+				segment = null;
+				++segmentIndex;
+			}
+			else if(length < 0 || length > segment.remaining() - 4) {
+				throw new RuntimeException(String.format("Journal segment #%d is corrupted at offset %d", segmentIndex, segment.position()));
+			}
+			else {
+				int start = segment.position() + 4;
+				ByteBuffer record = segment.duplicate();
+				record.position(start);
+				record.limit(start + length);
+				decoder.print(record, theOutput);
+				segment.position(start + length);
+				++readCount;
+				++rv;
+			}
+		}
+
+		return rv;
+	}
+
+	// returns false if a header of a segment is not written yet
+	private boolean openSegment() {
+		File file = new File(directory, Journal.getSegmentFileName(segmentIndex));
+		MappedByteBuffer mapped = null;
+
+		// a writer creates a next segment before it ends a current one, so a missing one has been deleted already
+		if(!file.isFile()) {
+			int index = findFirstSegmentIndex(segmentIndex + 1);
+
+			if(index < 0)
+				throw new RuntimeException(String.format("Journal segment \"%s\" is missing", file.getPath()));
+
+			skippedSegmentsCount += index - segmentIndex;
+			segmentIndex = index;
+			file = new File(directory, Journal.getSegmentFileName(segmentIndex));
+		}
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+			try {
+				mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(String.format("Failed to open journal segment \"%s\": %s", file.getPath(), e.getMessage()), e);
+		}
+
+		mapped.order(ByteOrder.BIG_ENDIAN);
+
+		// a header may be seen partially written, a writer stores a magic last, a version is never zero
+		if(mapped.capacity() < Journal.HeaderSize || mapped.getInt(0) == 0 || mapped.getInt(4) == 0)
+			return false;
+		else if(mapped.getInt(0) != Journal.Magic || mapped.getInt(4) != Journal.Version || mapped.getInt(8) != segmentIndex)
+			throw new RuntimeException(String.format("\"%s\" is not a segment #%d of a metracer journal of version %d", file.getPath(), segmentIndex, Journal.Version));
+
+		mapped.position(Journal.HeaderSize);
+		segment = mapped;
+		decoder.reset();
+		return true;
+	}
+
+	// returns -1 if there are no segments with an index not less than a given one
+	private int findFirstSegmentIndex(int theMinIndex) {
+		String[] names = directory.list();
+		int rv = -1;
+
+		for(int i = 0; names != null && i < names.length; ++i) {
+			int index = Journal.getSegmentIndex(names[i]);
+
+			if(index >= theMinIndex && (rv < 0 || index < rv))
+				rv = index;
+		}
+
+		return rv;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer;
+
+// Tells how many events were lost between batches received by a client. An agent numbers events of each session
+// (i.e. patterns set) consecutively, so a batch which doesn't continue a previous one means missed events. Events
+// sent before a first received batch of a session are not counted, since a client may have joined it later
+public class LostEventsDetector {
+	private long sessionId = -1;
+	private long nextSequenceNumber = -1;
+	private long lostCount = 0;
+
+	// returns a number of events lost right before a given batch
+	public long check(long theSessionId, long theFirstSequenceNumber, int theEventsCount) {
+		long rv = 0;
+
+		if(theSessionId == sessionId && theFirstSequenceNumber > nextSequenceNumber)
+			rv = theFirstSequenceNumber - nextSequenceNumber;
+
+		if(theSessionId != sessionId || theFirstSequenceNumber + theEventsCount > nextSequenceNumber) {
+			sessionId = theSessionId;
+			nextSequenceNumber = theFirstSequenceNumber + theEventsCount;
+		}
+
+		lostCount += rv;
+		return rv;
+	}
+
+	public long getLostCount() {
+		return lostCount;
+	}
+}
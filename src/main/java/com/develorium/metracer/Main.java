@@ -19,18 +19,29 @@ package com.develorium.metracer;
 import java.util.*;
 import java.util.regex.*;
 import java.io.*;
+import java.nio.*;
 import com.sun.tools.attach.*;
 import javax.management.*;
 import javax.management.remote.*;
 import com.develorium.metracer.dynamic.*;
+import com.develorium.metracer.probe.*;
 
 public class Main {
+	private static final int TopCallCountsSize = 20;
+	private static final long CallCountsPrintInterval = 5000;
+	private static final String NotificationFetchMaxProperty = "jmx.remote.x.notification.fetch.max";
+	private static final long JournalPollInterval = 100;
 	Environment env = new SystemEnvironment();
 	Config config = null;
 	MBeanServerConnection connection = null;
 	ObjectName agentMxBeanName = null;
 	AgentMXBean agent = null;
 	PatternsFile outputPatternsFile = null;
+	EventStreamReader eventStreamReader = null;
+	LostEventsDetector lostEventsDetector = new LostEventsDetector();
+	EventDecoder eventBatchDecoder = new EventDecoder();
+	BlockDecompressor eventBatchDecompressor = new BlockDecompressor();
+	TimestampFormatter timestampFormatter = new TimestampFormatter();
 	boolean isFinished = false;
 
 	public static void main(String[] theArguments) {
@@ -108,6 +119,9 @@ public class Main {
 		case DEINSTRUMENT:
 			executeDeinstrument();
 			break;
+		case READ_JOURNAL:
+			executeReadJournal();
+			break;
 		}
 	}
 
@@ -116,6 +130,23 @@ public class Main {
 		loadAgent(true);
 		agent.setIsVerbose(config.isVerbose);
 		agent.setMethodArgumentDumpLimit(config.methodArgumentDumpLimit);
+		agent.setIsWithCollectionSummaries(config.isWithCollectionSummaries);
+		agent.setIsWithDeferredRendering(config.isWithDeferredRendering);
+		agent.setIsWithInvokeDynamic(config.isWithInvokeDynamic);
+		agent.setMaxCodeGrowth(config.maxCodeGrowth);
+		agent.setOverflowPolicy(config.overflowPolicy);
+		agent.setIsWithCompression(config.isWithCompression);
+
+		if(config.isWithJournal)
+			env.getStderr().format("Events are written into journal \"%s\" of target JVM, read it with -J\n", agent.startJournal());
+		else
+			agent.stopJournal(); // might be left by a session quit with retention of instrumentation
+
+		if(config.eventTransport == EventTransport.SOCKET)
+			startReadingEventStream();
+		else
+			agent.closeEventStream();
+
 		String effectiveClassMatchingPattern = config.classMatchingPattern;
 		String effectiveMethodMatchingPattern = config.methodMatchingPattern;
 
@@ -133,19 +164,24 @@ public class Main {
 			}
 		}
 
+		if(effectiveClassMatchingPattern != null && config.isWithStackTrace && config.stackTraceFileName != null) {
+			try {
+				FileOutputStream outputStream = new FileOutputStream(config.stackTraceFileName);
+				outputPatternsFile = new PatternsFile(outputStream);
+			} catch(FileNotFoundException e) {
+				throw new RuntimeException(String.format("Failed to open \"%s\" for writing: %s", config.stackTraceFileName, e.getMessage()), e);
+			}
+		}
+
+		// an agent reports each stack trace once per session, so a listener must be there before a session starts
+		startListeningToAgentEvents();
+		int switchedMethodsCount = agent.setTracingMode(effectiveClassMatchingPattern, effectiveMethodMatchingPattern, config.tracingMode);
+		say(String.format("Tracing mode set to %s, %d already instrumented methods switched", config.tracingMode.toString().toLowerCase(), switchedMethodsCount));
+
 		if(effectiveClassMatchingPattern == null) {
 			say("Not setting any patterns, using ones from a previous session");
 		}
 		else {
-			if(config.isWithStackTrace && config.stackTraceFileName != null) {
-				try {
-					FileOutputStream outputStream = new FileOutputStream(config.stackTraceFileName);
-					outputPatternsFile = new PatternsFile(outputStream);
-				} catch(FileNotFoundException e) {
-					throw new RuntimeException(String.format("Failed to open \"%s\" for writing: %s", config.stackTraceFileName, e.getMessage()), e);
-				}
-			}
-
 			StackTraceMode stackTraceMode = config.isWithStackTrace 
 				? (config.stackTraceFileName != null 
 				   ? StackTraceMode.PRINT_AND_REPORT
@@ -164,9 +200,67 @@ public class Main {
 		}
 
 		say("Press 'q' to quit with removal of instrumentation, 'Q' - to quit with retention of instrumentation in target JVM");
-		startListeningToAgentEvents();
+		Helper.KeyListener keyListener = null;
+		Timer callCountsTimer = null;
+
+		if(config.tracingMode == TracingMode.TIMING) {
+			say("Press 't' to print timings of methods, 'r' - to reset them. Timings are printed on quit as well");
+			keyListener = new Helper.KeyListener() {
+				@Override
+				public void onKey(int theSymbol) {
+					if(theSymbol == 't')
+						printTimings();
+					else if(theSymbol == 'r') {
+						agent.resetTimings();
+						say("Timings reset");
+					}
+				}
+			};
+		} else if(config.tracingMode == TracingMode.COUNT) {
+			say(String.format("Top %d most called methods are printed each %d seconds and on quit, press 'r' to reset call counts", 
+					TopCallCountsSize, CallCountsPrintInterval / 1000));
+			keyListener = new Helper.KeyListener() {
+				@Override
+				public void onKey(int theSymbol) {
+					if(theSymbol == 'r') {
+						agent.resetCallCounts();
+						say("Call counts reset");
+					}
+				}
+			};
+			callCountsTimer = new Timer("metracer call counts", true);
+			callCountsTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					printCallCounts();
+				}
+			}, CallCountsPrintInterval, CallCountsPrintInterval);
+		}
 
-		if(!Helper.waitForQuit(env.getStdin(), env.getStderr())) {
+		boolean isRemovalRequested = Helper.waitForQuit(env.getStdin(), env.getStderr(), keyListener);
+
+		if(callCountsTimer != null)
+			callCountsTimer.cancel();
+
+		if(config.tracingMode == TracingMode.TIMING)
+			printTimings();
+		else if(config.tracingMode == TracingMode.COUNT)
+			printCallCounts();
+
+		sayDroppedEventsCount();
+
+		if(eventStreamReader != null)
+			say(String.format("%d events received over event stream", eventStreamReader.getReadCount()));
+
+		if(config.isWithCompression) {
+			BlockDecompressor decompressor = eventStreamReader != null ? eventStreamReader.getDecompressor() : eventBatchDecompressor;
+			env.getStderr().format("Events: %s\n", decompressor.formatStatistics());
+		}
+
+		if(lostEventsDetector.getLostCount() > 0)
+			env.getStderr().format("%d events were lost by JMX connector, consider enlarging its buffer with -n\n", lostEventsDetector.getLostCount());
+
+		if(!isRemovalRequested) {
 			say("Quitting with retention of instrumentation in target JVM");
 			return;
 		}
@@ -183,6 +277,43 @@ public class Main {
 		deinstrument();
 	}
 
+	// a journal which is still written is followed till it's closed or 'q' is pressed
+	private void executeReadJournal() {
+		JournalReader reader = new JournalReader(new File(config.journalDirectoryName));
+		say(String.format("Reading journal \"%s\"", config.journalDirectoryName));
+		reader.read(env.getStdout());
+
+		if(!reader.getIsClosed())
+			say("Journal is still being written, following it. Press 'q' to quit");
+
+		try {
+			while(!reader.getIsClosed() && !isQuitPressed()) {
+				if(reader.read(env.getStdout()) == 0)
+					Thread.sleep(JournalPollInterval);
+			}
+		} catch(InterruptedException e) {
+		}
+
+		say(String.format("%d events read", reader.getReadCount()));
+
+		if(reader.getSkippedSegmentsCount() > 0)
+			env.getStderr().format("%d journal segments were deleted by target JVM before they were read\n", reader.getSkippedSegmentsCount());
+	}
+
+	private boolean isQuitPressed() {
+		try {
+			while(env.getStdin().available() > 0) {
+				int symbol = env.getStdin().read();
+
+				if(symbol == 'q' || symbol == 'Q')
+					return true;
+			}
+		} catch(IOException e) {
+		}
+
+		return false;
+	}
+
 	private void warnIfJavaIsInstrumentationUnstable() {
 		String version = System.getProperty("java.runtime.version");
 		String vendor = System.getProperty("java.vm.vendor");
@@ -239,6 +370,33 @@ public class Main {
 		}
 	}
 
+	private void printTimings() {
+		try {
+			Helper.printTimings(env.getStdout(), AgentMXBean.Timings.deserialize(agent.snapshotTimings()));
+		} catch(Throwable e) {
+			env.getStderr().format("Failed to get timings: %s\n", e.getMessage());
+		}
+	}
+
+	private void printCallCounts() {
+		try {
+			Helper.printCallCounts(env.getStdout(), AgentMXBean.CallCounts.deserialize(agent.snapshotCallCounts()), TopCallCountsSize);
+		} catch(Throwable e) {
+			env.getStderr().format("Failed to get call counts: %s\n", e.getMessage());
+		}
+	}
+
+	private void sayDroppedEventsCount() {
+		try {
+			long droppedEventsCount = agent.getDroppedEventsCount();
+
+			if(droppedEventsCount > 0)
+				env.getStderr().format("%d events were dropped due to full event buffers in target JVM\n", droppedEventsCount);
+		} catch(Throwable e) {
+			say(String.format("Failed to get a number of dropped events: %s", e.getMessage()));
+		}
+	}
+
 	private void deinstrument() {
 		byte[] encodedCounters = agent.removePatterns();
 		say("Patterns removed");
@@ -252,7 +410,9 @@ public class Main {
 					public void handleNotification(Notification theNotification, Object theHandback) {
 						String notificationType = theNotification.getType();
 
-						if(notificationType.equals(JmxNotificationTypes.EntryExitNotificationType)) 
+						if(notificationType.equals(JmxNotificationTypes.EventBatchNotificationType))
+							printEventBatch(theNotification);
+						else if(notificationType.equals(JmxNotificationTypes.EntryExitNotificationType)) 
 							env.getStdout().println(theNotification.getMessage());
 						else if(notificationType.equals(JmxNotificationTypes.StackTraceNotificationType) && outputPatternsFile != null)
 							try {
@@ -268,13 +428,65 @@ public class Main {
 		}
 	}
 
+	private void startReadingEventStream() {
+		try {
+			AgentMXBean.EventStreamAddress address = AgentMXBean.EventStreamAddress.deserialize(agent.openEventStream());
+			eventStreamReader = new EventStreamReader(address.port, address.token);
+			say(String.format("Connected to event stream on port %d", address.port));
+		} catch(Throwable e) {
+			throw new RuntimeException(String.format("Failed to connect to event stream: %s", e.getMessage()), e);
+		}
+
+		Thread reader = new Thread("metracer event stream") {
+			@Override
+			public void run() {
+				try {
+					while(eventStreamReader.read(env.getStdout()) >= 0) 
+						;
+
+					say("Event stream closed");
+				} catch(Throwable e) {
+					if(!isFinished)
+						env.getStderr().format("Failed to read event stream: %s\n", e.getMessage());
+				} finally {
+					eventStreamReader.close();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void printEventBatch(Notification theNotification) {
+		try {
+			AgentMXBean.EventBatch batch = AgentMXBean.EventBatch.deserialize((byte[])theNotification.getUserData());
+			PrintStream stdout = env.getStdout();
+			long lostCount = lostEventsDetector.check(batch.sessionId, batch.firstSequenceNumber, batch.eventsCount);
+
+			if(lostCount > 0)
+				stdout.format("%s [metracer] %d events lost by JMX connector\n", timestampFormatter.format(System.currentTimeMillis() * 1000000L), lostCount);
+
+			ByteBuffer events = eventBatchDecompressor.decompress(batch.events, 0, batch.events.length, batch.rawLength);
+			eventBatchDecoder.reset();
+
+			for(int i = 0; i < batch.eventsCount; ++i)
+				eventBatchDecoder.print(events, stdout);
+		} catch(Throwable e) {
+			env.getStderr().format("Failed to read a batch of events: %s\n", e.getMessage());
+		}
+	}
+
 	private String ensureManagementAgentIsRunning(VirtualMachine theVm, boolean theIsAgentRequired) throws Exception {
 		String address = getJmxLocalConnectAddress(theVm);
 
 		if(address == null && !theIsAgentRequired)
 			return null;
-		else if(address != null)
+		else if(address != null) {
+			if(config.notificationBufferSize > 0)
+				env.getStderr().format("Management agent of target JVM is running already, -n doesn't change a size of its notification buffer\n");
+
 			return address;
+		}
 
 		say("Management agent is not running");
 		String managementAgentFileName = locateManagementAgentJar(theVm);
@@ -282,6 +494,10 @@ public class Main {
 		if(managementAgentFileName == null)
 			throw new Exception("Management agent JAR is not found");
 
+		// a size of a notification buffer of a connector server is taken once it starts (see Agent.launch)
+		if(config.notificationBufferSize > 0)
+			loadMetracerAgent(theVm);
+
 		say(String.format("Loading management agent from \"%s\"", managementAgentFileName));
 		theVm.loadAgent(managementAgentFileName, "com.sun.management.jmxremote");
 		say("Management agent loaded");
@@ -316,7 +532,13 @@ public class Main {
 
 	private MBeanServerConnection connectToMbeanServer(String theJmxLocalConnectAddress) throws java.net.MalformedURLException, IOException, Exception {
 		JMXServiceURL jmxUrl = new JMXServiceURL(theJmxLocalConnectAddress);
-		JMXConnector jmxConnector = JMXConnectorFactory.connect(jmxUrl);
+		Map<String, Object> jmxEnvironment = new HashMap<String, Object>();
+
+		// lets a client catch up with a whole buffer per fetch
+		if(config.notificationBufferSize > 0)
+			jmxEnvironment.put(NotificationFetchMaxProperty, config.notificationBufferSize);
+
+		JMXConnector jmxConnector = JMXConnectorFactory.connect(jmxUrl, jmxEnvironment);
 		NotificationListener connectionListener = new NotificationListener() {
 			@Override
 			public void handleNotification(Notification theNotification, Object theHandback) {
@@ -331,6 +553,8 @@ public class Main {
 					say("Aborting: connection closed");
 					env.exit(3);
 				}
+				else if(theNotification.getType().equals(JMXConnectionNotification.NOTIFS_LOST))
+					say(String.format("JMX connector lost %s notifications", theNotification.getUserData()));
 			}
 		};
 		jmxConnector.addConnectionNotificationListener(connectionListener, null, null);
@@ -346,21 +570,29 @@ public class Main {
 			return agent;
 
 		say("metracer agent is not loaded");
+		loadMetracerAgent(theVm);
+		agent = getMetracerAgentMxBean();
+
+		if(agent == null)
+			throw new Exception("Failed to run metracer agent");
+
+		return agent;
+	}
+
+	private void loadMetracerAgent(VirtualMachine theVm) throws Exception {
 		String metracerAgentFileName = resolveMetracerAgentJar();
 			
 		if(!new File(metracerAgentFileName).exists())
 			throw new Exception(String.format("Resolved metracer jar \"%s\" doesn't exist", metracerAgentFileName));
 
-		say(String.format("Loading metracer agent from \"%s\"", metracerAgentFileName));
-		theVm.loadAgent(metracerAgentFileName, config.isVerbose ? "-v" : null);
-		say("metracer agent loaded");
-
-		agent = getMetracerAgentMxBean();
+		StringBuilder arguments = new StringBuilder(config.isVerbose ? "-v" : "");
 
-		if(agent == null)
-			throw new Exception("Failed to run metracer agent");
+		if(config.notificationBufferSize > 0)
+			arguments.append(String.format(" -n %d", config.notificationBufferSize));
 
-		return agent;
+		say(String.format("Loading metracer agent from \"%s\"", metracerAgentFileName));
+		theVm.loadAgent(metracerAgentFileName, arguments.length() > 0 ? arguments.toString().trim() : null);
+		say("metracer agent loaded");
 	}
 
 	private AgentMXBean getMetracerAgentMxBean() throws IOException, MalformedObjectNameException {
@@ -392,10 +624,14 @@ public class Main {
 				String failMessage = counters.failedClassesCount > 0 
 					? String.format(", %sation failed for %d classes", theVerb, counters.failedClassesCount) 
 					: "";
-				say(String.format("%d methods in %d classes %sed%s", 
+				String budgetMessage = counters.degradedMethodsCount > 0 || counters.skippedMethodsCount > 0
+					? String.format(", %d methods degraded and %d skipped due to a code size budget", counters.degradedMethodsCount, counters.skippedMethodsCount)
+					: "";
+				say(String.format("%d methods in %d classes %sed%s%s", 
 						counters.methodsCount, 
 						counters.classesCount, 
 						theVerb,
+						budgetMessage,
 						failMessage));
 			}
 		} catch(Throwable e) {
@@ -19,31 +19,74 @@ package com.develorium.metracer;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.Set;
 
 public class ObjectDumper {
 	public static int MaxIterableElementsForPrinting = 10;
 	public static int MaxDumpLength = 32;
+	// collections and maps are dumped as a type and a size instead of elements
+	public static boolean IsWithCollectionSummaries = false;
 	private StringBuilder rv = new StringBuilder();
-	private Set<Object> visitedObjects = new HashSet<Object>();
-
+	// a dump is appended to rv starting from this position
+	private int start = 0;
+	// by identity, not to call hashCode and equals of dumped objects
+	private final IdentitySet visitedObjects = new IdentitySet();
+	private Throwable failure = null;
+	private final TooLongValueException tooLongValue = new TooLongValueException();
+
+	// thrown on each too long value, so it's reused and carries no stack trace
 	private class TooLongValueException extends RuntimeException {
 		private int length = 0;
 
-		public TooLongValueException(int theLength) {
+		public TooLongValueException() {
 			super("too long value");
-			length = theLength;
 		}
 
 		public int getLength() {
 			return length;
 		}
+
+		@Override
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	// first MaxDumpLength chars of a mutable CharSequence, which is all a dump of it reads, and a length of a whole
+	// one for a note on a too long value. Dumped as the CharSequence itself (see Runtime.DeferredDetails)
+	static final class CharSequencePrefix implements CharSequence {
+		private final String prefix;
+		private final int length;
+
+		CharSequencePrefix(CharSequence theValue) {
+			length = theValue.length();
+			prefix = theValue.subSequence(0, Math.min(length, Math.max(MaxDumpLength, 0))).toString();
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		// chars beyond a prefix are not kept
+		@Override
+		public char charAt(int theIndex) {
+			return prefix.charAt(theIndex);
+		}
+
+		@Override
+		public CharSequence subSequence(int theStart, int theEnd) {
+			return prefix.subSequence(theStart, theEnd);
+		}
+
+		@Override
+		public String toString() {
+			return prefix;
+		}
 	}
 
 	public String get() {
@@ -51,19 +94,104 @@ public class ObjectDumper {
 	}
 
 	public String dumpObject(Object theObject) {
+		if(dumpObjectGuarded(theObject))
+			return rv.toString();
+
+		StringBuilder output = new StringBuilder(rv);
+		appendFailure(output);
+		return output.toString();
+	}
+
+	// appends a dump to a given buffer. Unlike dumpObject(Object) a dumper may be reused for subsequent dumps
+	public void dumpObject(Object theObject, StringBuilder theOutput) {
+		rv = theOutput;
+		start = theOutput.length();
+
+		if(!dumpObjectGuarded(theObject))
+			appendFailure(theOutput);
+
+		// not to keep dumped objects reachable
+		visitedObjects.clear();
+		failure = null;
+	}
+
+	// same for a primitive value of a given sort (Z, B, C, S, I, J, F or D), the value isn't boxed
+	public void dumpPrimitive(char theSort, long theValue, StringBuilder theOutput) {
+		if(MaxDumpLength <= 0)
+			return;
+
+		int primitiveStart = theOutput.length();
+		appendPrimitive(theSort, theValue, theOutput);
+
+		if(theOutput.length() - primitiveStart > MaxDumpLength) {
+			theOutput.setLength(primitiveStart + MaxDumpLength);
+			theOutput.append("... (too long value)");
+		}
+	}
+
+	static void appendPrimitive(char theSort, long theValue, StringBuilder theOutput) {
+		switch(theSort) {
+		case 'Z':
+			theOutput.append(theValue != 0);
+			break;
+		case 'B':
+			theOutput.append((byte)theValue);
+			break;
+		case 'C':
+			theOutput.append((char)theValue);
+			break;
+		case 'S':
+			theOutput.append((short)theValue);
+			break;
+		case 'I':
+			theOutput.append((int)theValue);
+			break;
+		case 'J':
+			theOutput.append(theValue);
+			break;
+		case 'F':
+			theOutput.append(Float.intBitsToFloat((int)theValue));
+			break;
+		case 'D':
+			theOutput.append(Double.longBitsToDouble(theValue));
+			break;
+		default:
+			throw new IllegalArgumentException("Not a primitive sort: " + theSort);
+		}
+	}
+
+	// returns false if a dump is incomplete, a reason is kept in failure
+	private boolean dumpObjectGuarded(Object theObject) {
 		try {
 			dumpObject_impl(theObject);
-			return rv.toString();
-		} catch(TooLongValueException e) {
-			int length = e.getLength();
-			return rv.toString() + String.format("... (too long value%s)", length > 0 ? " of " + length + " syms" : "");
+			return true;
 		} catch(Throwable e) {
-			return rv.toString() + "... incomplete due to exception: " + e.getMessage();
+			failure = e;
+			return false;
 		}
 	}
 
+	private void appendFailure(StringBuilder theOutput) {
+		if(failure instanceof TooLongValueException) {
+			int length = ((TooLongValueException)failure).getLength();
+			theOutput.append("... (too long value");
+
+			if(length > 0)
+				theOutput.append(" of ").append(length).append(" syms");
+
+			theOutput.append(')');
+		} else
+			theOutput.append("... incomplete due to exception: ").append(failure.getMessage());
+
+		failure = null;
+	}
+
+	private int getLength() {
+		return rv.length() - start;
+	}
+
 	private void dumpObject_impl(Object theObject) {
-		if(rv.length() >= MaxDumpLength)
+		if(getLength() >= MaxDumpLength)
 			return;
 
 		if(theObject == null) {
@@ -71,55 +199,64 @@ public class ObjectDumper {
 			return;
 		}
 
-		Class<?> c = theObject.getClass();
+		ClassPlan plan = ClassPlan.get(theObject.getClass());
 		
-		if(!isImmediatePrintable(c)) {
-			if(visitedObjects.contains(theObject)) {
+		if(!plan.isImmediatePrintable) {
+			if(!visitedObjects.add(theObject)) {
 				append("<!REPEAT!>");
 				return;
 			}
-			else
-				visitedObjects.add(theObject);
 		}
 
-		String typeName = c.getName();
-
-		if(c.isArray()) {
+		if(IsWithCollectionSummaries && (plan.kind == ClassPlan.AsCollection || plan.kind == ClassPlan.AsMap)) {
+			dumpSummary(theObject, plan);
+			return;
+		}
+		else if(plan.kind == ClassPlan.AsArray) {
 			dumpIterable(getArrayArgumentAdapter(theObject));
 			return;
 		}
-		else if(theObject instanceof java.util.Collection<?>) {
+		else if(plan.kind == ClassPlan.AsCollection) {
 			dumpIterable(getCollectionArgumentAdapter((Collection<?>)theObject));
 			return;
 		}
-		else if(theObject instanceof java.util.Map<?, ?>) {
+		else if(plan.kind == ClassPlan.AsMap) {
 			dumpIterable(getMapArgumentAdapter((Map<?, ?>)theObject));
 			return;
 		}
 
-		if(isImmediatePrintable(c)) {
-			append(theObject.toString(), theObject instanceof String ? ((String)theObject).length() : 0);
+		if(plan.kind == ClassPlan.AsCharSequence || plan.kind == ClassPlan.AsBitSet || plan.kind == ClassPlan.AsString) {
+			appendString(theObject, plan);
 			return;
 		}
 
-		List<Field> fields = getAllDeclaredFields(theObject);
-		append(String.format("(%s){", compactTypeName(typeName)));
+		FieldReader reader = plan.getReader(theObject);
+		append(plan.header);
 		
-		for(Field f : fields) {
-			append(f.getName() + "=");
-			dumpObjectField(theObject, f);
+		for(int i = 0; i < plan.fields.length; ++i) {
+			append(plan.fieldPrefixes[i]);
+
+			if(plan.fieldFailures[i] != null)
+				append(plan.fieldFailures[i]);
+			else
+				dumpObjectField(theObject, reader, i);
+
 			append(",");
 		}
 
-		if(rv.toString().endsWith(","))
+		if(getLength() > 0 && rv.charAt(rv.length() - 1) == ',')
 			rv.deleteCharAt(rv.length() - 1);
 		
 		append("}");
 	}
 
 	static List<Field> getAllDeclaredFields(Object theObject) {
+		return getAllDeclaredFields(theObject.getClass());
+	}
+
+	static List<Field> getAllDeclaredFields(Class<?> theClass) {
 		List<Field> rv = new ArrayList<Field>();
-		Class<?> c = theObject.getClass();
+		Class<?> c = theClass;
 
 		while(c != null) {
 			Field[] fields = c.getDeclaredFields();
@@ -135,24 +272,19 @@ public class ObjectDumper {
 		assert(theObject != null);
 		assert(theField != null);
 		Object fieldValue = null;
-		boolean isAccessible = theField.isAccessible();
 
+		// fields of a ClassPlan are accessible already, others are made accessible and left so
 		try {
-			try {
-				if(!isAccessible)
-					theField.setAccessible(true);
-
-				fieldValue = theField.get(theObject);
-			} catch(SecurityException e) {
-				append("N/A (security)");
-				return this;
-			} catch(IllegalAccessException e) {
-				append("N/A (inaccessible)");
-				return this;
-			}
-		} finally {
-			if(!isAccessible)
-				theField.setAccessible(isAccessible);
+			if(!theField.isAccessible())
+				theField.setAccessible(true);
+
+			fieldValue = theField.get(theObject);
+		} catch(SecurityException e) {
+			append("N/A (security)");
+			return this;
+		} catch(IllegalAccessException e) {
+			append("N/A (inaccessible)");
+			return this;
 		}
 
 		if(fieldValue == null) {
@@ -160,10 +292,28 @@ public class ObjectDumper {
 			return this;
 		}
 
-		dumpObject(fieldValue);
+		dumpObjectGuarded(fieldValue);
 		return this;
 	}
 
+	private void dumpObjectField(Object theObject, FieldReader theReader, int theIndex) {
+		Object fieldValue = null;
+
+		try {
+			fieldValue = theReader.get(theObject, theIndex);
+		} catch(IllegalAccessException e) {
+			append("N/A (inaccessible)");
+			return;
+		}
+
+		if(fieldValue == null) {
+			append("null");
+			return;
+		}
+
+		dumpObjectGuarded(fieldValue);
+	}
+
 	abstract class IterableArgumentAdapter {
 		public abstract boolean hasNext();
 		public abstract void dumpNext();
@@ -272,7 +422,13 @@ public class ObjectDumper {
 				Map.Entry<?, ?> entry = it.next();
 				Object k = entry.getKey();
 				Object v = entry.getValue();
-				rv.append((k != null ? k.toString() : "null") + "=>");
+
+				if(k != null)
+					appendString(k, ClassPlan.get(k.getClass()));
+				else
+					append("null");
+
+				append("=>");
 				dumpObject_impl(v);
 			}
 		};
@@ -301,15 +457,69 @@ public class ObjectDumper {
 		append("]");
 	}
 
-	private void append(String thePiece) {
-		append(thePiece, 0);
+	// "(<compact type name>){size=<size>}", a size is "?" if counting it would walk a whole collection
+	private void dumpSummary(Object theObject, ClassPlan thePlan) {
+		append(thePlan.header);
+		append("{size=");
+
+		if(thePlan.isSizeCostly)
+			append("?");
+		else
+			append(Integer.toString(thePlan.kind == ClassPlan.AsMap ? ((Map<?, ?>)theObject).size() : ((Collection<?>)theObject).size()));
+
+		append("}");
 	}
 
-	private void append(String thePiece, int thePieceLength) {
-		if(rv.length() >= MaxDumpLength) 
-			throw new TooLongValueException(0);
+	// toString of an object. Only a part which fits a dump is read of a CharSequence or a BitSet, so a cost of a dump of
+	// a huge StringBuilder or BitSet is bounded by MaxDumpLength rather than by a size of it
+	private void appendString(Object theObject, ClassPlan thePlan) {
+		if(thePlan.kind == ClassPlan.AsCharSequence)
+			appendCharSequence((CharSequence)theObject);
+		else if(thePlan.kind == ClassPlan.AsBitSet)
+			appendBitSet((BitSet)theObject);
+		else
+			append(theObject.toString());
+	}
+
+	private void appendCharSequence(CharSequence theValue) {
+		if(getLength() >= MaxDumpLength) 
+			throw tooLongValue(0);
+
+		int length = theValue.length();
+		int delta = MaxDumpLength - getLength();
+
+		if(length <= delta) {
+			rv.append(theValue, 0, length);
+			return;
+		}
+
+		rv.append(theValue, 0, delta);
+		throw tooLongValue(length);
+	}
+
+	// as BitSet.toString, "{<index of a set bit>, ...}"
+	private void appendBitSet(BitSet theValue) {
+		append("{");
+		int first = theValue.nextSetBit(0);
+
+		for(int i = first; i >= 0; i = theValue.nextSetBit(i + 1)) {
+			if(i != first)
+				append(", ");
+
+			append(Integer.toString(i));
+
+			if(i == Integer.MAX_VALUE)
+				break;
+		}
 
-		int delta = MaxDumpLength - rv.length();
+		append("}");
+	}
+
+	private void append(String thePiece) {
+		if(getLength() >= MaxDumpLength) 
+			throw tooLongValue(0);
+
+		int delta = MaxDumpLength - getLength();
 		assert(delta > 0);
 		
 		if(thePiece.length() <= delta) {
@@ -317,13 +527,18 @@ public class ObjectDumper {
 			return;
 		}
 
-		rv.append(thePiece.substring(0, delta));
-		throw new TooLongValueException(thePieceLength);
+		rv.append(thePiece, 0, delta);
+		throw tooLongValue(0);
+	}
+
+	private TooLongValueException tooLongValue(int theLength) {
+		tooLongValue.length = theLength;
+		return tooLongValue;
 	}
 
 	static String[] ImmediatePrintableTypePrefixes = { "java.", "sun.", "com.sun." };
 
-	private boolean isImmediatePrintable(Class<?> theClass) {
+	static boolean isImmediatePrintable(Class<?> theClass) {
 		if(theClass.isPrimitive() || theClass.isEnum())
 			return true;
 
@@ -337,25 +552,21 @@ public class ObjectDumper {
 		return false;
 	}
 
+	// shortens each package name to its first letter
 	static String compactTypeName(String theTypeName) {
-		StringBuilder t = new StringBuilder();
-		Scanner scanner = new Scanner(theTypeName).useDelimiter("\\.");
-		try {
-			String token = null;
-
-			while(scanner.hasNext()) {
-				if(token != null)
-					t.append(token.length() > 0 ? token.charAt(0) : "").append(".");
+		StringBuilder t = new StringBuilder(theTypeName.length());
+		int tokenStart = 0;
+		int dot = theTypeName.indexOf('.');
 
-				token = scanner.next();
-			}
-
-			if(token != null)
-				t.append(token);
+		while(dot >= 0) {
+			if(dot > tokenStart)
+				t.append(theTypeName.charAt(tokenStart));
 
-			return t.toString();
-		} finally {
-			scanner.close();
+			t.append('.');
+			tokenStart = dot + 1;
+			dot = theTypeName.indexOf('.', tokenStart);
 		}
+
+		return t.append(theTypeName, tokenStart, theTypeName.length()).toString();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer;
+
+// what happens to an event of a thread which event buffer is full (see dynamic.EventRing)
+public enum OverflowPolicy {
+	DROP_NEWEST,
+	DROP_OLDEST,
+	// each SampleRate-th overflowing event replaces the oldest one, the others are dropped
+	SAMPLE;
+
+	public static final int SampleRate = 16;
+}
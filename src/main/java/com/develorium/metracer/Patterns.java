@@ -35,6 +35,9 @@ public class Patterns {
 	private Pattern methodMatchingPattern = null;
 	private StackTraceMode stackTraceMode = StackTraceMode.DISABLED;
 	private Set<String> instrumentedMethods = Collections.synchronizedSet(new HashSet<String>(1000));
+	// methods which didn't fit a code budget (see asm.CodeBudget), degraded ones are counted as instrumented too
+	private Set<String> degradedMethods = Collections.synchronizedSet(new HashSet<String>());
+	private Set<String> skippedMethods = Collections.synchronizedSet(new HashSet<String>());
 
 	static {
 		BlacklistedClassNamePrefixes.add("java.lang.");
@@ -111,21 +114,29 @@ public class Patterns {
 	}
 
 	public void registerInstrumentedMethod(ClassLoader theLoader, String theClassName, String theMethodName) {
-		if(theClassName == null || theMethodName == null)
-			return;
-		else if(theClassName.length() == 0 || theMethodName.length() == 0)
-			return;
+		registerMethod(instrumentedMethods, theLoader, theClassName, theMethodName);
+	}
 
-		Key key = new Key();
-		key.setClassId(formatClassId(theLoader, theClassName));
-		key.setMethodName(theMethodName);
-		instrumentedMethods.add(encodeKey(key));
+	public void registerDegradedMethod(ClassLoader theLoader, String theClassName, String theMethodName) {
+		registerMethod(degradedMethods, theLoader, theClassName, theMethodName);
+	}
+
+	public void registerSkippedMethod(ClassLoader theLoader, String theClassName, String theMethodName) {
+		registerMethod(skippedMethods, theLoader, theClassName, theMethodName);
 	}
 	
 	public int getInstrumentedMethodsCount() {
 		return instrumentedMethods.size();
 	}
 
+	public int getDegradedMethodsCount() {
+		return degradedMethods.size();
+	}
+
+	public int getSkippedMethodsCount() {
+		return skippedMethods.size();
+	}
+
 	public static int getDeinstrumentedMethodsCount(List<Patterns> theHistoryPatterns, List<Class<?>> theDeinstrumentedClasses) {
 		if(theHistoryPatterns == null || theDeinstrumentedClasses == null)
 			return 0;
@@ -154,6 +165,18 @@ public class Patterns {
 		return rv;
 	}
 
+	private static void registerMethod(Set<String> theMethods, ClassLoader theLoader, String theClassName, String theMethodName) {
+		if(theClassName == null || theMethodName == null)
+			return;
+		else if(theClassName.length() == 0 || theMethodName.length() == 0)
+			return;
+
+		Key key = new Key();
+		key.setClassId(formatClassId(theLoader, theClassName));
+		key.setMethodName(theMethodName);
+		theMethods.add(encodeKey(key));
+	}
+
 	private static Pattern createPattern(String thePatternSource) {
 		if(thePatternSource == null) 
 			return null;
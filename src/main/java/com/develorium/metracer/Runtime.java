@@ -19,12 +19,96 @@ package com.develorium.metracer;
 import java.util.*;
 import java.util.regex.*;
 import java.io.*;
+import com.develorium.metracer.probe.*;
 
 public class Runtime {
 	static public boolean isVerbose = false;
+	// arguments and return values are captured as DeferredDetails, which a logger renders later on
+	static public volatile boolean isWithDeferredRendering = false;
+	// stands for arguments and a return value of a degraded method (see asm.CodeBudget)
+	static final String NotCapturedValue = "...";
 	
 	public interface LoggerInterface {
-		public void printMessage(Class<?> theClass, String theMethodName, String theMessage, List<StackTraceElement> theStackTraceElements);
+		// see TraceEvent for kinds and details of events, an entry may carry a stack trace of a traced method
+		public void printEvent(int theMethodId, int theKind, int theCallDepth, String theDetails, List<StackTraceElement> theStackTraceElements);
+		// same with details yet to be rendered, see isWithDeferredRendering
+		public void printDeferredEvent(int theMethodId, int theKind, int theCallDepth, DeferredDetails theDetails, List<StackTraceElement> theStackTraceElements);
+	}
+
+	// Arguments of an entry or a return value of an exit captured by a traced thread as a shallow snapshot, which is
+	// rendered later on by another thread (e.g. a drain thread of a dynamic agent), so a walk of ObjectDumper over an
+	// object graph doesn't add to a latency of a traced method. Capturing costs a copy of argument slots: primitive
+	// values are copied, a mutable java.* CharSequence is copied up to ObjectDumper.MaxDumpLength chars and other
+	// objects are referenced, which is a snapshot of immutable ones (strings, boxed primitives, enums and alike).
+	// The trade-off is with mutable arguments, which are rendered as they are at a time of rendering: changes made
+	// after a call (by a traced method itself too) show up, and as they are read by another thread without any
+	// synchronization they may be seen half-changed or fail to render (a dump is marked incomplete then). A referenced
+	// argument is also kept reachable until it's rendered
+	public static final class DeferredDetails {
+		private final MethodRegistry.Method method;
+		// -1 for arguments of an entry
+		private final int exitKind;
+		private Object[] argumentSlots;
+		private final long primitiveValue;
+		private Object value;
+		private String rendered = null;
+
+		private DeferredDetails(MethodRegistry.Method theMethod, int theExitKind, Object[] theArgumentSlots, long thePrimitiveValue, Object theValue) {
+			method = theMethod;
+			exitKind = theExitKind;
+			argumentSlots = theArgumentSlots;
+			primitiveValue = thePrimitiveValue;
+			value = theValue;
+		}
+
+		static DeferredDetails captureArguments(MethodRegistry.Method theMethod, Object[] theArgumentSlots) {
+			Object[] slots = null;
+
+			// slots of a thread are reused by a next call
+			if(theArgumentSlots != null) {
+				slots = new Object[theArgumentSlots.length];
+				slots[0] = Probe.getPrimitiveSlots(theArgumentSlots).clone();
+
+				for(int i = 1; i < slots.length; ++i)
+					slots[i] = captureValue(theArgumentSlots[i]);
+			}
+
+			return new DeferredDetails(theMethod, -1, slots, 0, null);
+		}
+
+		static DeferredDetails captureExit(MethodRegistry.Method theMethod, int theExitKind, long thePrimitiveValue, Object theValue) {
+			return new DeferredDetails(theMethod, theExitKind, null, thePrimitiveValue, captureValue(theValue));
+		}
+
+		private static Object captureValue(Object theValue) {
+			if(theValue == null || theValue instanceof String || !(theValue instanceof CharSequence))
+				return theValue;
+
+			return ClassPlan.get(theValue.getClass()).kind == ClassPlan.AsCharSequence ? new ObjectDumper.CharSequencePrefix((CharSequence)theValue) : theValue;
+		}
+
+		// on buffers of a current thread, captured values are let go afterwards
+		public String render() {
+			if(rendered != null)
+				return rendered;
+
+			TracingState state = TracingStateThreadLocal.instance.get();
+			Buffers buffers = state.acquireBuffers();
+
+			try {
+				if(exitKind < 0)
+					appendArguments(buffers.details, buffers.dumper, method, argumentSlots);
+				else
+					appendExit(buffers.details, buffers.dumper, method, exitKind, primitiveValue, value);
+
+				rendered = buffers.details.toString();
+				return rendered;
+			} finally {
+				state.releaseBuffers(buffers);
+				argumentSlots = null;
+				value = null;
+			}
+		}
 	}
 
 	private static LoggerInterface logger = null;
@@ -32,6 +116,32 @@ public class Runtime {
 	public Runtime(LoggerInterface theLogger) {
 		logger = theLogger;
 		new TracingStateThreadLocal(); // to trigger static initializer
+		Probe.setHandler(new Probe.Handler() {
+			@Override
+			public void traceEntry(int theMethodId, Object[] theArgumentValues) {
+				Runtime.traceEntry(theMethodId, theArgumentValues);
+			}
+
+			@Override
+			public void traceVoidExit(int theMethodId) {
+				Runtime.traceExit(theMethodId, VoidExit, 0, null);
+			}
+
+			@Override
+			public void tracePrimitiveExit(int theMethodId, long theReturnValue) {
+				Runtime.traceExit(theMethodId, PrimitiveExit, theReturnValue, null);
+			}
+
+			@Override
+			public void traceReferenceExit(int theMethodId, Object theReturnValue) {
+				Runtime.traceExit(theMethodId, ReferenceExit, 0, theReturnValue);
+			}
+
+			@Override
+			public void traceExceptionExit(int theMethodId, Throwable theException) {
+				Runtime.traceExit(theMethodId, ExceptionExit, 0, theException);
+			}
+		});
 	}
 
 	public static void say(String theMessage) {
@@ -41,92 +151,286 @@ public class Runtime {
 		System.out.println("[metracer] " + theMessage);
 	}
 
-	private static class TracingStateThreadLocal extends ThreadLocal<Integer> {
+	// kinds of traceExit
+	private static final int VoidExit = 0;
+	private static final int PrimitiveExit = 1;
+	private static final int ReferenceExit = 2;
+	private static final int ExceptionExit = 3;
+	private static final int MaxIndent = 32;
+	// frames of a stack trace of an entry, starting at a traced method
+	static final int MaxStackTraceDepth = 64;
+	private static final String[] Indents = new String[MaxIndent + 1];
+
+	static {
+		StringBuilder indent = new StringBuilder(MaxIndent);
+
+		for(int i = 0; i <= MaxIndent; ++i) {
+			Indents[i] = indent.toString();
+			indent.append(' ');
+		}
+	}
+
+	// details of events of a thread are formatted on these, so a traced event allocates nothing but resulting details
+	private static class Buffers {
+		// arguments or a return value
+		final StringBuilder details = new StringBuilder(128);
+		final ObjectDumper dumper = new ObjectDumper();
+	}
+
+	private static class TracingState {
+		private int callDepth = -1;
+		// of MethodRegistry a call depth is counted in
+		private int generation = MethodRegistry.getGeneration();
+		// null while in use, e.g. when an iterator of a dumped collection is traced itself
+		private Buffers buffers = new Buffers();
+
+		Buffers acquireBuffers() {
+			Buffers rv = buffers;
+
+			if(rv == null)
+				return new Buffers();
+
+			buffers = null;
+			rv.details.setLength(0);
+			return rv;
+		}
+
+		void releaseBuffers(Buffers theBuffers) {
+			buffers = theBuffers;
+		}
+
+		int enter() {
+			checkGeneration();
+			return ++callDepth;
+		}
+
+		// an exit of a call entered before methods were switched is printed at a top level
+		int exit() {
+			checkGeneration();
+			int rv = callDepth;
+
+			if(callDepth >= 0)
+				--callDepth;
+
+			return Math.max(rv, 0);
+		}
+
+		// entries or exits of calls in flight are lost when their methods are disabled or enabled, so a call depth
+		// would drift away for good
+		private void checkGeneration() {
+			int currentGeneration = MethodRegistry.getGeneration();
+
+			if(generation != currentGeneration) {
+				generation = currentGeneration;
+				callDepth = -1;
+			}
+		}
+	}
+
+	private static class TracingStateThreadLocal extends ThreadLocal<TracingState> {
 		@Override 
-		protected Integer initialValue() {
-			return new Integer(-1);
+		protected TracingState initialValue() {
+			return new TracingState();
 		}
 		public static final TracingStateThreadLocal instance = new TracingStateThreadLocal();
 	}
 
-	public static void traceEntry(Class theClass, String theMethodName, String[] theArgumentNames, Object[] theArgumentValues, boolean theIsWithStackTraces) {
-		StringBuilder arguments = new StringBuilder();
+	public static void traceEntry(int theMethodId, Object[] theArgumentSlots) {
+		MethodRegistry.Method method = MethodRegistry.get(theMethodId);
 
-		if(theArgumentValues != null) {
-			for(int i = 0; i < theArgumentValues.length; ++i) {
-				String argumentName = theArgumentNames != null && i < theArgumentNames.length && theArgumentNames[i] != null ? theArgumentNames[i] : "<unk>";
-				String argumentValue = formatArgumentValue(theArgumentValues[i]);
-				
-				if(arguments.length() > 0)
-					arguments.append(", ");
+		if(method == null)
+			return;
 
-				arguments.append(String.format("%s = %s", argumentName, argumentValue));
-			}
+		TracingState state = TracingStateThreadLocal.instance.get();
+		Buffers buffers = state.acquireBuffers();
+
+		try {
+			traceEntry(method, theArgumentSlots, state, buffers);
+		} finally {
+			state.releaseBuffers(buffers);
 		}
+	}
+
+	private static void traceEntry(MethodRegistry.Method theMethod, Object[] theArgumentSlots, TracingState theState, Buffers theBuffers) {
+		DeferredDetails deferredArguments = null;
 
-		Integer callDepth = TracingStateThreadLocal.instance.get() + 1;
-		TracingStateThreadLocal.instance.set(callDepth);
-		String messagePrefix = String.format("[metracer.%s]%s +++ [%d] ", getFormattedThreadId(), getIndent(callDepth), callDepth);
-		String message = String.format("%s%s.%s(%s)", messagePrefix, theClass.getName(), theMethodName, arguments.toString());
+		if(isWithDeferredRendering)
+			deferredArguments = DeferredDetails.captureArguments(theMethod, theArgumentSlots);
+		else
+			appendArguments(theBuffers.details, theBuffers.dumper, theMethod, theArgumentSlots);
+
+		int callDepth = theState.enter();
 
 		if(logger != null) {
-			StackTraceElement[] stackTraceElements = theIsWithStackTraces ? Thread.currentThread().getStackTrace() : null;
-			List<StackTraceElement> prunedStackTraceElements = null;
-			
-			if(stackTraceElements != null) {
-				for(StackTraceElement element : stackTraceElements) {
-					if(element.getClassName().equals(theClass.getName()) && element.getMethodName().equals(theMethodName))
-						prunedStackTraceElements = new LinkedList<StackTraceElement>();
-
-					if(prunedStackTraceElements != null)
-						prunedStackTraceElements.add(element);
-				}
-			}
+			List<StackTraceElement> stackTraceElements = theMethod.getIsWithStackTraces() 
+				? StackCapture.instance.capture(theMethod.getClassName(), theMethod.getMethodName(), MaxStackTraceDepth) : null;
+
+			if(deferredArguments != null)
+				logger.printDeferredEvent(theMethod.getId(), TraceEvent.Entry, callDepth, deferredArguments, stackTraceElements);
+			else
+				logger.printEvent(theMethod.getId(), TraceEvent.Entry, callDepth, theBuffers.details.toString(), stackTraceElements);
+		}
+	}
+
+	private static void appendArguments(StringBuilder theOutput, ObjectDumper theDumper, MethodRegistry.Method theMethod, Object[] theArgumentSlots) {
+		String[] argumentNames = theMethod.getArgumentNames();
+		char[] argumentSorts = theMethod.getArgumentSorts();
+		int start = theOutput.length();
 
-			logger.printMessage(theClass, theMethodName, message, prunedStackTraceElements);
+		if(theArgumentSlots == null && theMethod.getIsDegraded() && argumentSorts.length > 0)
+			theOutput.append(NotCapturedValue);
+		else if(theArgumentSlots != null) {
+			for(int i = 0; i < argumentSorts.length; ++i) {
+				if(theOutput.length() > start)
+					theOutput.append(", ");
 
-			if(prunedStackTraceElements != null) {
-				for(StackTraceElement element : prunedStackTraceElements) {
-					logger.printMessage(theClass, theMethodName, String.format("%s    at %s", messagePrefix, element.toString()), null);
-				}
+				theOutput.append(argumentNames != null && i < argumentNames.length && argumentNames[i] != null ? argumentNames[i] : "<unk>");
+				theOutput.append(" = ");
+
+				if(argumentSorts[i] == 'L')
+					appendArgumentValue(theOutput, theDumper, theArgumentSlots[i + 1]);
+				else
+					theDumper.dumpPrimitive(argumentSorts[i], Probe.getPrimitiveSlots(theArgumentSlots)[i], theOutput);
 			}
 		}
 	}
 
-	public static void traceExit(Class theClass, String theMethodName, boolean theIsVoid, Object theReturnValue) {
-		Integer callDepth = TracingStateThreadLocal.instance.get();
-		TracingStateThreadLocal.instance.set(callDepth - 1);
-		String returnValueInfo = formatReturnValue(theIsVoid, theReturnValue);
-		String message = String.format("[metracer.%s]%s --- [%d] %s.%s%s", getFormattedThreadId(), getIndent(callDepth), callDepth, theClass.getName(), theMethodName, returnValueInfo);
+	private static void traceExit(int theMethodId, int theExitKind, long thePrimitiveValue, Object theValue) {
+		MethodRegistry.Method method = MethodRegistry.get(theMethodId);
+
+		if(method == null)
+			return;
+
+		TracingState state = TracingStateThreadLocal.instance.get();
+		Buffers buffers = state.acquireBuffers();
+
+		try {
+			DeferredDetails deferredReturnValue = null;
+
+			if(isWithDeferredRendering)
+				deferredReturnValue = DeferredDetails.captureExit(method, theExitKind, thePrimitiveValue, theValue);
+			else
+				appendExit(buffers.details, buffers.dumper, method, theExitKind, thePrimitiveValue, theValue);
+
+			int callDepth = state.exit();
+
+			if(logger == null)
+				return;
+
+			if(deferredReturnValue != null)
+				logger.printDeferredEvent(theMethodId, TraceEvent.Exit, callDepth, deferredReturnValue, null);
+			else
+				logger.printEvent(theMethodId, TraceEvent.Exit, callDepth, buffers.details.toString(), null);
+		} finally {
+			state.releaseBuffers(buffers);
+		}
+	}
+
+	private static void appendExit(StringBuilder theOutput, ObjectDumper theDumper, MethodRegistry.Method theMethod, int theExitKind, long thePrimitiveValue, Object theValue) {
+		if(theExitKind == VoidExit) {
+			// degraded method calls this probe regardless of a return type
+			if(theMethod.getIsDegraded() && theMethod.getReturnSort() != 'V')
+				theOutput.append(" => return: ").append(NotCapturedValue);
+			else
+				theOutput.append(" => void");
+		} else if(theExitKind == PrimitiveExit) {
+			theOutput.append(" => return: ");
+			theDumper.dumpPrimitive(theMethod.getReturnSort(), thePrimitiveValue, theOutput);
+		} else if(theExitKind == ReferenceExit) {
+			theOutput.append(" => return: ");
+			appendArgumentValue(theOutput, theDumper, theValue);
+		} else
+			appendReturnValue(theOutput, theDumper, theValue);
+	}
+
+	// primitive values are boxed only here, i.e. when a method is actually traced
+	static Object getArgumentValue(char theArgumentSort, Object[] theArgumentSlots, int theArgumentIndex) {
+		if(theArgumentSort == 'L')
+			return theArgumentSlots[theArgumentIndex + 1];
+
+		return getPrimitiveValue(theArgumentSort, Probe.getPrimitiveSlots(theArgumentSlots)[theArgumentIndex]);
+	}
 
-		if(logger != null) 
-			logger.printMessage(theClass, theMethodName, message, null);
+	static Object getPrimitiveValue(char theSort, long thePrimitiveValue) {
+		switch(theSort) {
+		case 'Z':
+			return Boolean.valueOf(thePrimitiveValue != 0);
+		case 'B':
+			return Byte.valueOf((byte)thePrimitiveValue);
+		case 'C':
+			return Character.valueOf((char)thePrimitiveValue);
+		case 'S':
+			return Short.valueOf((short)thePrimitiveValue);
+		case 'I':
+			return Integer.valueOf((int)thePrimitiveValue);
+		case 'J':
+			return Long.valueOf(thePrimitiveValue);
+		case 'F':
+			return Float.valueOf(Float.intBitsToFloat((int)thePrimitiveValue));
+		case 'D':
+			return Double.valueOf(Double.longBitsToDouble(thePrimitiveValue));
+		default:
+			throw new IllegalArgumentException(String.format("Not a primitive sort: %c", theSort));
+		}
 	}
 
+	// formatted on buffers of a current thread, as traced events are
 	public static String formatArgumentValue(Object theArgumentValue) {
-		if(theArgumentValue == null)
-			return "null";
+		TracingState state = TracingStateThreadLocal.instance.get();
+		Buffers buffers = state.acquireBuffers();
 
-		return new ObjectDumper().dumpObject(theArgumentValue);
+		try {
+			appendArgumentValue(buffers.details, buffers.dumper, theArgumentValue);
+			return buffers.details.toString();
+		} finally {
+			state.releaseBuffers(buffers);
+		}
 	}
 
 	static String formatReturnValue(boolean theIsVoid, Object theReturnValue) {
 		if(theIsVoid)
 			return " => void";
-		else if(theReturnValue instanceof Throwable)
-			return String.format(" => exception: %s", theReturnValue.toString());
-		else 
-			return String.format(" => return: %s", formatArgumentValue(theReturnValue));
+
+		TracingState state = TracingStateThreadLocal.instance.get();
+		Buffers buffers = state.acquireBuffers();
+
+		try {
+			appendReturnValue(buffers.details, buffers.dumper, theReturnValue);
+			return buffers.details.toString();
+		} finally {
+			state.releaseBuffers(buffers);
+		}
+	}
+
+	private static void appendArgumentValue(StringBuilder theOutput, ObjectDumper theDumper, Object theArgumentValue) {
+		if(theArgumentValue == null)
+			theOutput.append("null");
+		else
+			theDumper.dumpObject(theArgumentValue, theOutput);
+	}
+
+	private static void appendReturnValue(StringBuilder theOutput, ObjectDumper theDumper, Object theReturnValue) {
+		if(theReturnValue instanceof Throwable)
+			theOutput.append(" => exception: ").append(theReturnValue.toString());
+		else {
+			theOutput.append(" => return: ");
+			appendArgumentValue(theOutput, theDumper, theReturnValue);
+		}
 	}
 
-	private static String getFormattedThreadId() {
-		long threadId = Thread.currentThread().getId();
-		return threadId <= Integer.MAX_VALUE && threadId >= Integer.MIN_VALUE
-			? String.format("%08X", threadId)
-			: String.format("%016X", threadId);
+	// as "%08X" (or "%016X" if doesn't fit an int) would do
+	static String formatThreadId(long theThreadId) {
+		int width = theThreadId <= Integer.MAX_VALUE && theThreadId >= Integer.MIN_VALUE ? 8 : 16;
+		String digits = Long.toHexString(theThreadId).toUpperCase();
+		StringBuilder rv = new StringBuilder(width);
+
+		for(int i = digits.length(); i < width; ++i)
+			rv.append('0');
+
+		return rv.append(digits).toString();
 	}
 	
-	private static String getIndent(int theCallDepth) {
-		return theCallDepth > 0 ? String.format("%" + Math.min(32, theCallDepth) + "s", "") : "";
+	static String getIndent(int theCallDepth) {
+		return theCallDepth > 0 ? Indents[Math.min(MaxIndent, theCallDepth)] : "";
 	}
 }
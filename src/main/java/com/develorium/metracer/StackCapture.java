@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+// Captures a stack trace of a current thread starting at a frame of a traced method, up to a given number of frames.
+// On Java 9+ a StackWalker walks frames lazily, so frames beyond a limit are never materialized, yet it pays for each
+// frame separately, while a Throwable takes a whole stack in one go. Hence a Throwable is used unless a stack is
+// several times deeper than a limit (see AdaptiveCapture). Older Javas always take a whole stack of a Throwable
+abstract class StackCapture {
+	static final StackCapture instance = create();
+
+	// returns null if a traced method is not on a stack
+	abstract List<StackTraceElement> capture(String theClassName, String theMethodName, int theMaxDepth);
+
+	private static StackCapture create() {
+		try {
+			return new AdaptiveCapture(new StackWalkerCapture());
+		} catch(Throwable e) {
+			return new ThrowableCapture();
+		}
+	}
+
+	static class ThrowableCapture extends StackCapture {
+		@Override
+		List<StackTraceElement> capture(String theClassName, String theMethodName, int theMaxDepth) {
+			return select(new Throwable().getStackTrace(), theClassName, theMethodName, theMaxDepth);
+		}
+
+		static List<StackTraceElement> select(StackTraceElement[] theElements, String theClassName, String theMethodName, int theMaxDepth) {
+			for(int i = 0; i < theElements.length; ++i) {
+				if(theElements[i].getClassName().equals(theClassName) && theElements[i].getMethodName().equals(theMethodName))
+					return new ArrayList<StackTraceElement>(Arrays.asList(theElements).subList(i, Math.min(theElements.length, i + theMaxDepth)));
+			}
+
+			return null;
+		}
+	}
+
+	// A depth of a stack seen by a Throwable is kept per thread, a thread with a deep stack has its stack walked by a
+	// StackWalker then and rechecks a depth once in RecheckInterval captures. On JDK 17 a walk of 64 frames pays off
+	// once a stack is about 3 times deeper
+	static class AdaptiveCapture extends StackCapture {
+		static final int DeepStackFactor = 3;
+		static final int RecheckInterval = 64;
+		private final StackWalkerCapture walker;
+		// [0] - a depth of a stack seen last, [1] - a number of captures since
+		private final ThreadLocal<int[]> states = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[2];
+			}
+		};
+
+		AdaptiveCapture(StackWalkerCapture theWalker) {
+			walker = theWalker;
+		}
+
+		@Override
+		List<StackTraceElement> capture(String theClassName, String theMethodName, int theMaxDepth) {
+			int[] state = states.get();
+
+			if(state[0] > DeepStackFactor * theMaxDepth && ++state[1] % RecheckInterval != 0)
+				return walker.capture(theClassName, theMethodName, theMaxDepth);
+
+			StackTraceElement[] elements = new Throwable().getStackTrace();
+			state[0] = elements.length;
+			state[1] = 0;
+			return ThrowableCapture.select(elements, theClassName, theMethodName, theMaxDepth);
+		}
+	}
+
+	// StackWalker.getInstance().walk(...) bound once through reflection, as this code is compiled for Java 6. A walk
+	// function is a Proxy of java.util.function.Function, which takes an iterator of a Stream<StackWalker.StackFrame>
+	// and goes through frames as plain objects. A failed binding (e.g. Java 8) fails an initialization of this class,
+	// and a Throwable is used then
+	static class StackWalkerCapture extends StackCapture {
+		private static final Object Walker;
+		private static final Method Walk;
+		private static final Constructor<?> WalkFunctionConstructor;
+		private static final Method GetIterator;
+		private static final Method GetClassName;
+		private static final Method GetMethodName;
+		private static final Method ToStackTraceElement;
+
+		static {
+			try {
+				Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+				Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+				Class<?> functionClass = Class.forName("java.util.function.Function");
+				Walker = walkerClass.getMethod("getInstance").invoke(null);
+				Walk = walkerClass.getMethod("walk", functionClass);
+				WalkFunctionConstructor = Proxy.getProxyClass(StackCapture.class.getClassLoader(), functionClass).getConstructor(InvocationHandler.class);
+				GetIterator = Class.forName("java.util.stream.BaseStream").getMethod("iterator");
+				GetClassName = frameClass.getMethod("getClassName");
+				GetMethodName = frameClass.getMethod("getMethodName");
+				ToStackTraceElement = frameClass.getMethod("toStackTraceElement");
+			} catch(Throwable e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		@Override
+		List<StackTraceElement> capture(String theClassName, String theMethodName, int theMaxDepth) {
+			WalkFunction function = new WalkFunction(theClassName, theMethodName, theMaxDepth);
+
+			try {
+				Walk.invoke(Walker, WalkFunctionConstructor.newInstance(function));
+			} catch(Exception e) {
+				throw new RuntimeException(String.format("Failed to capture stack trace: %s", e.getMessage()), e);
+			}
+
+			return function.stackTrace;
+		}
+
+		// apply(Stream<StackWalker.StackFrame>), a frame of a traced method is looked up by a method name first, as it's
+		// cheaper to get than a class name
+		private static class WalkFunction implements InvocationHandler {
+			private final String className;
+			private final String methodName;
+			private final int maxDepth;
+			List<StackTraceElement> stackTrace = null;
+
+			WalkFunction(String theClassName, String theMethodName, int theMaxDepth) {
+				className = theClassName;
+				methodName = theMethodName;
+				maxDepth = theMaxDepth;
+			}
+
+			@Override
+			public Object invoke(Object theProxy, Method theMethod, Object[] theArguments) throws Throwable {
+				if(!theMethod.getName().equals("apply"))
+					return theMethod.invoke(this, theArguments);
+
+				Iterator<?> frames = (Iterator<?>)GetIterator.invoke(theArguments[0]);
+
+				while(frames.hasNext() && (stackTrace == null || stackTrace.size() < maxDepth)) {
+					Object frame = frames.next();
+
+					if(stackTrace == null && GetMethodName.invoke(frame).equals(methodName) && GetClassName.invoke(frame).equals(className))
+						stackTrace = new ArrayList<StackTraceElement>(Math.min(maxDepth, 16));
+
+					if(stackTrace != null)
+						stackTrace.add((StackTraceElement)ToStackTraceElement.invoke(frame));
+				}
+
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.text.*;
+import java.util.*;
+
+// Renders timestamps of events as "yyyy.MM.dd hh:mm:ss.SSS". A text of a last second is cached, so a timestamp
+// within it costs appending of milliseconds only. May be shared by threads: a cache is an immutable entry replaced
+// as a whole, a SimpleDateFormat (which is not thread-safe) is created on a cache miss
+public class TimestampFormatter {
+	private static class CachedSecond {
+		final long second;
+		// "yyyy.MM.dd hh:mm:ss."
+		final String text;
+
+		CachedSecond(long theSecond, String theText) {
+			second = theSecond;
+			text = theText;
+		}
+	}
+
+	private volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, null);
+
+	// theTime is in nanoseconds since epoch
+	public void format(long theTime, StringBuilder theOutput) {
+		long millis = theTime / 1000000L;
+		long second = millis / 1000;
+		CachedSecond cached = cachedSecond;
+
+		if(cached.second != second) {
+			cached = new CachedSecond(second, new SimpleDateFormat("yyyy.MM.dd hh:mm:ss.").format(new Date(second * 1000)));
+			cachedSecond = cached;
+		}
+
+		int milliseconds = (int)(millis - second * 1000);
+		theOutput.append(cached.text);
+
+		if(milliseconds < 100)
+			theOutput.append(milliseconds < 10 ? "00" : "0");
+
+		theOutput.append(milliseconds);
+	}
+
+	public String format(long theTime) {
+		StringBuilder rv = new StringBuilder(24);
+		format(theTime, rv);
+		return rv.toString();
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.util.*;
+
+// A traced event in a structured form. A traced thread formats only its details, a text of a whole event is
+// rendered once it's printed, i.e. on a client for events delivered in a binary form (see dynamic.EventEncoder)
+public class TraceEvent {
+	// kinds of events
+	public static final int Entry = 1;
+	public static final int Exit = 2;
+	// a frame of a stack trace of a preceding entry, rendered only (an entry carries its stack trace)
+	public static final int StackFrame = 3;
+	// a message of metracer itself, a whole text of it is in details
+	public static final int Note = 4;
+	public int kind = 0;
+	// nanoseconds since epoch
+	public long time = 0;
+	public long threadId = 0;
+	public String threadName = null;
+	public int methodId = 0;
+	public String className = null;
+	public String methodName = null;
+	public int callDepth = 0;
+	// arguments of an entry, " => ..." of an exit, a frame of a stack trace or a text of a note
+	public String details = null;
+	// of an entry, an agent side only
+	public List<StackTraceElement> stackTraceElements = null;
+	// of stackTraceElements interned by an agent, 0 - none (see dynamic.StackTable)
+	public int stackId = 0;
+	// of an entry, a client side only
+	public String[] stackFrames = null;
+
+	// "[metracer.<thread id>]<indent> +++ [<call depth>] <class>.<method>(<arguments>)" and alike
+	public void render(StringBuilder theOutput) {
+		if(kind == Note) {
+			theOutput.append(details);
+			return;
+		}
+
+		theOutput.append("[metracer.").append(Runtime.formatThreadId(threadId)).append(']').append(Runtime.getIndent(callDepth));
+		theOutput.append(kind == Exit ? " --- [" : " +++ [").append(callDepth).append("] ");
+
+		if(kind == Entry)
+			theOutput.append(className).append('.').append(methodName).append('(').append(details).append(')');
+		else if(kind == Exit)
+			theOutput.append(className).append('.').append(methodName).append(details);
+		else
+			theOutput.append("    at ").append(details);
+	}
+
+	public String render() {
+		StringBuilder rv = new StringBuilder(128);
+		render(rv);
+		return rv.toString();
+	}
+}
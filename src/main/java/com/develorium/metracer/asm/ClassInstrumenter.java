@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+import java.util.*;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+import com.develorium.metracer.*;
+import com.develorium.metracer.probe.*;
+
+// Instruments a class keeping each method within a CodeBudget. A method which doesn't fit is demoted (see
+// InstrumentationLevel) and a class is instrumented again, until all methods fit. Each pass demotes at least one
+// method, so a number of passes is bounded by twice a number of instrumented methods. Each pass registers methods it
+// instruments in a MethodRegistry, those which end up skipped are unregistered
+public class ClassInstrumenter {
+	// thrown by ASM for a method over MaxCodeSize
+	private static final String MethodTooLargeMessage = "Method code too large!";
+
+	public static class Result {
+		public byte[] bytecode = null;
+		public boolean isChanged = false;
+		public boolean hasSlf4jLogger = false;
+		// by name and description
+		public List<String> degradedMethods = new ArrayList<String>();
+		public List<String> skippedMethods = new ArrayList<String>();
+	}
+
+	public static Result instrument(byte[] theBytecode, ClassLoader theLoader, Patterns thePatterns, ProbeEmission theProbeEmission) {
+		ClassReader reader = new ClassReader(theBytecode);
+		ClassNode parsedClass = new ClassNode();
+		reader.accept(parsedClass, 0);
+		String className = parsedClass.name.replace('/', '.');
+		Map<String, InstrumentationLevel> levels = new HashMap<String, InstrumentationLevel>();
+		Map<String, Integer> originalSizes = null;
+
+		while(true) {
+			MetracerClassWriter writer = new MetracerClassWriter(reader, theLoader);
+			MetracerClassVisitor visitor = new MetracerClassVisitor(writer, theLoader, thePatterns, parsedClass, theProbeEmission);
+			visitor.setInstrumentationLevels(levels);
+			reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+
+			Result rv = new Result();
+			rv.hasSlf4jLogger = visitor.getHasSlf4Logger();
+			rv.bytecode = theBytecode;
+
+			if(!visitor.getIsChanged()) {
+				registerMethods(rv, levels, visitor, theLoader, className, thePatterns);
+				return rv;
+			}
+
+			if(originalSizes == null)
+				originalSizes = CodeSizes.read(theBytecode);
+
+			byte[] bytecode = null;
+			Map<String, Integer> instrumentedSizes = null;
+			RuntimeException writeFailure = null;
+
+			try {
+				bytecode = writer.toByteArray();
+				instrumentedSizes = CodeSizes.read(bytecode);
+			} catch(RuntimeException e) {
+				// ASM fails as a whole if any method exceeds MaxCodeSize, so it's unknown which one
+				writeFailure = e;
+				instrumentedSizes = measureSizes(reader, theLoader, thePatterns, parsedClass, theProbeEmission, levels, visitor.getInstrumentedMethods().keySet());
+			}
+
+			boolean isWithinBudget = true;
+
+			for(Map.Entry<String, InstrumentationLevel> entry : visitor.getInstrumentedMethods().entrySet()) {
+				String method = entry.getKey();
+				Integer originalSize = originalSizes.get(method);
+
+				if(originalSize == null)
+					continue;
+
+				Integer instrumentedSize = instrumentedSizes.get(method);
+
+				if(instrumentedSize == null || CodeBudget.isWithin(originalSize, instrumentedSize))
+					continue;
+
+				levels.put(method, entry.getValue().demote());
+				sayAboutDemotion(className, method, entry.getValue().demote(), originalSize, instrumentedSize);
+				isWithinBudget = false;
+			}
+
+			if(isWithinBudget) {
+				if(writeFailure != null) {
+					unregisterMethods(visitor.getInstrumentedMethods().keySet(), theLoader, className);
+					unregisterMethods(levels.keySet(), theLoader, className);
+					throw writeFailure;
+				}
+
+				rv.bytecode = bytecode;
+				rv.isChanged = true;
+				registerMethods(rv, levels, visitor, theLoader, className, thePatterns);
+				return rv;
+			}
+		}
+	}
+
+	private static void registerMethods(Result theResult, Map<String, InstrumentationLevel> theLevels, MetracerClassVisitor theVisitor,
+		ClassLoader theLoader, String theClassName, Patterns thePatterns) {
+		for(Map.Entry<String, InstrumentationLevel> entry : theVisitor.getInstrumentedMethods().entrySet()) {
+			thePatterns.registerInstrumentedMethod(theLoader, theClassName, entry.getKey());
+
+			if(entry.getValue() == InstrumentationLevel.DEGRADED) {
+				thePatterns.registerDegradedMethod(theLoader, theClassName, entry.getKey());
+				theResult.degradedMethods.add(entry.getKey());
+			}
+		}
+
+		for(Map.Entry<String, InstrumentationLevel> entry : theLevels.entrySet()) {
+			if(entry.getValue() == InstrumentationLevel.SKIPPED) {
+				thePatterns.registerSkippedMethod(theLoader, theClassName, entry.getKey());
+				theResult.skippedMethods.add(entry.getKey());
+			}
+		}
+
+		// registered by previous passes
+		unregisterMethods(theResult.skippedMethods, theLoader, theClassName);
+	}
+
+	private static void unregisterMethods(Collection<String> theMethods, ClassLoader theLoader, String theClassName) {
+		for(String method : theMethods) {
+			int i = method.indexOf('(');
+			MethodRegistry.unregister(theLoader, theClassName, method.substring(0, i), method.substring(i));
+		}
+	}
+
+	// sizes of instrumented methods, each written into a class of its own, a method over MaxCodeSize gets
+	// MaxCodeSize + 1, one which fails to be written for another reason is omitted. Used when a class as a whole fails
+	// to be written, so that only methods which don't fit are demoted
+	private static Map<String, Integer> measureSizes(ClassReader theReader, ClassLoader theLoader, Patterns thePatterns, ClassNode theParsedClass,
+		ProbeEmission theProbeEmission, Map<String, InstrumentationLevel> theLevels, Collection<String> theMethods) {
+		Map<String, Integer> rv = new HashMap<String, Integer>();
+
+		for(String method : theMethods) {
+			MetracerClassWriter writer = new MetracerClassWriter(theReader, theLoader);
+			MetracerClassVisitor visitor = new MetracerClassVisitor(writer, theLoader, thePatterns, theParsedClass, theProbeEmission);
+			visitor.setInstrumentationLevels(theLevels);
+			theReader.accept(new MethodFilter(visitor, method), ClassReader.EXPAND_FRAMES);
+
+			try {
+				Integer size = CodeSizes.read(writer.toByteArray()).get(method);
+
+				if(size != null)
+					rv.put(method, size);
+			} catch(RuntimeException e) {
+				if(MethodTooLargeMessage.equals(e.getMessage()))
+					rv.put(method, CodeBudget.MaxCodeSize + 1);
+			}
+		}
+
+		return rv;
+	}
+
+	// passes a single method (by name and description) of a class
+	private static class MethodFilter extends ClassVisitor {
+		private final String method;
+
+		MethodFilter(ClassVisitor theClassVisitor, String theMethod) {
+			super(Opcodes.ASM5, theClassVisitor);
+			method = theMethod;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int theAccess, String theName, String theDescription, String theSignature, String[] theExceptions) {
+			if(!method.equals(theName + theDescription))
+				return null;
+
+			return super.visitMethod(theAccess, theName, theDescription, theSignature, theExceptions);
+		}
+	}
+
+	private static void sayAboutDemotion(String theClassName, String theMethod, InstrumentationLevel theLevel, int theOriginalSize, Integer theInstrumentedSize) {
+		if(!com.develorium.metracer.Runtime.isVerbose)
+			return;
+
+		com.develorium.metracer.Runtime.say(String.format("Instrumentation of %s::%s is %s: code size of %d bytes grows to %s bytes which exceeds a budget",
+				theClassName, theMethod, theLevel == InstrumentationLevel.DEGRADED ? "degraded" : "skipped", theOriginalSize,
+				theInstrumentedSize != null ? theInstrumentedSize.toString() : "over " + CodeBudget.MaxCodeSize));
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+// Limits of a method's code size after an instrumentation. HotSpot doesn't JIT-compile methods bigger than 
+// HugeMethodLimit (unless -XX:-DontCompileHugeMethods is given), so an instrumentation must not push a method over it.
+// MaxCodeSize is a limit of a class file format
+public class CodeBudget {
+	public static final int HugeMethodLimit = 8000;
+	public static final int MaxCodeSize = 65535;
+	// max number of bytes an instrumentation may add to a method, 0 - unlimited
+	public static volatile int MaxCodeGrowth = 0;
+
+	public static boolean isWithin(int theOriginalSize, int theInstrumentedSize) {
+		if(theInstrumentedSize > MaxCodeSize)
+			return false;
+		else if(theOriginalSize <= HugeMethodLimit && theInstrumentedSize > HugeMethodLimit)
+			return false;
+
+		int maxCodeGrowth = MaxCodeGrowth;
+		return maxCodeGrowth <= 0 || theInstrumentedSize - theOriginalSize <= maxCodeGrowth;
+	}
+}
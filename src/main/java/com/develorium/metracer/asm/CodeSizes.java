@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+import java.util.*;
+import org.objectweb.asm.*;
+
+// Sizes of methods' bytecode (code_length of a Code attribute) read straight from a class file. Used to tell how
+// much an instrumentation grows a method, since JIT decisions (inlining, HugeMethodLimit) depend on that size
+public class CodeSizes {
+	// returns sizes by method name + description, abstract and native methods are omitted
+	public static Map<String, Integer> read(byte[] theBytecode) {
+		ClassReader reader = new ClassReader(theBytecode);
+		Map<String, Integer> rv = new LinkedHashMap<String, Integer>();
+		char[] buffer = new char[reader.getMaxStringLength()];
+		int offset = reader.header + 6; // access flags, this class, super class
+		offset += 2 + reader.readUnsignedShort(offset) * 2; // interfaces
+		int fieldsCount = reader.readUnsignedShort(offset);
+		offset += 2;
+
+		for(int i = 0; i < fieldsCount; ++i)
+			offset = skipMember(reader, offset);
+
+		int methodsCount = reader.readUnsignedShort(offset);
+		offset += 2;
+
+		for(int i = 0; i < methodsCount; ++i) {
+			String name = reader.readUTF8(offset + 2, buffer);
+			String description = reader.readUTF8(offset + 4, buffer);
+			int attributesCount = reader.readUnsignedShort(offset + 6);
+			offset += 8;
+
+			for(int j = 0; j < attributesCount; ++j) {
+				if(reader.readUTF8(offset, buffer).equals("Code"))
+					rv.put(name + description, reader.readInt(offset + 10)); // after max stack and max locals
+
+				offset += 6 + reader.readInt(offset + 2);
+			}
+		}
+
+		return rv;
+	}
+
+	public static void sayAboutGrowth(String theClassName, byte[] theOriginalBytecode, byte[] theInstrumentedBytecode) {
+		if(!com.develorium.metracer.Runtime.isVerbose)
+			return;
+
+		Map<String, Integer> originalSizes = read(theOriginalBytecode);
+
+		for(Map.Entry<String, Integer> entry : read(theInstrumentedBytecode).entrySet()) {
+			Integer originalSize = originalSizes.get(entry.getKey());
+
+			if(originalSize != null && !originalSize.equals(entry.getValue()))
+				com.develorium.metracer.Runtime.say(String.format("Code size of %s::%s grew from %d to %d bytes",
+						theClassName, entry.getKey(), originalSize, entry.getValue()));
+		}
+	}
+
+	private static int skipMember(ClassReader theReader, int theOffset) {
+		int attributesCount = theReader.readUnsignedShort(theOffset + 6);
+		int offset = theOffset + 8;
+
+		for(int i = 0; i < attributesCount; ++i)
+			offset += 6 + theReader.readInt(offset + 2);
+
+		return offset;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.asm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import org.objectweb.asm.*;
+import com.develorium.metracer.*;
+
+// Generates a FieldReader of a class, which reads public fields of public classes by GETFIELD / GETSTATIC and passes
+// other fields to reflection of a base FieldReader. A reader is defined by a class loader of its own, which resolves
+// names by a loader of a read class, so a reader is unloaded along with a class it reads
+public class FieldReaderGenerator {
+	private static final String ReaderClassName = "com.develorium.metracer.GeneratedFieldReader";
+	private static final String BaseClassName = Type.getInternalName(FieldReader.class);
+
+	// returns null if a class has no fields to read directly. A given instance is used to check that fields read
+	// directly are accessible indeed (e.g. a package of a module may be not exported)
+	public static FieldReader generate(Object theInstance, Field[] theFields) {
+		boolean[] isDirect = new boolean[theFields.length];
+		boolean hasDirect = false;
+
+		for(int i = 0; i < theFields.length; ++i) {
+			isDirect[i] = Modifier.isPublic(theFields[i].getModifiers()) && Modifier.isPublic(theFields[i].getDeclaringClass().getModifiers());
+			hasDirect |= isDirect[i];
+		}
+
+		if(!hasDirect)
+			return null;
+
+		byte[] bytecode = generateBytecode(theFields, isDirect);
+		Class<?> readerClass = new ReaderLoader(theInstance.getClass().getClassLoader()).define(bytecode);
+		FieldReader rv = null;
+
+		try {
+			rv = (FieldReader)readerClass.getConstructor(Field[].class).newInstance((Object)theFields);
+
+			// resolves GETFIELDs, a failed one isn't retried by a JVM and would fail each time
+			for(int i = 0; i < theFields.length; ++i) {
+				if(isDirect[i])
+					rv.get(theInstance, i);
+			}
+		} catch(LinkageError e) {
+			return null;
+		} catch(Exception e) {
+			throw new RuntimeException(String.format("Failed to create field reader: %s", e.getMessage()), e);
+		}
+
+		return rv;
+	}
+
+	private static byte[] generateBytecode(Field[] theFields, boolean[] theIsDirect) {
+		String className = ReaderClassName.replace('.', '/');
+		// no frames are needed for 1.5 classes, computing them would load classes of fields
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, BaseClassName, null);
+
+		MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "([Ljava/lang/reflect/Field;)V", null, null);
+		constructor.visitCode();
+		constructor.visitVarInsn(Opcodes.ALOAD, 0);
+		constructor.visitVarInsn(Opcodes.ALOAD, 1);
+		constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, BaseClassName, "<init>", "([Ljava/lang/reflect/Field;)V", false);
+		constructor.visitInsn(Opcodes.RETURN);
+		constructor.visitMaxs(0, 0);
+		constructor.visitEnd();
+
+		// switch(theIndex) { case i: return <boxed field i>; ... default: return super.get(theObject, theIndex); }
+		String getDescriptor = "(Ljava/lang/Object;I)Ljava/lang/Object;";
+		MethodVisitor get = writer.visitMethod(Opcodes.ACC_PUBLIC, "get", getDescriptor, null, new String[] { "java/lang/IllegalAccessException" });
+		get.visitCode();
+		Label reflective = new Label();
+		Label[] labels = new Label[theFields.length];
+
+		for(int i = 0; i < theFields.length; ++i)
+			labels[i] = theIsDirect[i] ? new Label() : reflective;
+
+		get.visitVarInsn(Opcodes.ILOAD, 2);
+		get.visitTableSwitchInsn(0, theFields.length - 1, reflective, labels);
+
+		for(int i = 0; i < theFields.length; ++i) {
+			if(!theIsDirect[i])
+				continue;
+
+			Field field = theFields[i];
+			String owner = Type.getInternalName(field.getDeclaringClass());
+			Type type = Type.getType(field.getType());
+			get.visitLabel(labels[i]);
+
+			if(Modifier.isStatic(field.getModifiers()))
+				get.visitFieldInsn(Opcodes.GETSTATIC, owner, field.getName(), type.getDescriptor());
+			else {
+				get.visitVarInsn(Opcodes.ALOAD, 1);
+				get.visitTypeInsn(Opcodes.CHECKCAST, owner);
+				get.visitFieldInsn(Opcodes.GETFIELD, owner, field.getName(), type.getDescriptor());
+			}
+
+			box(get, type);
+			get.visitInsn(Opcodes.ARETURN);
+		}
+
+		get.visitLabel(reflective);
+		get.visitVarInsn(Opcodes.ALOAD, 0);
+		get.visitVarInsn(Opcodes.ALOAD, 1);
+		get.visitVarInsn(Opcodes.ILOAD, 2);
+		get.visitMethodInsn(Opcodes.INVOKESPECIAL, BaseClassName, "get", getDescriptor, false);
+		get.visitInsn(Opcodes.ARETURN);
+		get.visitMaxs(0, 0);
+		get.visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	// as Field.get does
+	private static void box(MethodVisitor theVisitor, Type theType) {
+		String boxType = null;
+
+		switch(theType.getSort()) {
+		case Type.BOOLEAN:
+			boxType = "java/lang/Boolean";
+			break;
+		case Type.BYTE:
+			boxType = "java/lang/Byte";
+			break;
+		case Type.CHAR:
+			boxType = "java/lang/Character";
+			break;
+		case Type.SHORT:
+			boxType = "java/lang/Short";
+			break;
+		case Type.INT:
+			boxType = "java/lang/Integer";
+			break;
+		case Type.LONG:
+			boxType = "java/lang/Long";
+			break;
+		case Type.FLOAT:
+			boxType = "java/lang/Float";
+			break;
+		case Type.DOUBLE:
+			boxType = "java/lang/Double";
+			break;
+		default:
+			return;
+		}
+
+		theVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, boxType, "valueOf", String.format("(%s)L%s;", theType.getDescriptor(), boxType), false);
+	}
+
+	// resolves FieldReader to a class of metracer and other names as a loader of a read class does
+	private static class ReaderLoader extends ClassLoader {
+		private final ClassLoader targetLoader;
+
+		ReaderLoader(ClassLoader theTargetLoader) {
+			super(null);
+			targetLoader = theTargetLoader;
+		}
+
+		@Override
+		protected Class<?> loadClass(String theName, boolean theResolve) throws ClassNotFoundException {
+			if(theName.equals(FieldReader.class.getName()))
+				return FieldReader.class;
+
+			return Class.forName(theName, false, targetLoader);
+		}
+
+		Class<?> define(byte[] theBytecode) {
+			return defineClass(ReaderClassName, theBytecode, 0, theBytecode.length);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+// How a matching method is instrumented. A method which doesn't fit a CodeBudget is demoted to the next level
+public enum InstrumentationLevel {
+	// entry / exit with argument and return values
+	FULL,
+	// entry / exit only, neither arguments nor a return value are captured
+	DEGRADED,
+	// not instrumented at all
+	SKIPPED;
+
+	public InstrumentationLevel demote() {
+		return this == FULL ? DEGRADED : SKIPPED;
+	}
+}
@@ -20,7 +20,9 @@ import java.util.*;
 import java.util.regex.*;
 import org.objectweb.asm.*;
 import org.objectweb.asm.tree.*;
+import org.objectweb.asm.commons.*;
 import com.develorium.metracer.*;
+import com.develorium.metracer.probe.*;
 
 public class MetracerClassVisitor extends ClassVisitor {
 	private boolean isChanged = false;
@@ -29,18 +31,32 @@ public class MetracerClassVisitor extends ClassVisitor {
 	private ClassLoader loader = null;
 	private Patterns patterns = null;
 	private ClassNode parsedClass = null;
-
-	public MetracerClassVisitor(ClassVisitor theClassVisitor, ClassLoader theLoader, Patterns thePatterns, ClassNode theParsedClass) {
+	// parsed methods by name and description, built once per class
+	private Map<String, MethodNode> parsedMethods = null;
+	// identical arrays of argument names (e.g. of overloaded methods) are shared within a class
+	private Map<List<String>, String[]> argumentNamesPool = new HashMap<List<String>, String[]>();
+	private ProbeEmission probeEmission = ProbeEmission.DIRECT;
+	// levels of methods demoted by a ClassInstrumenter (by name and description), others are instrumented fully
+	private Map<String, InstrumentationLevel> instrumentationLevels = Collections.emptyMap();
+	// methods instrumented by this visitor (by name and description)
+	private Map<String, InstrumentationLevel> instrumentedMethods = new LinkedHashMap<String, InstrumentationLevel>();
+
+	public MetracerClassVisitor(ClassVisitor theClassVisitor, ClassLoader theLoader, Patterns thePatterns, ClassNode theParsedClass, ProbeEmission theProbeEmission) {
 		super(Opcodes.ASM5, theClassVisitor);
 		loader = theLoader;
 		patterns = thePatterns;
 		parsedClass = theParsedClass;
+		probeEmission = theProbeEmission;
 	}
 
 	@Override
 	public void visit(int theVersion, int theAccess, String theClassName, String theSignature, String theSuperClassName, String[] theInterfaces) {
 		cv.visit(theVersion, theAccess, theClassName, theSignature, theSuperClassName, theInterfaces);
 		className = theClassName;
+
+		// invokedynamic is not allowed in class files prior to Java 7
+		if(probeEmission == ProbeEmission.INVOKEDYNAMIC && (theVersion & 0xFFFF) < Opcodes.V1_7)
+			probeEmission = ProbeEmission.DIRECT;
 	}
 
 	@Override
@@ -63,23 +79,36 @@ public class MetracerClassVisitor extends ClassVisitor {
 		if(!patterns.isPatternMatched(classNameWithDots, theName))
 			return methodVisitor;
 
-		List<MethodNode> methods = parsedClass.methods;
-		MethodNode method = null;
-				
-		for(MethodNode m : methods) {
-			if(m.name.equals(theName) && m.desc.equals(theDescription)) {
-				method = m;
-				break;
-			}
-		}
+		InstrumentationLevel level = instrumentationLevels.get(theName + theDescription);
+
+		if(level == InstrumentationLevel.SKIPPED)
+			return methodVisitor;
+		else if(level == null)
+			level = InstrumentationLevel.FULL;
 
+		boolean isDegraded = level == InstrumentationLevel.DEGRADED;
+		MethodNode method = getParsedMethod(theName, theDescription);
 		sayAboutInstrumentation(classNameWithDots, theName, theDescription);
-		methodVisitor = new PatternMatchedMethodMutator(className, method, api, methodVisitor, theAccess, theName, theDescription, patterns.getStackTraceMode().isEnabled());
-		patterns.registerInstrumentedMethod(loader, classNameWithDots, theName + theDescription);
+		String[] argumentNames = getArgumentNames(method, theAccess, theDescription);
+		int methodId = MethodRegistry.register(loader, classNameWithDots, theName, theDescription, argumentNames, patterns.getStackTraceMode().isEnabled(), isDegraded);
+		PatternMatchedMethodMutator mutator = new PatternMatchedMethodMutator(methodId, api, methodVisitor, theAccess, theName, theDescription, probeEmission);
+		mutator.setIsDegraded(isDegraded);
+		AnalyzerAdapter analyzer = new AnalyzerAdapter(className, theAccess, theName, theDescription, mutator);
+		mutator.setAnalyzer(analyzer, getReturnsCount(method));
+		methodVisitor = analyzer;
+		instrumentedMethods.put(theName + theDescription, level);
 		isChanged = true;
 		return methodVisitor;
 	}
 
+	public void setInstrumentationLevels(Map<String, InstrumentationLevel> theInstrumentationLevels) {
+		instrumentationLevels = theInstrumentationLevels;
+	}
+
+	public Map<String, InstrumentationLevel> getInstrumentedMethods() {
+		return instrumentedMethods;
+	}
+
 	public boolean getIsChanged() {
 		return isChanged;
 	}
@@ -88,6 +117,71 @@ public class MetracerClassVisitor extends ClassVisitor {
 		return hasSlf4Logger;
 	}
 
+	private static int getReturnsCount(MethodNode theMethod) {
+		if(theMethod == null)
+			return 0;
+
+		int rv = 0;
+
+		for(Iterator<AbstractInsnNode> it = theMethod.instructions.iterator(); it.hasNext(); ) {
+			int opcode = it.next().getOpcode();
+
+			if(opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
+				++rv;
+		}
+
+		return rv;
+	}
+
+	private MethodNode getParsedMethod(String theName, String theDescription) {
+		if(parsedMethods == null) {
+			List<MethodNode> methods = parsedClass.methods;
+			parsedMethods = new HashMap<String, MethodNode>(methods.size() * 2);
+
+			for(MethodNode m : methods)
+				parsedMethods.put(m.name + m.desc, m);
+		}
+
+		return parsedMethods.get(theName + theDescription);
+	}
+
+	// Names are resolved once per method at transform time and are kept in a MethodRegistry. They can't be kept in a
+	// synthetic static field of a class, since retransformation must not add fields
+	private String[] getArgumentNames(MethodNode theMethod, int theAccess, String theMethodDescription) {
+		Type[] argumentTypes = Type.getArgumentTypes(theMethodDescription);
+
+		if(argumentTypes.length == 0)
+			return null;
+
+		List<LocalVariableNode> localVariableNodes = theMethod != null ? theMethod.localVariables : null;
+		TreeMap<Integer, String> localVariables = new TreeMap<Integer, String>();
+
+		if(localVariableNodes != null) {
+			for(LocalVariableNode node : localVariableNodes) {
+				localVariables.put(node.index, node.name);
+			}
+		}
+
+		String[] rv = new String[argumentTypes.length];
+		// index of a local variable which holds an argument, slot 0 of an instance method holds "this"
+		int argumentIndex = (theAccess & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+
+		for(int i = 0; i < argumentTypes.length; ++i) {
+			String localVariableName = localVariables.get(argumentIndex);
+			rv[i] = (localVariableName != null ? localVariableName : "$arg" + i).intern();
+			argumentIndex += argumentTypes[i].getSize();
+		}
+
+		List<String> key = Arrays.asList(rv);
+		String[] pooled = argumentNamesPool.get(key);
+
+		if(pooled != null)
+			return pooled;
+
+		argumentNamesPool.put(key, rv);
+		return rv;
+	}
+
 	private static void sayAboutInstrumentation(String theClassName, String theMethodName, String theMethodDescription) {
 		if(!com.develorium.metracer.Runtime.isVerbose) 
 			return;
@@ -20,25 +20,63 @@ import java.util.*;
 import org.objectweb.asm.*;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.commons.*;
+import com.develorium.metracer.probe.*;
 
 class PatternMatchedMethodMutator extends AdviceAdapter {
-	private String className = null;
-	private MethodNode method = null;
-	private String methodName = null;
-	private boolean isStatic = false;
-	private boolean isWithStackTraces = false;
+	private static final String TraceEntryDescription = "(I[Ljava/lang/Object;)V";
+	private static final String GetArgumentSlotsDescription = "(II)[Ljava/lang/Object;";
+	private static final String TraceVoidExitDescription = "(I)V";
+	private static final String TraceExceptionExitDescription = "(ILjava/lang/Throwable;)V";
+	private int methodId = -1;
+	private ProbeEmission probeEmission = ProbeEmission.DIRECT;
 	private Label startFinally = new Label(); 
 	private Label endFinally = new Label(); 
-	private int runtimeClassVariableIndex = -1;
-
-	public PatternMatchedMethodMutator(String theClassName, MethodNode theMethod, int theApiVersion, 
-		MethodVisitor theDelegatingMethodVisitor, int theAccess, String theMethodName, String theMethodDescription, boolean theIsWithStackTraces) {
+	// tracks a stack of an original code, see isSharedExitApplicable
+	private AnalyzerAdapter analyzer = null;
+	private boolean isWithSharedExit = false;
+	private Label sharedExit = null;
+	private int sharedExitReturnValueVariableIndex = -1;
+	// neither arguments nor a return value are passed to probes, see InstrumentationLevel
+	private boolean isDegraded = false;
+
+	public PatternMatchedMethodMutator(int theMethodId, int theApiVersion, MethodVisitor theDelegatingMethodVisitor, 
+		int theAccess, String theMethodName, String theMethodDescription, ProbeEmission theProbeEmission) {
 		super(theApiVersion, theDelegatingMethodVisitor, theAccess, theMethodName, theMethodDescription);
-		className = theClassName;
-		method = theMethod;
-		methodName = theMethodName;
-		isStatic = (theAccess & Opcodes.ACC_STATIC) != 0;
-		isWithStackTraces = theIsWithStackTraces;
+		methodId = theMethodId;
+		probeEmission = theProbeEmission;
+	}
+
+	// a single return gets a trace exit code inlined, a jump to a shared exit would only add bytes
+	void setAnalyzer(AnalyzerAdapter theAnalyzer, int theReturnsCount) {
+		analyzer = theAnalyzer;
+		isWithSharedExit = theReturnsCount > 1;
+	}
+
+	void setIsDegraded(boolean theIsDegraded) {
+		isDegraded = theIsDegraded;
+	}
+
+	// Return sites don't get own copies of a trace exit code, instead they store a return value and jump to a single 
+	// shared exit (emitted by visitMaxs), so a method grows by a few bytes per extra return only
+	@Override
+	public void visitInsn(int theOpcode) {
+		if(theOpcode < IRETURN || theOpcode > RETURN || !isSharedExitApplicable())
+			super.visitInsn(theOpcode);
+		else {
+			Type returnType = Type.getReturnType(methodDesc);
+
+			if(sharedExit == null) {
+				sharedExit = new Label();
+
+				if(theOpcode != RETURN)
+					sharedExitReturnValueVariableIndex = newLocal(returnType);
+			}
+
+			if(theOpcode != RETURN)
+				mv.visitVarInsn(returnType.getOpcode(ISTORE), sharedExitReturnValueVariableIndex);
+
+			mv.visitJumpInsn(GOTO, sharedExit);
+		}
 	}
 
 	@Override
@@ -48,166 +86,81 @@ class PatternMatchedMethodMutator extends AdviceAdapter {
 		injectTraceExit(ATHROW);
 		mv.visitInsn(ATHROW);
 
-		if(runtimeClassVariableIndex != -1)
-			mv.visitLocalVariable("runtimeClass", "Ljava/lang/Class;", "Ljava/lang/Class<*>;", startFinally, endFinally, runtimeClassVariableIndex);
+		// lies out of a try / catch block above, so a failure here is not traced as an exception exit 
+		if(sharedExit != null) {
+			Type returnType = Type.getReturnType(methodDesc);
+			mv.visitLabel(sharedExit);
+
+			if(returnType.getSort() == Type.VOID)
+				injectVoidTraceExit();
+			else
+				injectTraceExit(returnType, sharedExitReturnValueVariableIndex, false);
+
+			mv.visitInsn(returnType.getOpcode(IRETURN));
+		}
 
 		super.visitMaxs(theMaxStack, theMaxLocals);
 	}
 
 	@Override
 	protected void onMethodEnter() {
-		// Class<?> runtimeClass = null;
-		mv.visitInsn(ACONST_NULL);
-		runtimeClassVariableIndex = newLocal(Type.getType("Ljava/lang/Class;"));
-		mv.visitVarInsn(ASTORE, runtimeClassVariableIndex);
-
 		mv.visitLabel(startFinally);
-		// ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
-		int systemClassLoaderVariableIndex = newLocal(Type.getType("Ljava/lang/ClassLoader;"));
-		mv.visitMethodInsn(INVOKESTATIC, "java/lang/ClassLoader", "getSystemClassLoader", "()Ljava/lang/ClassLoader;", false);
-		mv.visitVarInsn(ASTORE, systemClassLoaderVariableIndex);
-
-		// runtimeClass = Class.forName("com.develorium.metracer.Runtime", true, systemClassLoader);
-		mv.visitLdcInsn("com.develorium.metracer.Runtime");
-		mv.visitInsn(ICONST_1);
-		mv.visitVarInsn(ALOAD, systemClassLoaderVariableIndex);
-		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Class", "forName", "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;", false);
-		mv.visitVarInsn(ASTORE, runtimeClassVariableIndex);
-
-		// Class<?>[] traceEntryArgumentTypes = { Class.class, String.class, String[].class, Object[].class, boolean.class };
-		mv.visitInsn(ICONST_5);
-		mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_0);
-		mv.visitLdcInsn(Type.getType("Ljava/lang/Class;"));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_1);
-		mv.visitLdcInsn(Type.getType("Ljava/lang/String;"));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_2);
-		mv.visitLdcInsn(Type.getType("[Ljava/lang/String;"));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_3);
-		mv.visitLdcInsn(Type.getType("[Ljava/lang/Object;"));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_4);
-		mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TYPE", "Ljava/lang/Class;");
-		mv.visitInsn(AASTORE);
-		int traceEntryArgumentTypesVariableIndex = newLocal(Type.getType("[Ljava/lang/Class;"));
-		mv.visitVarInsn(ASTORE, traceEntryArgumentTypesVariableIndex);
-
-		// Method traceEntryMethod = runtimeClass.getMethod("traceEntry", traceEntryArgumentTypes);
-		mv.visitVarInsn(ALOAD, runtimeClassVariableIndex);
-		mv.visitLdcInsn("traceEntry");
-		mv.visitVarInsn(ALOAD, traceEntryArgumentTypesVariableIndex);
-		mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class", "getMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", false);
-		int traceEntryMethodVariableIndex = newLocal(Type.getType("Ljava/lang/reflect/Method;"));
-		mv.visitVarInsn(ASTORE, traceEntryMethodVariableIndex);
-
-		// String[] argumentNames = null;
-		int argumentNamesVariableIndex = newLocal(Type.getType("[Ljava/lang/String;"));
-		mv.visitInsn(ACONST_NULL);
-		mv.visitVarInsn(ASTORE, argumentNamesVariableIndex);
+		Type[] argumentTypes = Type.getArgumentTypes(methodDesc);
 
-		// String[] argumentValues = null;
-		int argumentValuesVariableIndex = newLocal(Type.getType("[Ljava/lang/Object;"));
-		mv.visitInsn(ACONST_NULL);
-		mv.visitVarInsn(ASTORE, argumentValuesVariableIndex);
+		if(argumentTypes.length == 0 || isDegraded) {
+			// Probe.traceEntry(methodId, null);
+			push(methodId);
+			mv.visitInsn(ACONST_NULL);
+			invokeProbe("traceEntry", TraceEntryDescription);
+			return;
+		}
 
-		Type[] argumentTypes = Type.getArgumentTypes(methodDesc);
-		boolean areAnyArguments = argumentTypes != null && argumentTypes.length > 0;
-		
-		if(areAnyArguments) {
-			// populate argumentNames array with names of method arguments
-			mv.visitLdcInsn(new Integer(argumentTypes.length));
-			mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
-			mv.visitVarInsn(ASTORE, argumentNamesVariableIndex);
-			List<LocalVariableNode> localVariableNodes = method != null ? method.localVariables : null;
-			TreeMap<Integer, String> localVariables = new TreeMap<Integer, String>();
-
-			if(localVariableNodes != null) {
-				for(LocalVariableNode node : localVariableNodes) {
-					localVariables.put(node.index, node.name);
-				}
+		// Object[] argumentSlots = Probe.getArgumentSlots(methodId, argumentsCount);
+		// if(argumentSlots != null) {
+		//     ((long[])argumentSlots[0])[i] = primitiveArgument; argumentSlots[i + 1] = referenceArgument; ...
+		// }
+		// Probe.traceEntry(methodId, argumentSlots); // called anyway, since a timed method gets no slots
+		push(methodId);
+		push(argumentTypes.length);
+		invokeProbe("getArgumentSlots", GetArgumentSlotsDescription);
+		int argumentSlotsVariableIndex = newLocal(Type.getType("[Ljava/lang/Object;"));
+		mv.visitVarInsn(ASTORE, argumentSlotsVariableIndex);
+		Label argumentsCaptureEnd = new Label();
+		mv.visitVarInsn(ALOAD, argumentSlotsVariableIndex);
+		mv.visitJumpInsn(IFNULL, argumentsCaptureEnd);
+		int primitiveSlotsVariableIndex = -1;
+
+		for(int i = 0; i < argumentTypes.length; ++i) {
+			if(isPrimitive(argumentTypes[i])) {
+				primitiveSlotsVariableIndex = newLocal(Type.getType("[J"));
+				mv.visitVarInsn(ALOAD, argumentSlotsVariableIndex);
+				mv.visitInsn(ICONST_0);
+				mv.visitInsn(AALOAD);
+				mv.visitTypeInsn(CHECKCAST, "[J");
+				mv.visitVarInsn(ASTORE, primitiveSlotsVariableIndex);
+				break;
 			}
-		
-			for(int i = 0; i < argumentTypes.length; ++i) {
-				int argIndex = isStatic ? i : i + 1;
-				String localVariableName = localVariables.get(argIndex);
-				String argumentName = localVariableName != null ? localVariableName : "$arg" + i;
-				mv.visitVarInsn(ALOAD, argumentNamesVariableIndex);
-				mv.visitLdcInsn(new Integer(i));
-				mv.visitLdcInsn(argumentName);
+		}
+
+		for(int i = 0; i < argumentTypes.length; ++i) {
+			if(isPrimitive(argumentTypes[i])) {
+				mv.visitVarInsn(ALOAD, primitiveSlotsVariableIndex);
+				push(i);
+				loadArg(i);
+				convertToLong(argumentTypes[i]);
+				mv.visitInsn(LASTORE);
+			} else {
+				mv.visitVarInsn(ALOAD, argumentSlotsVariableIndex);
+				push(i + 1);
+				loadArg(i);
 				mv.visitInsn(AASTORE);
 			}
-
-			//populate argumentValues array with values of method arguments
-			loadArgArray();
-			mv.visitVarInsn(ASTORE, argumentValuesVariableIndex);
 		}
 
-		// Object[] traceEntryArgumentValues = { ?.class, "testMethod", argumentNames, argumentValues, isWithStackTraces };
-		mv.visitInsn(ICONST_5);
-		mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_0);
-		mv.visitLdcInsn(Type.getType(String.format("L%1$s;", className)));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_1);
-		mv.visitLdcInsn(methodName);
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_2);
-		mv.visitVarInsn(ALOAD, argumentNamesVariableIndex);
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_3);
-		mv.visitVarInsn(ALOAD, argumentValuesVariableIndex);
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_4);
-		mv.visitInsn(isWithStackTraces ? ICONST_1 : ICONST_0);
-		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
-		mv.visitInsn(AASTORE);
-		int traceEntryArgumentValuesVariableIndex = newLocal(Type.getType("Ljava/lang/Object;"));
-		mv.visitVarInsn(ASTORE, traceEntryArgumentValuesVariableIndex);
-
-		// traceEntryMethod.invoke(null, traceEntryArgumentValues);
-		mv.visitVarInsn(ALOAD, traceEntryMethodVariableIndex);
-		mv.visitInsn(ACONST_NULL);
-		mv.visitVarInsn(ALOAD, traceEntryArgumentValuesVariableIndex);
-		mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/reflect/Method", "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
-		mv.visitInsn(POP);
-
-		Label methodEnterEnd = new Label(); 
-		mv.visitLabel(methodEnterEnd);
-
-		Label methodEnterEndUltimate = new Label();
-		mv.visitJumpInsn(GOTO, methodEnterEndUltimate);
-		int exceptionVariableIndex = newLocal(Type.getType("[Ljava/lang/Throwable;"));
-		Label methodEnterCatchBlock = new Label();
-		mv.visitLabel(methodEnterCatchBlock);
-		mv.visitVarInsn(ASTORE, exceptionVariableIndex);
-		Label methodEnterCatchStart = new Label();
-		Label methodEnterCatchEnd = new Label();
-		mv.visitLabel(methodEnterCatchStart);
-		mv.visitLabel(methodEnterCatchEnd);
-		mv.visitLabel(methodEnterEndUltimate);
-		
-		mv.visitTryCatchBlock(startFinally, methodEnterEnd, methodEnterCatchBlock, "java/lang/Throwable"); 
-
-		mv.visitLocalVariable("systemClassLoader", "Ljava/lang/ClassLoader;", null, startFinally, methodEnterEnd, systemClassLoaderVariableIndex);
-		mv.visitLocalVariable("traceEntryArgumentTypes", "[Ljava/lang/Class;", null, startFinally, methodEnterEnd, traceEntryArgumentTypesVariableIndex);
-		mv.visitLocalVariable("traceEntryMethod", "Ljava/lang/reflect/Method;", null, startFinally, methodEnterEnd, traceEntryMethodVariableIndex);
-		mv.visitLocalVariable("argumentNames", "[Ljava/lang/String;", null, startFinally, methodEnterEnd, argumentNamesVariableIndex);
-		mv.visitLocalVariable("argumentValues", "[Ljava/lang/Object;", null, startFinally, methodEnterEnd, argumentValuesVariableIndex);
-		mv.visitLocalVariable("traceEntryArgumentValues", "[Ljava/lang/Object;", null, startFinally, methodEnterEnd, traceEntryArgumentValuesVariableIndex);
-		mv.visitLocalVariable("e", "Ljava/lang/Throwable;", null, methodEnterCatchStart, methodEnterCatchEnd, exceptionVariableIndex);
+		mv.visitLabel(argumentsCaptureEnd);
+		push(methodId);
+		mv.visitVarInsn(ALOAD, argumentSlotsVariableIndex);
+		invokeProbe("traceEntry", TraceEntryDescription);
 	}
 
 	@Override
@@ -218,132 +171,237 @@ class PatternMatchedMethodMutator extends AdviceAdapter {
 	}
 
 	private void injectTraceExit(int theOpcode) {
-		// need to grab return value from a stack into local variable before establishing new try / catch frame,
-		// otherwise VerifyError would be thrown
-		boolean isReturnValueBoxed = false;
-		int returnValueVariableIndex = newLocal(Type.getType("[Ljava/lang/Object;"));
-		Label methodExitEarlyStart = new Label(); 
-		mv.visitLabel(methodExitEarlyStart);
-
 		if(theOpcode == RETURN) {
-			visitInsn(ACONST_NULL);
-		} else {
-			switch(theOpcode) {
-			case LRETURN:
-			case DRETURN:
-			case FRETURN:
-			case IRETURN:
-				box(Type.getReturnType(methodDesc));
-				isReturnValueBoxed = true;
-				break;
-			}
+			injectVoidTraceExit();
+			return;
 		}
 
-		mv.visitVarInsn(ASTORE, returnValueVariableIndex);
+		// need to grab return value (or exception) from a stack into local variable before calling a probe, otherwise 
+		// VerifyError would be thrown if a probe is called reflectively (this establishes a new try / catch frame)
+		boolean isException = theOpcode == ATHROW;
+		Type returnValueType = isException ? Type.getType("Ljava/lang/Throwable;") : Type.getReturnType(methodDesc);
+		int returnValueVariableIndex = newLocal(returnValueType);
+		mv.visitVarInsn(returnValueType.getOpcode(ISTORE), returnValueVariableIndex);
+		injectTraceExit(returnValueType, returnValueVariableIndex, isException);
 
+		// RETURN/ARETURN/... or whatever will be added by ASM (we are in the onMethodExit)
+	}
+
+	private void injectVoidTraceExit() {
+		// Probe.traceExit(methodId);
+		push(methodId);
+		invokeProbe("traceExit", TraceVoidExitDescription);
+	}
+
+	// leaves a return value (or exception) on a stack
+	private void injectTraceExit(Type theReturnValueType, int theReturnValueVariableIndex, boolean theIsException) {
 		Label methodExitStart = new Label(); 
 		mv.visitLabel(methodExitStart);
 
-		// Class<?>[] traceExitArgumentTypes = { Class.class, String.class, boolean.class, Object.class };
-		mv.visitInsn(ICONST_4);
-		mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_0);
-		mv.visitLdcInsn(Type.getType("Ljava/lang/Class;"));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
+		// Probe.traceExit(methodId, rv); or Probe.traceExceptionExit(methodId, rv); or Probe.traceExit(methodId); if degraded
+		push(methodId);
+
+		if(theIsException) {
+			mv.visitVarInsn(theReturnValueType.getOpcode(ILOAD), theReturnValueVariableIndex);
+			invokeProbe("traceExceptionExit", TraceExceptionExitDescription);
+		} else if(isDegraded)
+			invokeProbe("traceExit", TraceVoidExitDescription);
+		else {
+			mv.visitVarInsn(theReturnValueType.getOpcode(ILOAD), theReturnValueVariableIndex);
+			invokeProbe("traceExit", getTraceExitDescription(theReturnValueType));
+		}
+
+		mv.visitVarInsn(theReturnValueType.getOpcode(ILOAD), theReturnValueVariableIndex);
+		Label methodExitEnd = new Label();
+		mv.visitLabel(methodExitEnd);
+		mv.visitLocalVariable("rv", theReturnValueType.getDescriptor(), null, methodExitStart, methodExitEnd, theReturnValueVariableIndex);
+	}
+
+	// Stack of each site jumping to a shared exit must be the same, i.e. hold a return value only. Otherwise (or if 
+	// a stack is unknown, e.g. in a class file without stack map frames) a site gets its own trace exit code
+	private boolean isSharedExitApplicable() {
+		if(!isWithSharedExit || analyzer == null || analyzer.stack == null)
+			return false;
+
+		return analyzer.stack.size() == Type.getReturnType(methodDesc).getSize();
+	}
+
+	// byte, char and short values are passed as int, Runtime tells them apart by a method description
+	private static String getTraceExitDescription(Type theReturnValueType) {
+		switch(theReturnValueType.getSort()) {
+		case Type.BOOLEAN:
+			return "(IZ)V";
+		case Type.BYTE:
+		case Type.CHAR:
+		case Type.SHORT:
+		case Type.INT:
+			return "(II)V";
+		case Type.LONG:
+			return "(IJ)V";
+		case Type.FLOAT:
+			return "(IF)V";
+		case Type.DOUBLE:
+			return "(ID)V";
+		default:
+			return "(ILjava/lang/Object;)V";
+		}
+	}
+
+	// Expects probe arguments to be the only values on the stack
+	private void invokeProbe(String theProbeName, String theProbeDescription) {
+		switch(probeEmission) {
+		case DIRECT:
+			mv.visitMethodInsn(INVOKESTATIC, ProbePublisher.ProbeInternalName, theProbeName, theProbeDescription, false);
+			break;
+		case INVOKEDYNAMIC:
+			Handle bootstrap = new Handle(H_INVOKESTATIC, ProbePublisher.IndyProbeInternalName, "bootstrap", ProbePublisher.IndyProbeBootstrapDescription);
+			mv.visitInvokeDynamicInsn(theProbeName, theProbeDescription, bootstrap, methodId);
+			break;
+		default:
+			invokeProbeReflectively(theProbeName, theProbeDescription);
+		}
+	}
+
+	// Fallback for class loaders which can't see a probe class (see ProbePublisher.isProbeVisible). Probe class is resolved 
+	// via a system class loader and is called through a reflection. Any failure of this call is suppressed
+	private void invokeProbeReflectively(String theProbeName, String theProbeDescription) {
+		Type[] probeArgumentTypes = Type.getArgumentTypes(theProbeDescription);
+		Type probeReturnType = Type.getReturnType(theProbeDescription);
+		int[] probeArgumentVariableIndices = new int[probeArgumentTypes.length];
+
+		for(int i = probeArgumentTypes.length - 1; i >= 0; --i) {
+			probeArgumentVariableIndices[i] = newLocal(probeArgumentTypes[i]);
+			mv.visitVarInsn(probeArgumentTypes[i].getOpcode(ISTORE), probeArgumentVariableIndices[i]);
+		}
+
+		Label probeCallStart = new Label();
+		Label probeCallEnd = new Label();
+		Label probeCallCatchBlock = new Label();
+		Label probeCallEndUltimate = new Label();
+		mv.visitTryCatchBlock(probeCallStart, probeCallEnd, probeCallCatchBlock, "java/lang/Throwable"); 
+		mv.visitLabel(probeCallStart);
+
+		// Class.forName("com.develorium.metracer.probe.Probe", true, ClassLoader.getSystemClassLoader())
+		mv.visitLdcInsn(ProbePublisher.ProbeClassName);
 		mv.visitInsn(ICONST_1);
-		mv.visitLdcInsn(Type.getType("Ljava/lang/String;"));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_2);
-		mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TYPE", "Ljava/lang/Class;");
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_3);
-		mv.visitLdcInsn(Type.getType("Ljava/lang/Object;"));
-		mv.visitInsn(AASTORE);
-		int traceExitArgumentTypesVariableIndex = newLocal(Type.getType("[Ljava/lang/Class;"));
-		mv.visitVarInsn(ASTORE, traceExitArgumentTypesVariableIndex);
-
-		// Method traceExitMethod = runtimeClass.getMethod("traceExit", traceExitArgumentTypes);
-		mv.visitVarInsn(ALOAD, runtimeClassVariableIndex);
-		mv.visitLdcInsn("traceExit");
-		mv.visitVarInsn(ALOAD, traceExitArgumentTypesVariableIndex);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/ClassLoader", "getSystemClassLoader", "()Ljava/lang/ClassLoader;", false);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Class", "forName", "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;", false);
+
+		// .getMethod("traceEntry", new Class<?>[] { int.class, Object[].class, ... })
+		mv.visitLdcInsn(theProbeName);
+		mv.visitLdcInsn(new Integer(probeArgumentTypes.length));
+		mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
+
+		for(int i = 0; i < probeArgumentTypes.length; ++i) {
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn(new Integer(i));
+			pushClass(probeArgumentTypes[i]);
+			mv.visitInsn(AASTORE);
+		}
+
 		mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class", "getMethod", "(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", false);
-		int traceExitMethodVariableIndex = newLocal(Type.getType("Ljava/lang/reflect/Method;"));
-		mv.visitVarInsn(ASTORE, traceExitMethodVariableIndex);
 
-		// Object[] traceExitArgumentValues = { ?.class, "testMethod", isVoid, rv };
-		mv.visitInsn(ICONST_4);
-		mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_0);
-		mv.visitLdcInsn(Type.getType(String.format("L%1$s;", className)));
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_1);
-		mv.visitLdcInsn(methodName);
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_2);
-		mv.visitInsn(theOpcode == RETURN ? ICONST_1 : ICONST_0);
-		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", false);
-		mv.visitInsn(AASTORE);
-		mv.visitInsn(DUP);
-		mv.visitInsn(ICONST_3);
-		mv.visitVarInsn(ALOAD, returnValueVariableIndex);
-		mv.visitInsn(AASTORE);
-		int traceExitArgumentValuesVariableIndex = newLocal(Type.getType("Ljava/lang/Object;"));
-		mv.visitVarInsn(ASTORE, traceExitArgumentValuesVariableIndex);
-
-		// traceExitMethod.invoke(null, traceExitArgumentValues);
-		mv.visitVarInsn(ALOAD, traceExitMethodVariableIndex);
+		// .invoke(null, new Object[] { ... })
 		mv.visitInsn(ACONST_NULL);
-		mv.visitVarInsn(ALOAD, traceExitArgumentValuesVariableIndex);
-		mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/reflect/Method", "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
-		mv.visitInsn(POP);
-
-		if(theOpcode != RETURN) {// restore return value on stack only if it's not void
-			mv.visitVarInsn(ALOAD, returnValueVariableIndex);
+		mv.visitLdcInsn(new Integer(probeArgumentTypes.length));
+		mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
 
-			if(isReturnValueBoxed)
-				unbox(Type.getReturnType(methodDesc));
+		for(int i = 0; i < probeArgumentTypes.length; ++i) {
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn(new Integer(i));
+			mv.visitVarInsn(probeArgumentTypes[i].getOpcode(ILOAD), probeArgumentVariableIndices[i]);
+			box(probeArgumentTypes[i]);
+			mv.visitInsn(AASTORE);
 		}
 
-		// RETURN/ARETURN/... or whatever
-		mv.visitInsn(theOpcode);
+		mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/reflect/Method", "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+
+		if(probeReturnType.getSort() == Type.VOID)
+			mv.visitInsn(POP);
+		else
+			unbox(probeReturnType);
+
+		mv.visitLabel(probeCallEnd);
+		mv.visitJumpInsn(GOTO, probeCallEndUltimate);
 
-		Label methodExitEnd = new Label(); 
-		mv.visitLabel(methodExitEnd); // normal (non-exceptional) case ends here
+		mv.visitLabel(probeCallCatchBlock);
+		mv.visitInsn(POP);
+		pushDefaultValue(probeReturnType);
 
-		// exception block starts here
-		int exceptionVariableIndex = newLocal(Type.getType("[Ljava/lang/Throwable;"));
-		Label methodExitCatchBlock = new Label();
-		mv.visitLabel(methodExitCatchBlock);
-		mv.visitVarInsn(ASTORE, exceptionVariableIndex);
-		Label methodExitCatchStart = new Label();
-		Label methodExitCatchEnd = new Label();
-		mv.visitLabel(methodExitCatchStart);
-		mv.visitLabel(methodExitCatchEnd);
+		mv.visitLabel(probeCallEndUltimate);
+	}
 
-		if(theOpcode != RETURN) {// restore return value on stack only if it's not void
-			mv.visitVarInsn(ALOAD, returnValueVariableIndex);
+	private static boolean isPrimitive(Type theType) {
+		return theType.getSort() != Type.OBJECT && theType.getSort() != Type.ARRAY;
+	}
 
-			if(isReturnValueBoxed)
-				unbox(Type.getReturnType(methodDesc));
+	// floating point values are stored as raw bits
+	private void convertToLong(Type theType) {
+		switch(theType.getSort()) {
+		case Type.LONG:
+			break;
+		case Type.FLOAT:
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+			mv.visitInsn(I2L);
+			break;
+		case Type.DOUBLE:
+			mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+			break;
+		default:
+			mv.visitInsn(I2L);
 		}
+	}
 
-		Label methodExitEndUltimate = new Label();
-		mv.visitLabel(methodExitEndUltimate);
+	private void pushClass(Type theType) {
+		switch(theType.getSort()) {
+		case Type.BOOLEAN:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.CHAR:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Character", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.BYTE:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Byte", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.SHORT:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Short", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.INT:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Integer", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.FLOAT:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Float", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.LONG:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Long", "TYPE", "Ljava/lang/Class;");
+			break;
+		case Type.DOUBLE:
+			mv.visitFieldInsn(GETSTATIC, "java/lang/Double", "TYPE", "Ljava/lang/Class;");
+			break;
+		default:
+			mv.visitLdcInsn(theType);
+		}
+	}
 
-		// RETURN/ARETURN/... or whatever will be added by ASM (we are in the onMethodExit)
-		
-		mv.visitTryCatchBlock(methodExitStart, methodExitEnd, methodExitCatchBlock, "java/lang/Throwable"); 
-		mv.visitLocalVariable("rv", "Ljava/lang/Object;", null, methodExitEarlyStart, methodExitEndUltimate, returnValueVariableIndex);
-		mv.visitLocalVariable("traceExitArgumentTypes", "[Ljava/lang/Class;", null, methodExitStart, methodExitEnd, traceExitArgumentTypesVariableIndex);
-		mv.visitLocalVariable("traceExitMethod", "Ljava/lang/reflect/Method;", null, methodExitStart, methodExitEnd, traceExitMethodVariableIndex);
-		mv.visitLocalVariable("traceExitArgumentValues", "[Ljava/lang/Object;", null, methodExitStart, methodExitEnd, traceExitArgumentValuesVariableIndex);
-		mv.visitLocalVariable("e", "Ljava/lang/Throwable;", null, methodExitCatchStart, methodExitCatchEnd, exceptionVariableIndex);
+	private void pushDefaultValue(Type theType) {
+		switch(theType.getSort()) {
+		case Type.VOID:
+			break;
+		case Type.LONG:
+			mv.visitInsn(LCONST_0);
+			break;
+		case Type.FLOAT:
+			mv.visitInsn(FCONST_0);
+			break;
+		case Type.DOUBLE:
+			mv.visitInsn(DCONST_0);
+			break;
+		case Type.OBJECT:
+		case Type.ARRAY:
+			mv.visitInsn(ACONST_NULL);
+			break;
+		default:
+			mv.visitInsn(ICONST_0);
+		}
 	}
-}
\ No newline at end of file
+}
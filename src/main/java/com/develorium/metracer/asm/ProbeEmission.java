@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+import com.develorium.metracer.probe.*;
+
+// How an instrumented code calls a probe
+public enum ProbeEmission {
+	// probe is not visible from a class loader of an instrumented class, a reflective call is used
+	REFLECTIVE,
+	// INVOKESTATIC of a probe
+	DIRECT,
+	// INVOKEDYNAMIC bound by IndyProbe, probe could be switched off / on without retransformation
+	INVOKEDYNAMIC;
+
+	public static ProbeEmission choose(ClassLoader theLoader, boolean theIsWithInvokeDynamic) {
+		if(!ProbePublisher.isProbeVisible(theLoader))
+			return REFLECTIVE;
+		else if(theIsWithInvokeDynamic && ProbePublisher.isInvokeDynamicSupported())
+			return INVOKEDYNAMIC;
+
+		return DIRECT;
+	}
+}
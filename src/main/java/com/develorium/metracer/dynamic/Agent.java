@@ -23,59 +23,241 @@ import java.lang.reflect.*;
 import java.util.*;
 import java.util.concurrent.atomic.*;
 import java.util.regex.*;
-import java.text.*;
+import java.nio.*;
 import javax.management.*;
 import com.develorium.metracer.*;
+import com.develorium.metracer.asm.*;
+import com.develorium.metracer.probe.*;
 
-public class Agent extends NotificationBroadcasterSupport implements AgentMXBean, com.develorium.metracer.Runtime.LoggerInterface {
+public class Agent extends NotificationBroadcasterSupport implements AgentMXBean, com.develorium.metracer.Runtime.LoggerInterface, EventDrain.Sink {
 	public static final String MxBeanName = "com.develorium.metracer.dynamic:type=Agent";
+	public static final String NotificationBufferSizeProperty = "jmx.remote.x.notification.buffer.size";
+	// events are sent in batches of up to EventBatchSize events, a batch is sent once it's EventBatchInterval ms old.
+	// Compressed batches are limited by EventBatchCapacity only, so they grow with a rate of events and compress better
+	private static final int EventBatchSize = 512;
+	private static final int EventBatchCapacity = 256 * 1024;
+	private static final long EventBatchInterval = 50;
 	private Instrumentation instrumentation = null;
 	private com.develorium.metracer.Runtime runtime = null;
 	private AtomicInteger messageSerial = new AtomicInteger();
 	private volatile Patterns patterns = null;
 	private List<Patterns> historyPatterns = new LinkedList<Patterns>();
-	private SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy.MM.dd hh:mm:ss.SSS");
+	private EventDrain eventDrain = new EventDrain(this);
+	private final EventClock clock = new EventClock();
+	// used by a drain thread only
+	private TraceEvent note = new TraceEvent();
+	private EventBatch eventBatch = new EventBatch();
+	private ByteBuffer eventBatchBuffer = ByteBuffer.allocate(EventBatchCapacity);
+	private EventEncoder eventBatchEncoder = new EventEncoder();
+	private BlockCompressor eventBatchCompressor = new BlockCompressor();
+	private StackTable stackTable = new StackTable();
+	private long stackTableSessionId = 0;
+	private long eventBatchTime = 0;
+	private long nextSequenceNumber = 0;
+	private volatile long sessionId = 0;
+	private volatile Journal journal = null;
+	private volatile EventStream eventStream = null;
+	private volatile boolean isWithInvokeDynamic = false;
+	private volatile boolean isWithCompression = false;
+	// call counts by method id as of a previous snapshot, to tell rates
+	private Map<Integer, Long> previousCallCounts = new HashMap<Integer, Long>();
+	private long previousCallCountsTime = 0;
+
+	// see AgentMain for why a probe is published by a caller
+	static void launch(String theArguments, Instrumentation theInstrumentation, String theProbePublishFailure) {
+		setNotificationBufferSize(theArguments);
+
+		if(isMxBeanRegistered())
+			return; // loaded already, only arguments are applied
+
+		new Agent().bootstrap(theArguments, theInstrumentation, theProbePublishFailure);
+	}
+
+	// a connector server creates its notification buffer once, with a size taken from a system property, and keeps
+	// it for its whole life, so a client passes "-n SIZE" to an agent loaded before a management agent is started
+	private static void setNotificationBufferSize(String theArguments) {
+		String[] arguments = theArguments != null ? theArguments.trim().split("\\s+") : new String[0];
 
-	public static void agentmain(String theArguments, Instrumentation theInstrumentation) {
-		new Agent().bootstrap(theArguments, theInstrumentation);
+		for(int i = 0; i < arguments.length - 1; ++i) {
+			if(arguments[i].equals("-n"))
+				System.setProperty(NotificationBufferSizeProperty, arguments[i + 1]);
+		}
+	}
+
+	private static boolean isMxBeanRegistered() {
+		try {
+			return ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(MxBeanName));
+		} catch(MalformedObjectNameException e) {
+			throw new RuntimeException(String.format("Failed to check MX bean: %s", e.getMessage()), e);
+		}
 	}
 
 	@Override
 	public MBeanNotificationInfo[] getNotificationInfo() {
-		MBeanNotificationInfo entryExitNotification = new MBeanNotificationInfo(
-			new String[] { JmxNotificationTypes.EntryExitNotificationType }, 
+		MBeanNotificationInfo eventBatchNotification = new MBeanNotificationInfo(
+			new String[] { JmxNotificationTypes.EventBatchNotificationType }, 
 			Notification.class.getName(), 
-			"metracer notification about methodd's entry / exit");
+			"metracer notification about a batch of methods' entries / exits");
 		MBeanNotificationInfo stackTraceNotification = new MBeanNotificationInfo(
 			new String[] { JmxNotificationTypes.StackTraceNotificationType }, 
 			Notification.class.getName(), 
 			"metracer notification about stack trace");
-		return new MBeanNotificationInfo[] { entryExitNotification, stackTraceNotification };
+		return new MBeanNotificationInfo[] { eventBatchNotification, stackTraceNotification };
+	}
+
+	// called by traced threads, an event is delivered by a drain thread (see consumeEvent)
+	@Override
+	public void printEvent(int theMethodId, int theKind, int theCallDepth, String theDetails, List<StackTraceElement> theStackTraceElements) {
+		// methods not matched by current patterns are disabled in a MethodRegistry, so their probes don't get here
+		if(patterns == null) 
+			return;
+
+		eventDrain.offer(theMethodId, clock.getTime(), theKind, theCallDepth, theDetails, theStackTraceElements);
+	}
+
+	// details are rendered by a drain thread
+	@Override
+	public void printDeferredEvent(int theMethodId, int theKind, int theCallDepth, com.develorium.metracer.Runtime.DeferredDetails theDetails, List<StackTraceElement> theStackTraceElements) {
+		if(patterns == null) 
+			return;
+
+		eventDrain.offer(theMethodId, clock.getTime(), theKind, theCallDepth, theDetails, theStackTraceElements);
 	}
 
 	@Override
-	public void printMessage(Class<?> theClass, String theMethodName, String theMessage, List<StackTraceElement> theStackTraceElements) {
+	public void consumeEvent(TraceEvent theEvent) {
 		Patterns p = patterns;
 
-		if(p == null || !p.isPatternMatched(theClass.getName(), theMethodName)) 
+		if(p == null) 
 			return;
 
-		String messageWithTimestamp = timestampFormat.format(new Date()) + " " + theMessage;
-		Notification notification = new Notification(JmxNotificationTypes.EntryExitNotificationType, this, messageSerial.incrementAndGet(), messageWithTimestamp);
-		sendNotification(notification);
+		boolean isNewStackTrace = false;
+
+		if(theEvent.stackTraceElements != null) {
+			// a client of a new session is to get all stack traces reported
+			if(stackTableSessionId != sessionId) {
+				stackTable.clear();
+				stackTableSessionId = sessionId;
+			}
+
+			theEvent.stackId = stackTable.intern(theEvent.stackTraceElements);
+			isNewStackTrace = stackTable.getIsLastNew();
+		}
+
+		deliverEvent(theEvent);
 
-		if(theStackTraceElements != null && p.getStackTraceMode() == StackTraceMode.PRINT_AND_REPORT) {
+		// PatternsFile of a client skips patterns it already has, so a stack trace is reported once
+		if(isNewStackTrace && p.getStackTraceMode() == StackTraceMode.PRINT_AND_REPORT) {
 			StringBuilder stackTraceMessage = new StringBuilder();
-			stackTraceMessage.append(String.format("# Stack trace context: %s\n", theMessage));
+			stackTraceMessage.append(String.format("# Stack trace context: %s\n", theEvent.render()));
 
-			for(StackTraceElement stackTraceElement : theStackTraceElements)
+			for(StackTraceElement stackTraceElement : theEvent.stackTraceElements)
 				stackTraceMessage.append(String.format("%s::%s\n", stackTraceElement.getClassName(), stackTraceElement.getMethodName()));
 
-			notification = new Notification(JmxNotificationTypes.StackTraceNotificationType, this, messageSerial.incrementAndGet(), stackTraceMessage.toString());
+			Notification notification = new Notification(JmxNotificationTypes.StackTraceNotificationType, this, messageSerial.incrementAndGet(), stackTraceMessage.toString());
 			sendNotification(notification);
 		}
 	}
 
+	@Override
+	public void consumeDroppedEvents(String theThreadName, long theDroppedCount) {
+		note.kind = TraceEvent.Note;
+		note.time = clock.getTime();
+		note.details = String.format("[metracer] %d events of thread \"%s\" dropped due to a full event buffer (%s)", 
+			theDroppedCount, theThreadName, eventDrain.getOverflowPolicy().toString().toLowerCase().replace('_', '-'));
+		deliverEvent(note);
+	}
+
+	@Override
+	public void flush() {
+		if(clock.resyncIfDue())
+			runtime.say("Clock of events drifted away from a wall clock and was resynchronized");
+
+		EventStream s = eventStream;
+
+		if(s != null)
+			s.flushIfDue();
+
+		if(eventBatch.eventsCount > 0 && System.currentTimeMillis() - eventBatchTime >= EventBatchInterval)
+			sendEventBatch();
+	}
+
+	private void deliverEvent(TraceEvent theEvent) {
+		Journal j = journal;
+		EventStream s = eventStream;
+
+		// a journal or a stream may get closed in the meantime
+		if((j == null || !j.append(theEvent)) && (s == null || !s.append(theEvent)))
+			addToEventBatch(theEvent);
+	}
+
+	private void addToEventBatch(TraceEvent theEvent) {
+		long currentSessionId = sessionId;
+
+		if(currentSessionId != eventBatch.sessionId) {
+			if(eventBatch.eventsCount > 0)
+				sendEventBatch();
+
+			eventBatch.sessionId = currentSessionId;
+			nextSequenceNumber = 0;
+		}
+
+		if(!tryAddToEventBatch(theEvent, EventEncoder.MaxDetailsLength)) {
+			if(eventBatch.eventsCount > 0)
+				sendEventBatch();
+
+			// details of an event bigger than a whole batch are cut
+			if(!tryAddToEventBatch(theEvent, EventEncoder.MaxDetailsLength))
+				tryAddToEventBatch(theEvent, EventBatchCapacity / 8);
+		}
+
+		if(eventBatch.eventsCount >= EventBatchSize && !isWithCompression)
+			sendEventBatch();
+	}
+
+	private boolean tryAddToEventBatch(TraceEvent theEvent, int theMaxDetailsLength) {
+		// a batch is decoded on its own, since batches may get lost
+		if(eventBatch.eventsCount == 0) {
+			eventBatchTime = System.currentTimeMillis();
+			eventBatch.firstSequenceNumber = nextSequenceNumber;
+			eventBatchBuffer.clear();
+			eventBatchEncoder.reset();
+		}
+
+		try {
+			eventBatchEncoder.encode(theEvent, eventBatchBuffer, theMaxDetailsLength);
+		} catch(BufferOverflowException e) {
+			return false;
+		}
+
+		++eventBatch.eventsCount;
+		++nextSequenceNumber;
+		return true;
+	}
+
+	private void sendEventBatch() {
+		EventBatch batch = eventBatch;
+		int compressedLength = isWithCompression ? eventBatchCompressor.compress(eventBatchBuffer.array(), 0, eventBatchBuffer.position()) : -1;
+
+		if(compressedLength >= 0) {
+			batch.events = Arrays.copyOf(eventBatchCompressor.getOutput(), compressedLength);
+			batch.rawLength = eventBatchBuffer.position();
+		} else
+			batch.events = Arrays.copyOf(eventBatchBuffer.array(), eventBatchBuffer.position());
+
+		eventBatch = new EventBatch();
+		eventBatch.sessionId = batch.sessionId;
+
+		try {
+			Notification notification = new Notification(JmxNotificationTypes.EventBatchNotificationType, this, messageSerial.incrementAndGet(), 
+				String.format("%d events", batch.eventsCount));
+			notification.setUserData(batch.serialize());
+			sendNotification(notification);
+		} catch(Throwable e) {
+			throw new RuntimeException(String.format("Failed to send %d events: %s", batch.eventsCount, e.getMessage()), e);
+		}
+	}
+
 	@Override
 	public void setIsVerbose(boolean theIsVerbose) {
 		com.develorium.metracer.Runtime.isVerbose = theIsVerbose;
@@ -105,6 +287,13 @@ public class Agent extends NotificationBroadcasterSupport implements AgentMXBean
 			historyPatterns.add(patterns);
 
 		patterns = newPatterns;
+		++sessionId;
+		enableMethods(patterns);
+
+		if(!eventDrain.getIsStarted()) {
+			eventDrain.start();
+			runtime.say("Event drain started");
+		}
 
 		try {
 			RestransformLoadedClassesResult retransformResult = restransformLoadedClasses(Arrays.asList(patterns), "instrument");
@@ -112,6 +301,8 @@ public class Agent extends NotificationBroadcasterSupport implements AgentMXBean
 			counters.methodsCount = patterns.getInstrumentedMethodsCount();
 			counters.classesCount = retransformResult.retransformedClasses.size();
 			counters.failedClassesCount = retransformResult.notRetransformedClasses.size();
+			counters.degradedMethodsCount = patterns.getDegradedMethodsCount();
+			counters.skippedMethodsCount = patterns.getSkippedMethodsCount();
 			sayCounters(counters, "instrument");
 			return counters.serialize();
 		} catch(Throwable e) {
@@ -124,6 +315,216 @@ public class Agent extends NotificationBroadcasterSupport implements AgentMXBean
 		ObjectDumper.MaxDumpLength = theLimit;
 	}
 
+	@Override
+	public void setIsWithCollectionSummaries(boolean theIsWithCollectionSummaries) {
+		ObjectDumper.IsWithCollectionSummaries = theIsWithCollectionSummaries;
+	}
+
+	@Override
+	public void setIsWithDeferredRendering(boolean theIsWithDeferredRendering) {
+		com.develorium.metracer.Runtime.isWithDeferredRendering = theIsWithDeferredRendering;
+	}
+
+	@Override
+	public void setIsWithInvokeDynamic(boolean theIsWithInvokeDynamic) {
+		isWithInvokeDynamic = theIsWithInvokeDynamic;
+	}
+
+	@Override
+	public void setMaxCodeGrowth(int theMaxCodeGrowth) {
+		CodeBudget.MaxCodeGrowth = theMaxCodeGrowth;
+	}
+
+	@Override
+	public void setOverflowPolicy(OverflowPolicy thePolicy) {
+		eventDrain.setOverflowPolicy(thePolicy);
+	}
+
+	@Override
+	public long getDroppedEventsCount() {
+		return eventDrain.getDroppedCount();
+	}
+
+	@Override
+	public void setIsWithCompression(boolean theIsWithCompression) {
+		isWithCompression = theIsWithCompression;
+	}
+
+	@Override
+	synchronized public String startJournal() {
+		if(journal != null)
+			return journal.getDirectory().getAbsolutePath();
+
+		File directory = new File(System.getProperty("java.io.tmpdir"), String.format("metracer-journal-%s-%d", Helper.getSelfPid(), System.currentTimeMillis()));
+
+		try {
+			journal = new Journal(directory);
+		} catch(Throwable e) {
+			throw new RuntimeException(String.format("Failed to start journal: %s", e.getMessage()), e);
+		}
+
+		runtime.say(String.format("Journal started in \"%s\"", directory.getAbsolutePath()));
+		return directory.getAbsolutePath();
+	}
+
+	@Override
+	synchronized public void stopJournal() {
+		Journal j = journal;
+
+		if(j == null)
+			return;
+
+		journal = null;
+		j.close();
+		runtime.say(String.format("Journal in \"%s\" stopped after %d events", j.getDirectory().getAbsolutePath(), j.getRecordsCount()));
+	}
+
+	@Override
+	synchronized public byte[] openEventStream() {
+		closeEventStream();
+
+		try {
+			eventStream = new EventStream(isWithCompression);
+			EventStreamAddress address = new EventStreamAddress();
+			address.port = eventStream.getPort();
+			address.token = eventStream.getToken();
+			runtime.say(String.format("Event stream is listening on port %d", address.port));
+			return address.serialize();
+		} catch(Throwable e) {
+			throw new RuntimeException(String.format("Failed to open event stream: %s", e.getMessage()), e);
+		}
+	}
+
+	@Override
+	synchronized public void closeEventStream() {
+		EventStream s = eventStream;
+
+		if(s == null)
+			return;
+
+		eventStream = null;
+		s.close();
+		runtime.say("Event stream closed");
+	}
+
+	public boolean getIsWithInvokeDynamic() {
+		return isWithInvokeDynamic;
+	}
+
+	@Override
+	synchronized public int setTracingMode(String theClassMatchingPattern, String theMethodMatchingPattern, TracingMode theMode) {
+		if(theMode == null)
+			throw new NullPointerException("Tracing mode is null");
+
+		Patterns selectorPatterns = theClassMatchingPattern != null ? new Patterns(theClassMatchingPattern, theMethodMatchingPattern) : null;
+		MethodRegistry.MethodSelector selector = createMethodSelector(selectorPatterns);
+		MethodRegistry.setDefaultTracingMode(theMode);
+		int rv = MethodRegistry.setTracingMode(selector, theMode);
+
+		// probes linked via invokedynamic are relinked, e.g. to no-ops for an OFF mode
+		if(ProbePublisher.isInvokeDynamicSupported()) {
+			IndyProbe.setDefaultTracingMode(theMode);
+			IndyProbe.setTracingMode(selector, theMode);
+		}
+
+		runtime.say(String.format("Tracing mode of %d methods switched to %s", rv, theMode));
+		return rv;
+	}
+
+	@Override
+	public byte[] snapshotTimings() {
+		Timings timings = new Timings();
+
+		for(int i = 0; i < MethodRegistry.getCount(); ++i) {
+			MethodRegistry.Method method = MethodRegistry.get(i);
+			LatencyHistogram histogram = method.getHistogram();
+
+			if(histogram == null)
+				continue;
+
+			LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+
+			if(snapshot.getCount() == 0)
+				continue;
+
+			MethodTiming timing = new MethodTiming();
+			timing.className = method.getClassName();
+			timing.methodName = method.getMethodName();
+			timing.count = snapshot.getCount();
+			timing.min = snapshot.getMin();
+			timing.max = snapshot.getMax();
+			timing.mean = snapshot.getMean();
+			timing.p50 = snapshot.getValueAtPercentile(50);
+			timing.p90 = snapshot.getValueAtPercentile(90);
+			timing.p99 = snapshot.getValueAtPercentile(99);
+			timing.p999 = snapshot.getValueAtPercentile(99.9);
+			timings.methods.add(timing);
+		}
+
+		try {
+			return timings.serialize();
+		} catch(Throwable e) {
+			throw new RuntimeException(String.format("Failed to snapshot timings: %s", e.getMessage()), e);
+		}
+	}
+
+	@Override
+	public void resetTimings() {
+		for(int i = 0; i < MethodRegistry.getCount(); ++i) {
+			LatencyHistogram histogram = MethodRegistry.get(i).getHistogram();
+
+			if(histogram != null)
+				histogram.reset();
+		}
+
+		runtime.say("Timings reset");
+	}
+
+	@Override
+	synchronized public byte[] snapshotCallCounts() {
+		CallCounts callCounts = new CallCounts();
+		Map<Integer, Long> currentCallCounts = new HashMap<Integer, Long>();
+		long currentTime = System.nanoTime();
+		double elapsedSeconds = previousCallCountsTime != 0 ? (currentTime - previousCallCountsTime) / 1e9 : 0;
+
+		for(int i = 0; i < MethodRegistry.getCount(); ++i) {
+			long count = CallCounters.get(i);
+
+			if(count == 0)
+				continue;
+
+			MethodRegistry.Method method = MethodRegistry.get(i);
+			MethodCallCount callCount = new MethodCallCount();
+			callCount.className = method.getClassName();
+			callCount.methodName = method.getMethodName();
+			callCount.count = count;
+			Long previousCount = previousCallCounts.get(i);
+
+			if(elapsedSeconds > 0)
+				callCount.rate = (count - (previousCount != null ? previousCount : 0)) / elapsedSeconds;
+
+			callCounts.methods.add(callCount);
+			currentCallCounts.put(i, count);
+		}
+
+		previousCallCounts = currentCallCounts;
+		previousCallCountsTime = currentTime;
+
+		try {
+			return callCounts.serialize();
+		} catch(Throwable e) {
+			throw new RuntimeException(String.format("Failed to snapshot call counts: %s", e.getMessage()), e);
+		}
+	}
+
+	@Override
+	synchronized public void resetCallCounts() {
+		CallCounters.reset();
+		previousCallCounts.clear();
+		previousCallCountsTime = 0;
+		runtime.say("Call counts reset");
+	}
+
 	@Override
 	synchronized public byte[] removePatterns() {
 		runtime.say("Removing patterns");
@@ -135,11 +536,20 @@ public class Agent extends NotificationBroadcasterSupport implements AgentMXBean
 		else if(patterns != null) {
 			historyPatterns.add(patterns);
 			patterns = null;
+			enableMethods(null);
 		}
+
+		stopEventDrain();
+		stopJournal();
+		closeEventStream();
 		
 		try {
 			try {
 				RestransformLoadedClassesResult retransformResult = restransformLoadedClasses(historyPatterns, "deinstrument");
+
+				if(ProbePublisher.isInvokeDynamicSupported())
+					IndyProbe.unlinkMethods();
+
 				Counters counters = new Counters();
 				counters.methodsCount = Patterns.getDeinstrumentedMethodsCount(historyPatterns, retransformResult.retransformedClasses);
 				counters.classesCount = retransformResult.retransformedClasses.size();
@@ -154,17 +564,56 @@ public class Agent extends NotificationBroadcasterSupport implements AgentMXBean
 		}
 	}
 
+	// there are no events to deliver without patterns, so a drain thread doesn't keep waking up in target JVM
+	private void stopEventDrain() {
+		try {
+			eventDrain.stop();
+			runtime.say("Event drain stopped");
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			runtime.say("Interrupted while stopping event drain");
+		}
+	}
+
+	// methods already instrumented by previous patterns stay instrumented till retransformation, hence those which
+	// are not matched by current patterns are disabled, null patterns disable all methods
+	private void enableMethods(Patterns thePatterns) {
+		MethodRegistry.MethodSelector selector = thePatterns != null ? createMethodSelector(thePatterns) : new MethodRegistry.MethodSelector() {
+			@Override
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return false;
+			}
+		};
+		int enabledMethodsCount = MethodRegistry.enableMethods(selector);
+		runtime.say(String.format("%d of %d registered methods enabled", enabledMethodsCount, MethodRegistry.getCount()));
+	}
+
+	private static MethodRegistry.MethodSelector createMethodSelector(final Patterns thePatterns) {
+		if(thePatterns == null)
+			return null;
+
+		return new MethodRegistry.MethodSelector() {
+			@Override
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return thePatterns.isPatternMatched(theClassName, theMethodName);
+			}
+		};
+	}
+
 	public Patterns getPatterns() {
 		return patterns;
 	}
 
-	private void bootstrap(String theArguments, Instrumentation theInstrumentation) {
+	private void bootstrap(String theArguments, Instrumentation theInstrumentation, String theProbePublishFailure) {
 		ClassFileTransformer transformer = null;
 
 		try {
 			instrumentation = theInstrumentation;
 			createRuntime(theArguments);
 			runtime.say("Runtime created");
+			runtime.say(theProbePublishFailure == null 
+				? "Probe published on a bootstrap class path"
+				: String.format("Failed to publish probe on a bootstrap class path, falling back to reflective probe calls: %s", theProbePublishFailure));
 			registerMxBean();
 			runtime.say("MX bean registered");
 			transformer = new MetracerClassFileTransformer(this);
@@ -273,10 +722,14 @@ public class Agent extends NotificationBroadcasterSupport implements AgentMXBean
 		String failMessage = theCounters.failedClassesCount > 0 
 			? String.format(", %sation failed for %d classes", theVerb, theCounters.failedClassesCount)
 			: "";
-		runtime.say(String.format("%d methods in %d classes %sed%s", 
+		String budgetMessage = theCounters.degradedMethodsCount > 0 || theCounters.skippedMethodsCount > 0
+			? String.format(", %d methods degraded and %d skipped due to a code size budget", theCounters.degradedMethodsCount, theCounters.skippedMethodsCount)
+			: "";
+		runtime.say(String.format("%d methods in %d classes %sed%s%s", 
 				theCounters.methodsCount,
 				theCounters.classesCount,
 				theVerb,
+				budgetMessage,
 				failMessage));
 	}
 }
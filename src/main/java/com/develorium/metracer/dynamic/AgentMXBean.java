@@ -17,36 +17,175 @@
 package com.develorium.metracer.dynamic;
 
 import java.io.*;
+import java.util.*;
 import com.develorium.metracer.*;
+import com.develorium.metracer.probe.*;
 
 public interface AgentMXBean {
+	// values returned by an agent as byte[], so a JMX client doesn't need open types for them
+	public static class Serialization {
+		public static byte[] serialize(Serializable theValue) throws IOException {
+			ByteArrayOutputStream backend = new ByteArrayOutputStream();
+			ObjectOutputStream stream = new ObjectOutputStream(backend);
+			stream.writeObject(theValue);
+			stream.close();
+			return backend.toByteArray();
+		}
+
+		public static <T> T deserialize(byte[] theData, Class<T> theClass) throws IOException, ClassNotFoundException {
+			ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(theData));
+
+			try {
+				return theClass.cast(stream.readObject());
+			} finally {
+				stream.close();
+			}
+		}
+	}
+
 	public static class Counters implements Serializable {
 		private static final long serialVersionUID = 5304832712221989304L;
 		public int methodsCount = 0;
 		public int classesCount = 0;
 		public int failedClassesCount = 0;
+		// methods which didn't fit a code budget, see asm.CodeBudget
+		public int degradedMethodsCount = 0;
+		public int skippedMethodsCount = 0;
 
 		public byte[] serialize() throws IOException {
-			ByteArrayOutputStream backend = new ByteArrayOutputStream();
-			ObjectOutputStream stream = new ObjectOutputStream(backend);
-			stream.writeObject(this);
-			stream.close();
-			return backend.toByteArray();
+			return Serialization.serialize(this);
 		}
 
 		public static Counters deserialize(byte[] theData) throws IOException, ClassNotFoundException {
-			ByteArrayInputStream backend = new ByteArrayInputStream(theData);
-			ObjectInputStream stream = new ObjectInputStream(backend);
-			Counters counters = (Counters)stream.readObject();
-			stream.close();
-			return counters;
+			return Serialization.deserialize(theData, Counters.class);
+		}
+	}
+
+	// durations are in nanoseconds
+	public static class MethodTiming implements Serializable {
+		private static final long serialVersionUID = -6929471910750230296L;
+		public String className = null;
+		public String methodName = null;
+		public long count = 0;
+		public long min = 0;
+		public long max = 0;
+		public double mean = 0;
+		public long p50 = 0;
+		public long p90 = 0;
+		public long p99 = 0;
+		public long p999 = 0;
+
+		public double getTotal() {
+			return mean * count;
+		}
+	}
+
+	public static class Timings implements Serializable {
+		private static final long serialVersionUID = -2606655751569296516L;
+		public List<MethodTiming> methods = new ArrayList<MethodTiming>();
+
+		public byte[] serialize() throws IOException {
+			return Serialization.serialize(this);
+		}
+
+		public static Timings deserialize(byte[] theData) throws IOException, ClassNotFoundException {
+			return Serialization.deserialize(theData, Timings.class);
+		}
+	}
+
+	public static class MethodCallCount implements Serializable {
+		private static final long serialVersionUID = 2556818445093565207L;
+		public String className = null;
+		public String methodName = null;
+		public long count = 0;
+		// calls per second since a previous snapshot, 0 for a first one
+		public double rate = 0;
+	}
+
+	public static class CallCounts implements Serializable {
+		private static final long serialVersionUID = -3598424877327344217L;
+		public List<MethodCallCount> methods = new ArrayList<MethodCallCount>();
+
+		public byte[] serialize() throws IOException {
+			return Serialization.serialize(this);
+		}
+
+		public static CallCounts deserialize(byte[] theData) throws IOException, ClassNotFoundException {
+			return Serialization.deserialize(theData, CallCounts.class);
+		}
+	}
+
+	// events (messages with timestamps) sent together in a single notification
+	public static class EventBatch implements Serializable {
+		private static final long serialVersionUID = -1431488786419263527L;
+		// events are numbered consecutively within a session, which starts each time patterns are set
+		public long sessionId = 0;
+		public long firstSequenceNumber = 0;
+		public int eventsCount = 0;
+		// encoded by an EventEncoder which is reset for each batch
+		public byte[] events = new byte[0];
+		// of events before a compression (see BlockCompressor), 0 if they are not compressed
+		public int rawLength = 0;
+
+		public byte[] serialize() throws IOException {
+			return Serialization.serialize(this);
+		}
+
+		public static EventBatch deserialize(byte[] theData) throws IOException, ClassNotFoundException {
+			return Serialization.deserialize(theData, EventBatch.class);
+		}
+	}
+
+	// where a client connects to get events streamed (see EventStream)
+	public static class EventStreamAddress implements Serializable {
+		private static final long serialVersionUID = 5582521931004607050L;
+		public int port = 0;
+		public long token = 0;
+
+		public byte[] serialize() throws IOException {
+			return Serialization.serialize(this);
+		}
+
+		public static EventStreamAddress deserialize(byte[] theData) throws IOException, ClassNotFoundException {
+			return Serialization.deserialize(theData, EventStreamAddress.class);
 		}
 	}
 
 	public void setIsVerbose(boolean theIsVerbose);
 	public void setMethodArgumentDumpLimit(int theLimit);
+	// collections and maps among method arguments are dumped as a type and a size
+	public void setIsWithCollectionSummaries(boolean theIsWithCollectionSummaries);
+	// arguments and return values are captured as shallow snapshots and rendered by a drain thread
+	public void setIsWithDeferredRendering(boolean theIsWithDeferredRendering);
+	public void setIsWithInvokeDynamic(boolean theIsWithInvokeDynamic);
+	// max number of bytes an instrumentation may add to a single method, 0 - unlimited
+	public void setMaxCodeGrowth(int theMaxCodeGrowth);
+	// what happens to events of a traced thread which outpaces a delivery of events
+	public void setOverflowPolicy(OverflowPolicy thePolicy);
+	// total number of events dropped by an OverflowPolicy
+	public long getDroppedEventsCount();
+	// batches of events sent in notifications and frames of streams opened later on are deflated
+	public void setIsWithCompression(boolean theIsWithCompression);
+	// from now on events are written into a Journal instead of being sent in notifications, returns a directory of it
+	public String startJournal();
+	// events are sent in notifications again, does nothing if there is no journal
+	public void stopJournal();
+	// once a client connects, events are streamed to it instead of being sent in notifications (unless there is a 
+	// journal), a previous stream is closed. Returns serialized EventStreamAddress
+	public byte[] openEventStream();
+	// events are sent in notifications again, does nothing if there is no stream
+	public void closeEventStream();
+	// applies to already instrumented methods (null patterns - to all of them) and to methods instrumented later on, 
+	// returns number of switched methods
+	public int setTracingMode(String theClassMatchingPattern, String theMethodMatchingPattern, TracingMode theMode);
 	// returns serialized Counters
 	public byte[] setPatterns(String theClassMatchingPattern, String theMethodMatchingPattern, StackTraceMode theStackTraceMode);
 	// returns serialized Counters
 	public byte[] removePatterns();
+	// returns serialized Timings of methods timed so far (see TracingMode.TIMING)
+	public byte[] snapshotTimings();
+	public void resetTimings();
+	// returns serialized CallCounts of methods counted so far (see TracingMode.COUNT)
+	public byte[] snapshotCallCounts();
+	public void resetCallCounts();
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+import java.lang.instrument.*;
+import com.develorium.metracer.probe.*;
+
+// Agent-Class of a metracer jar. It can't be an Agent itself: looking up agentmain resolves types of all methods of
+// a class, and those of Agent refer to probe classes (e.g. TracingMode), which would get loaded by an agent's class
+// loader before a probe is published (see ProbePublisher)
+public class AgentMain {
+	public static void agentmain(String theArguments, Instrumentation theInstrumentation) {
+		String probePublishFailure = null;
+
+		try {
+			ProbePublisher.publish(theInstrumentation);
+		} catch(Throwable e) {
+			probePublishFailure = e.toString();
+		}
+
+		Agent.launch(theArguments, theInstrumentation, probePublishFailure);
+	}
+}
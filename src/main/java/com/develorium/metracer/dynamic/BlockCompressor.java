@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+import java.util.zip.*;
+
+// Deflates blocks of encoded events (frames of an EventStream, JMX batches). Each block is compressed on its own, so
+// it's decoded without others, which matters for batches since they may get lost. A block which doesn't get smaller
+// is sent as is. Used by a drain thread only, a deflater is not ended explicitly, as a stream may be closed by
+// another thread in the middle of a compression
+public class BlockCompressor {
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] output = new byte[0];
+
+	// returns a length of a compressed block in getOutput() or -1 if a block is not compressible
+	public int compress(byte[] theBlock, int theOffset, int theLength) {
+		if(output.length < theLength)
+			output = new byte[theLength];
+
+		deflater.reset();
+		deflater.setInput(theBlock, theOffset, theLength);
+		deflater.finish();
+		int rv = 0;
+
+		while(!deflater.finished() && rv < theLength)
+			rv += deflater.deflate(output, rv, theLength - rv);
+
+		return deflater.finished() && rv < theLength ? rv : -1;
+	}
+
+	public byte[] getOutput() {
+		return output;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+// Time of events in nanoseconds since epoch: System.nanoTime anchored to a wall clock, so events of a thread never
+// go back in time and are told apart within a millisecond. A wall clock may be adjusted meanwhile (e.g. by NTP), so
+// an anchor is checked periodically and is moved once a drift exceeds MaxDrift, a time may step then. Read by traced
+// threads, resynchronized by a drain thread
+class EventClock {
+	static final long MaxDrift = 10L * 1000000L;
+	private static final long ResyncInterval = 1000L * 1000000L;
+
+	// a pair of readings taken together, replaced as a whole
+	private static class Anchor {
+		final long nanoTime;
+		final long wallTime;
+
+		Anchor(long theNanoTime, long theWallTime) {
+			nanoTime = theNanoTime;
+			wallTime = theWallTime;
+		}
+	}
+
+	private volatile Anchor anchor = new Anchor(System.nanoTime(), System.currentTimeMillis() * 1000000L);
+	private long resyncTime = anchor.nanoTime;
+
+	long getTime() {
+		Anchor a = anchor;
+		return a.wallTime + (System.nanoTime() - a.nanoTime);
+	}
+
+	// called by a drain thread only, returns true if an anchor was moved
+	boolean resyncIfDue() {
+		long nanoTime = System.nanoTime();
+
+		if(nanoTime - resyncTime < ResyncInterval)
+			return false;
+
+		resyncTime = nanoTime;
+		return resync(nanoTime, System.currentTimeMillis() * 1000000L);
+	}
+
+	boolean resync(long theNanoTime, long theWallTime) {
+		Anchor a = anchor;
+		long drift = theWallTime - (a.wallTime + (theNanoTime - a.nanoTime));
+
+		if(Math.abs(drift) <= MaxDrift)
+			return false;
+
+		anchor = new Anchor(theNanoTime, theWallTime);
+		return true;
+	}
+}
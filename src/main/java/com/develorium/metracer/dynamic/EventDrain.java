@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import com.develorium.metracer.*;
+
+// Asynchronous delivery of events. Traced threads put events into own EventRings and never wait for a sink, a single
+// drain thread moves events from all rings to a sink. Events of a thread are delivered in order, events of different
+// threads may interleave differently than they happened. A drain thread runs only while there is a session to deliver
+// events of, an idle one polls rings less and less often
+public class EventDrain {
+	public interface Sink {
+		// an event is reused afterwards
+		public void consumeEvent(TraceEvent theEvent);
+		public void consumeDroppedEvents(String theThreadName, long theDroppedCount);
+		// called after each pass over rings, even if no events were consumed, e.g. to send out a pending batch
+		public void flush();
+	}
+
+	public static final int RingCapacity = 1024;
+	// max number of events taken from a ring at once, so a busy thread doesn't hold back the others
+	private static final int MaxDrainedCount = 256;
+	// a park of an idle drain thread doubles from a min to a max one, the first delivered event brings it back
+	private static final long MinIdleParkNanos = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long MaxIdleParkNanos = TimeUnit.MILLISECONDS.toNanos(32);
+	private final Sink sink;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+	private final List<EventRing> rings = new CopyOnWriteArrayList<EventRing>();
+	// of rings of finished threads
+	private volatile long retiredDroppedCount = 0;
+	private volatile Thread thread = null;
+	// used by a draining thread only
+	private final TraceEvent event = new TraceEvent();
+	private final ThreadLocal<EventRing> ring = new ThreadLocal<EventRing>() {
+		@Override
+		protected EventRing initialValue() {
+			EventRing rv = new EventRing(RingCapacity, Thread.currentThread());
+			rings.add(rv);
+			return rv;
+		}
+	};
+
+	public EventDrain(Sink theSink) {
+		sink = theSink;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy thePolicy) {
+		if(thePolicy == null)
+			throw new NullPointerException("Overflow policy is null");
+
+		overflowPolicy = thePolicy;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	// returns false if an event is dropped, theTime is in nanoseconds since epoch, theDetails is a String or
+	// Runtime.DeferredDetails
+	public boolean offer(int theMethodId, long theTime, int theKind, int theCallDepth, Object theDetails, List<StackTraceElement> theStackTraceElements) {
+		return ring.get().offer(theMethodId, theTime, theKind, theCallDepth, theDetails, theStackTraceElements, overflowPolicy);
+	}
+
+	public long getDroppedCount() {
+		long rv = retiredDroppedCount;
+
+		for(EventRing r : rings)
+			rv += r.getDroppedCount();
+
+		return rv;
+	}
+
+	public boolean getIsStarted() {
+		return thread != null;
+	}
+
+	public synchronized void start() {
+		if(thread != null)
+			return;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainContinuously();
+			}
+		}, "metracer event drain");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// delivers events offered so far before returning
+	public synchronized void stop() throws InterruptedException {
+		Thread t = thread;
+
+		if(t == null)
+			return;
+
+		thread = null;
+		t.interrupt();
+		t.join();
+		drainAvailable();
+	}
+
+	private void drainContinuously() {
+		Thread self = Thread.currentThread();
+		long parkNanos = MinIdleParkNanos;
+
+		while(thread == self) {
+			if(drainAvailable() > 0)
+				parkNanos = MinIdleParkNanos;
+			else {
+				LockSupport.parkNanos(parkNanos);
+				parkNanos = Math.min(parkNanos * 2, MaxIdleParkNanos);
+			}
+		}
+	}
+
+	// returns a number of delivered events
+	int drainAvailable() {
+		int rv = 0;
+
+		for(EventRing r : rings) {
+			try {
+				rv += r.drain(sink, event, MaxDrainedCount);
+				long droppedCount = r.takeDroppedCount();
+
+				if(droppedCount > 0)
+					sink.consumeDroppedEvents(r.getOwnerName(), droppedCount);
+			} catch(Throwable e) {
+				com.develorium.metracer.Runtime.say(String.format("Failed to deliver events of thread \"%s\": %s", r.getOwnerName(), e.getMessage()));
+			}
+
+			// a ring of a finished thread gets no more events
+			if(!r.isOwnerAlive() && r.isEmpty()) {
+				rings.remove(r);
+				retiredDroppedCount += r.getDroppedCount();
+			}
+		}
+
+		try {
+			sink.flush();
+		} catch(Throwable e) {
+			com.develorium.metracer.Runtime.say(String.format("Failed to flush events: %s", e.getMessage()));
+		}
+
+		return rv;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+import java.nio.*;
+import java.util.*;
+import com.develorium.metracer.*;
+
+// Compact binary form of TraceEvents. Names of classes, methods and threads are sent once, in definition records
+// which precede a first event referring to them, events carry ids instead. Records start with a kind byte:
+//   ClassDefinition: class id, name
+//   MethodDefinition: method id, class id, name
+//   ThreadDefinition: thread index, thread id, name
+//   StackDefinition: stack id, number of frames, frames
+//   TraceEvent.Entry, Exit, StackFrame: thread index, method id, call depth, time delta, details
+//   EntryWithStack: as TraceEvent.Entry followed by a stack id
+//   TraceEvent.Note: time delta, details
+// Numbers are varints, signed ones are zigzag-encoded, a time delta is a difference with a time of a previous event
+// in nanoseconds. Strings are a varint length of UTF-8 bytes followed by the bytes. A decoder (see EventDecoder) is
+// to get all records encoded since a creation or a last reset of an encoder. Used by a single thread
+public class EventEncoder {
+	public static final int ClassDefinition = 16;
+	public static final int MethodDefinition = 17;
+	public static final int ThreadDefinition = 18;
+	public static final int StackDefinition = 19;
+	public static final int EntryWithStack = 20;
+	// longer details are cut, so an event fits a buffer of a couple of hundreds of kilobytes
+	public static final int MaxDetailsLength = 16 * 1024;
+	private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+	private final BitSet definedMethodIds = new BitSet();
+	private final BitSet definedStackIds = new BitSet();
+	private final Map<Long, Integer> threadIndexes = new HashMap<Long, Integer>();
+	// events of a thread come in runs, so a last thread is looked up first
+	private long lastThreadId = -1;
+	private int lastThreadIndex = -1;
+	private long previousTime = 0;
+
+	public void reset() {
+		classIds.clear();
+		definedMethodIds.clear();
+		definedStackIds.clear();
+		threadIndexes.clear();
+		lastThreadId = -1;
+		lastThreadIndex = -1;
+		previousTime = 0;
+	}
+
+	// writes an event preceded by definitions it needs. If a buffer has not enough space, a BufferOverflowException
+	// is thrown and neither a buffer nor an encoder are changed
+	public void encode(TraceEvent theEvent, ByteBuffer theOutput, int theMaxDetailsLength) {
+		int start = theOutput.position();
+		String details = theEvent.details != null ? theEvent.details : "";
+
+		if(details.length() > theMaxDetailsLength)
+			details = details.substring(0, theMaxDetailsLength);
+
+		try {
+			if(theEvent.kind == TraceEvent.Note) {
+				theOutput.put((byte)TraceEvent.Note);
+				putSignedVarint(theOutput, theEvent.time - previousTime);
+				putString(theOutput, details);
+				previousTime = theEvent.time;
+				return;
+			}
+
+			int threadIndex = theEvent.threadId == lastThreadId ? lastThreadIndex : -1;
+			boolean isNewThread = false;
+
+			if(threadIndex < 0) {
+				Integer index = threadIndexes.get(theEvent.threadId);
+				isNewThread = index == null;
+				threadIndex = isNewThread ? threadIndexes.size() : index;
+			}
+
+			if(isNewThread) {
+				theOutput.put((byte)ThreadDefinition);
+				putVarint(theOutput, threadIndex);
+				putVarint(theOutput, theEvent.threadId);
+				putString(theOutput, theEvent.threadName);
+			}
+
+			boolean isNewMethod = !definedMethodIds.get(theEvent.methodId);
+			String className = theEvent.className != null ? theEvent.className : "";
+			boolean isNewClass = false;
+
+			if(isNewMethod) {
+				Integer classId = classIds.get(className);
+				isNewClass = classId == null;
+
+				if(isNewClass) {
+					classId = classIds.size();
+					theOutput.put((byte)ClassDefinition);
+					putVarint(theOutput, classId);
+					putString(theOutput, className);
+				}
+
+				theOutput.put((byte)MethodDefinition);
+				putVarint(theOutput, theEvent.methodId);
+				putVarint(theOutput, classId);
+				putString(theOutput, theEvent.methodName);
+			}
+
+			boolean isWithStack = theEvent.kind == TraceEvent.Entry && theEvent.stackId > 0 && theEvent.stackTraceElements != null;
+			boolean isNewStack = isWithStack && !definedStackIds.get(theEvent.stackId);
+
+			if(isNewStack) {
+				theOutput.put((byte)StackDefinition);
+				putVarint(theOutput, theEvent.stackId);
+				putVarint(theOutput, theEvent.stackTraceElements.size());
+
+				for(StackTraceElement element : theEvent.stackTraceElements)
+					putString(theOutput, element.toString());
+			}
+
+			theOutput.put((byte)(isWithStack ? EntryWithStack : theEvent.kind));
+			putVarint(theOutput, threadIndex);
+			putVarint(theOutput, theEvent.methodId);
+			putSignedVarint(theOutput, theEvent.callDepth);
+			putSignedVarint(theOutput, theEvent.time - previousTime);
+			putString(theOutput, details);
+
+			if(isWithStack)
+				putVarint(theOutput, theEvent.stackId);
+
+			// definitions are taken into account only once a whole event fits
+			if(isNewThread)
+				threadIndexes.put(theEvent.threadId, threadIndex);
+
+			if(isNewClass)
+				classIds.put(className, classIds.size());
+
+			if(isNewMethod)
+				definedMethodIds.set(theEvent.methodId);
+
+			if(isNewStack)
+				definedStackIds.set(theEvent.stackId);
+
+			lastThreadId = theEvent.threadId;
+			lastThreadIndex = threadIndex;
+			previousTime = theEvent.time;
+		} catch(BufferOverflowException e) {
+			theOutput.position(start);
+			throw e;
+		}
+	}
+
+	static void putVarint(ByteBuffer theOutput, long theValue) {
+		while((theValue & ~0x7FL) != 0) {
+			theOutput.put((byte)((theValue & 0x7F) | 0x80));
+			theValue >>>= 7;
+		}
+
+		theOutput.put((byte)theValue);
+	}
+
+	static void putSignedVarint(ByteBuffer theOutput, long theValue) {
+		putVarint(theOutput, (theValue << 1) ^ (theValue >> 63));
+	}
+
+	// a lone surrogate becomes '?', as String.getBytes would make it
+	static void putString(ByteBuffer theOutput, String theString) {
+		if(theString == null)
+			theString = "";
+
+		int length = theString.length();
+		putVarint(theOutput, getUtf8Length(theString));
+
+		for(int i = 0; i < length; ++i) {
+			char c = theString.charAt(i);
+
+			if(c < 0x80) {
+				theOutput.put((byte)c);
+			} else if(c < 0x800) {
+				theOutput.put((byte)(0xC0 | c >> 6));
+				theOutput.put((byte)(0x80 | c & 0x3F));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(theString.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, theString.charAt(++i));
+				theOutput.put((byte)(0xF0 | codePoint >> 18));
+				theOutput.put((byte)(0x80 | codePoint >> 12 & 0x3F));
+				theOutput.put((byte)(0x80 | codePoint >> 6 & 0x3F));
+				theOutput.put((byte)(0x80 | codePoint & 0x3F));
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				theOutput.put((byte)'?');
+			} else {
+				theOutput.put((byte)(0xE0 | c >> 12));
+				theOutput.put((byte)(0x80 | c >> 6 & 0x3F));
+				theOutput.put((byte)(0x80 | c & 0x3F));
+			}
+		}
+	}
+
+	private static int getUtf8Length(String theString) {
+		int length = theString.length();
+		int rv = length;
+
+		for(int i = 0; i < length; ++i) {
+			char c = theString.charAt(i);
+
+			if(c < 0x80)
+				continue;
+			else if(c < 0x800)
+				rv += 1;
+			else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(theString.charAt(i + 1))) {
+				// a pair of chars takes 4 bytes
+				rv += 2;
+				++i;
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+				continue;
+			else
+				rv += 2;
+		}
+
+		return rv;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import com.develorium.metracer.*;
+import com.develorium.metracer.probe.*;
+
+// Bounded single-producer ring of events of a thread. The owning thread offers events, a drain thread consumes them,
+// neither ever blocks. An event is a fixed-size record held in parallel arrays. A producer may drop the oldest event
+// of a full ring (see OverflowPolicy), so a consumer claims an event by a CAS of a head and discards what it has read
+// if the CAS fails. Details are a String or Runtime.DeferredDetails, which are rendered by a drain thread once an
+// event is claimed. Consumed slots keep their references until overwritten
+class EventRing {
+	// positions are kept a cache line apart from each other
+	private static final int Padding = 8;
+	// next event to consume, advanced by a consumer and by a producer dropping the oldest event
+	private static final int HeadIndex = Padding;
+	// next event to produce, advanced by a producer only
+	private static final int TailIndex = 2 * Padding;
+	// written by a producer only
+	private static final int DroppedCountIndex = 2 * Padding + 1;
+	private final AtomicLongArray positions = new AtomicLongArray(3 * Padding);
+	private final int mask;
+	private final int[] methodIds;
+	private final long[] times;
+	private final byte[] kinds;
+	private final int[] callDepths;
+	private final Object[] details;
+	private final Object[] stackTraces;
+	private final WeakReference<Thread> owner;
+	private final long ownerId;
+	private final String ownerName;
+	// producer-side copies
+	private long tail = 0;
+	private long cachedHead = 0;
+	private int overflowsCount = 0;
+	// consumer-side
+	private long reportedDroppedCount = 0;
+
+	EventRing(int theCapacity, Thread theOwner) {
+		if(theCapacity <= 0 || (theCapacity & (theCapacity - 1)) != 0)
+			throw new IllegalArgumentException(String.format("Capacity of an event ring must be a power of two but %d was given", theCapacity));
+
+		mask = theCapacity - 1;
+		methodIds = new int[theCapacity];
+		times = new long[theCapacity];
+		kinds = new byte[theCapacity];
+		callDepths = new int[theCapacity];
+		details = new Object[theCapacity];
+		stackTraces = new Object[theCapacity];
+		owner = new WeakReference<Thread>(theOwner);
+		ownerId = theOwner.getId();
+		ownerName = theOwner.getName();
+	}
+
+	// called by an owning thread only, returns false if an event is dropped
+	boolean offer(int theMethodId, long theTime, int theKind, int theCallDepth, Object theDetails, List<StackTraceElement> theStackTraceElements, OverflowPolicy thePolicy) {
+		long t = tail;
+
+		if(t - cachedHead > mask) {
+			cachedHead = positions.get(HeadIndex);
+
+			if(t - cachedHead > mask && !makeRoom(t, thePolicy)) {
+				positions.lazySet(DroppedCountIndex, positions.get(DroppedCountIndex) + 1);
+				return false;
+			}
+		}
+
+		int i = (int)t & mask;
+		methodIds[i] = theMethodId;
+		times[i] = theTime;
+		kinds[i] = (byte)theKind;
+		callDepths[i] = theCallDepth;
+		details[i] = theDetails;
+		stackTraces[i] = theStackTraceElements;
+		tail = t + 1;
+		positions.lazySet(TailIndex, t + 1); // publishes an event
+		return true;
+	}
+
+	private boolean makeRoom(long theTail, OverflowPolicy thePolicy) {
+		if(thePolicy == OverflowPolicy.DROP_NEWEST || (thePolicy == OverflowPolicy.SAMPLE && ++overflowsCount % OverflowPolicy.SampleRate != 0))
+			return false;
+
+		long head = cachedHead;
+
+		while(theTail - head > mask) {
+			if(positions.compareAndSet(HeadIndex, head, head + 1)) {
+				positions.lazySet(DroppedCountIndex, positions.get(DroppedCountIndex) + 1);
+				++head;
+			} else
+				head = positions.get(HeadIndex);
+		}
+
+		cachedHead = head;
+		return true;
+	}
+
+	// called by a drain thread only, passes up to theMaxCount events to a sink and returns their number. An event
+	// is filled into theEvent, which is reused for all of them
+	int drain(EventDrain.Sink theSink, TraceEvent theEvent, int theMaxCount) {
+		int rv = 0;
+		long head = positions.get(HeadIndex);
+
+		while(rv < theMaxCount && head < positions.get(TailIndex)) {
+			int i = (int)head & mask;
+			int methodId = methodIds[i];
+			long time = times[i];
+			int kind = kinds[i];
+			int callDepth = callDepths[i];
+			Object eventDetails = details[i];
+			Object stackTraceElements = stackTraces[i];
+
+			// a failed CAS means the event was dropped by a producer, which could be overwriting it by now
+			if(!positions.compareAndSet(HeadIndex, head, head + 1)) {
+				head = positions.get(HeadIndex);
+				continue;
+			}
+
+			++head;
+			++rv;
+			@SuppressWarnings("unchecked")
+			List<StackTraceElement> elements = (List<StackTraceElement>)stackTraceElements;
+			MethodRegistry.Method method = MethodRegistry.get(methodId);
+			theEvent.kind = kind;
+			theEvent.time = time;
+			theEvent.threadId = ownerId;
+			theEvent.threadName = ownerName;
+			theEvent.methodId = methodId;
+			theEvent.className = method != null ? method.getClassName() : null;
+			theEvent.methodName = method != null ? method.getMethodName() : null;
+			theEvent.callDepth = callDepth;
+			theEvent.details = eventDetails instanceof com.develorium.metracer.Runtime.DeferredDetails
+				? ((com.develorium.metracer.Runtime.DeferredDetails)eventDetails).render() : (String)eventDetails;
+			theEvent.stackTraceElements = elements;
+			theEvent.stackId = 0;
+			theSink.consumeEvent(theEvent);
+		}
+
+		return rv;
+	}
+
+	// called by a drain thread only, returns a number of events dropped since a previous call
+	long takeDroppedCount() {
+		long droppedCount = positions.get(DroppedCountIndex);
+		long rv = droppedCount - reportedDroppedCount;
+		reportedDroppedCount = droppedCount;
+		return rv;
+	}
+
+	long getDroppedCount() {
+		return positions.get(DroppedCountIndex);
+	}
+
+	boolean isEmpty() {
+		return positions.get(HeadIndex) >= positions.get(TailIndex);
+	}
+
+	boolean isOwnerAlive() {
+		Thread t = owner.get();
+		return t != null && t.isAlive();
+	}
+
+	String getOwnerName() {
+		return ownerName;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import com.develorium.metracer.*;
+
+// Alternative to notifications: events are streamed to a single client over a loopback TCP connection. A client
+// gets a port and a token via AgentMXBean and sends the token first. A stream is a sequence of frames: a header (a
+// length of a payload, a number of events in it and a length of a payload before a compression or 0 if it's not
+// compressed) and a payload of events encoded by an EventEncoder, which lasts for a whole connection, both are sent
+// by a single gathering write from direct buffers (except a compressed payload). A compressed stream sends a frame once it's FrameInterval ms
+// old or full, so frames grow with a rate of events and compress better. Writes block, so a slow client
+// holds a drain thread back and traced threads face an OverflowPolicy of their rings, instead of notifications
+// piling up in a connector buffer. Events are appended by a drain thread only
+public class EventStream {
+	public static final int FrameHeaderSize = 12;
+	public static final int MaxPayloadSize = 256 * 1024;
+	private static final long FrameInterval = 20;
+	private static final int TokenReadTimeout = 5000;
+	private final ServerSocketChannel serverChannel;
+	private final long token;
+	private volatile SocketChannel channel = null;
+	private volatile boolean isClosed = false;
+	private final ByteBuffer header = ByteBuffer.allocateDirect(FrameHeaderSize);
+	private final ByteBuffer payload;
+	private final ByteBuffer[] frame;
+	private final EventEncoder encoder = new EventEncoder();
+	// null if a stream is not compressed, a deflater takes a payload from a heap array then
+	private final BlockCompressor compressor;
+	private int eventsCount = 0;
+	private long payloadTime = 0;
+
+	public EventStream(boolean theIsCompressed) throws IOException {
+		compressor = theIsCompressed ? new BlockCompressor() : null;
+		payload = theIsCompressed ? ByteBuffer.allocate(MaxPayloadSize) : ByteBuffer.allocateDirect(MaxPayloadSize);
+		frame = new ByteBuffer[] { header, payload };
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1);
+		token = new SecureRandom().nextLong();
+		Thread acceptor = new Thread("metracer event stream acceptor") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public boolean getIsConnected() {
+		return channel != null && !isClosed;
+	}
+
+	// returns false if there is no client (yet or anymore), an event is not taken then
+	public boolean append(TraceEvent theEvent) {
+		if(channel == null || isClosed)
+			return false;
+
+		if(!tryAppend(theEvent, EventEncoder.MaxDetailsLength)) {
+			flush();
+
+			// details of an event bigger than a whole payload are cut
+			if(!tryAppend(theEvent, EventEncoder.MaxDetailsLength))
+				tryAppend(theEvent, MaxPayloadSize / 8);
+		}
+
+		return true;
+	}
+
+	// called after each pass of a drain thread
+	public void flushIfDue() {
+		if(compressor == null || System.currentTimeMillis() - payloadTime >= FrameInterval)
+			flush();
+	}
+
+	public void flush() {
+		SocketChannel c = channel;
+
+		if(c == null || payload.position() == 0)
+			return;
+
+		try {
+			int rawLength = payload.position();
+			int compressedLength = compressor != null ? compressor.compress(payload.array(), 0, rawLength) : -1;
+			header.clear();
+			header.putInt(compressedLength >= 0 ? compressedLength : rawLength);
+			header.putInt(eventsCount);
+			header.putInt(compressedLength >= 0 ? rawLength : 0);
+			header.flip();
+			frame[1] = compressedLength >= 0 ? ByteBuffer.wrap(compressor.getOutput(), 0, compressedLength) : (ByteBuffer)payload.flip();
+
+			while(frame[1].hasRemaining())
+				c.write(frame);
+		} catch(IOException e) {
+			if(!isClosed)
+				com.develorium.metracer.Runtime.say(String.format("Event stream closed, %d events lost: %s", eventsCount, e.getMessage()));
+
+			close();
+		} finally {
+			payload.clear();
+			eventsCount = 0;
+		}
+	}
+
+	// may be called by any thread, unblocks a drain thread stuck in a write
+	public void close() {
+		isClosed = true;
+		closeQuietly(serverChannel);
+		closeQuietly(channel);
+	}
+
+	private boolean tryAppend(TraceEvent theEvent, int theMaxDetailsLength) {
+		try {
+			encoder.encode(theEvent, payload, theMaxDetailsLength);
+		} catch(BufferOverflowException e) {
+			return false;
+		}
+
+		if(eventsCount++ == 0)
+			payloadTime = System.currentTimeMillis();
+
+		return true;
+	}
+
+	// a first connection which presents a valid token becomes a client, a listening socket is closed then
+	private void accept() {
+		while(!isClosed) {
+			SocketChannel c = null;
+
+			try {
+				c = serverChannel.accept();
+				c.socket().setSoTimeout(TokenReadTimeout);
+
+				if(new DataInputStream(c.socket().getInputStream()).readLong() != token) {
+					com.develorium.metracer.Runtime.say("Event stream connection with a wrong token rejected");
+					closeQuietly(c);
+					continue;
+				}
+
+				c.socket().setTcpNoDelay(true);
+				channel = c;
+				closeQuietly(serverChannel);
+
+				// a stream could be closed in the meantime
+				if(isClosed)
+					closeQuietly(c);
+
+				return;
+			} catch(Throwable e) {
+				closeQuietly(c);
+
+				if(!isClosed)
+					com.develorium.metracer.Runtime.say(String.format("Failed to accept event stream connection: %s", e.getMessage()));
+
+				if(!serverChannel.isOpen())
+					return;
+			}
+		}
+	}
+
+	private static void closeQuietly(Channel theChannel) {
+		if(theChannel == null)
+			return;
+
+		try {
+			theChannel.close();
+		} catch(IOException e) {
+		}
+	}
+}
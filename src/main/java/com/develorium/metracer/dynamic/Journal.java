@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import com.develorium.metracer.*;
+
+// Append-only journal of events written into a directory of memory-mapped segment files, which are preallocated
+// with SegmentSize bytes each. A segment starts with a header (magic, version, index of a segment) followed by
+// records: a length of an event encoded by an EventEncoder and its bytes. An encoder is reset for each segment, so
+// segments are decoded independently of each other. A length is stored after the bytes, so
+// a reader (see JournalReader), which may run concurrently in another process, never sees a partial record: zero
+// length means there is nothing more yet, EndOfSegment - continue with a next segment, EndOfJournal - a journal is
+// closed. Data lives in a page cache, hence it survives a crash of a target JVM. Only MaxSegmentsCount latest
+// segments are kept, an oldest one is deleted when a next one is opened, so a journal left being written doesn't
+// fill a disk. Events carry argument and return values, so a directory is created anew (never a pre-created one
+// or a symlink in a shared temp directory) and it and its segments are readable by an owner only. Appended by a
+// drain thread only, a lock just keeps a journal from being closed in the middle of an
+// append
+public class Journal {
+	public static final int Magic = 0x4D544A31; // "MTJ1"
+	public static final int Version = 2;
+	public static final int HeaderSize = 12;
+	public static final int EndOfSegment = -1;
+	public static final int EndOfJournal = -2;
+	public static final int SegmentSize = 64 * 1024 * 1024;
+	public static final int MaxSegmentsCount = 16;
+	private static final int LengthSize = 4;
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegmentsCount;
+	private final EventEncoder encoder = new EventEncoder();
+	private MappedByteBuffer segment = null;
+	private int segmentIndex = -1;
+	private long recordsCount = 0;
+
+	public Journal(File theDirectory) {
+		this(theDirectory, SegmentSize, MaxSegmentsCount);
+	}
+
+	Journal(File theDirectory, int theSegmentSize, int theMaxSegmentsCount) {
+		directory = theDirectory;
+		segmentSize = theSegmentSize;
+		maxSegmentsCount = theMaxSegmentsCount;
+
+		if(!directory.mkdir())
+			throw new RuntimeException(String.format("Failed to create journal directory \"%s\", it exists already or its parent is not writable", directory.getAbsolutePath()));
+
+		restrictToOwner(directory);
+
+		openNextSegment();
+	}
+
+	public static String getSegmentFileName(int theIndex) {
+		return String.format("segment-%06d.mtj", theIndex);
+	}
+
+	// returns -1 if a file is not a segment
+	public static int getSegmentIndex(String theFileName) {
+		if(!theFileName.matches("segment-\\d{6,}\\.mtj"))
+			return -1;
+
+		return Integer.parseInt(theFileName.substring(8, theFileName.length() - 4));
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getRecordsCount() {
+		return recordsCount;
+	}
+
+	// returns false if a journal is closed already
+	public synchronized boolean append(TraceEvent theEvent) {
+		if(segment == null)
+			return false;
+
+		if(!tryAppend(theEvent, EventEncoder.MaxDetailsLength)) {
+			// a next segment exists by the time a reader meets an end of a current one
+			MappedByteBuffer previousSegment = segment;
+			openNextSegment();
+			finishSegment(previousSegment, EndOfSegment);
+
+			// details of an event bigger than a whole segment are cut
+			if(!tryAppend(theEvent, EventEncoder.MaxDetailsLength))
+				tryAppend(theEvent, (segmentSize - HeaderSize) / 8);
+		}
+
+		++recordsCount;
+		return true;
+	}
+
+	public synchronized void close() {
+		if(segment == null)
+			return;
+
+		finishSegment(segment, EndOfJournal);
+		segment = null;
+	}
+
+	// an event is encoded straight into a mapped segment, space for a length of a next record is always left, so
+	// an end marker fits in
+	private boolean tryAppend(TraceEvent theEvent, int theMaxDetailsLength) {
+		int start = segment.position();
+		segment.position(start + LengthSize);
+		segment.limit(segment.capacity() - LengthSize);
+
+		try {
+			encoder.encode(theEvent, segment, theMaxDetailsLength);
+		} catch(BufferOverflowException e) {
+			segment.limit(segment.capacity());
+			segment.position(start);
+			return false;
+		}
+
+		int end = segment.position();
+		segment.limit(segment.capacity());
+		segment.putInt(start, end - start - LengthSize);
+		return true;
+	}
+
+	private static void finishSegment(MappedByteBuffer theSegment, int theMarker) {
+		theSegment.putInt(theSegment.position(), theMarker);
+		theSegment.force();
+	}
+
+	private void openNextSegment() {
+		File file = new File(directory, getSegmentFileName(segmentIndex + 1));
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try {
+				restrictToOwner(file);
+				raf.setLength(segmentSize);
+				// a mapping stays valid after a channel is closed
+				segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			} finally {
+				raf.close();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(String.format("Failed to create journal segment \"%s\": %s", file.getAbsolutePath(), e.getMessage()), e);
+		}
+
+		++segmentIndex;
+		deleteOldSegment();
+		encoder.reset();
+		segment.order(ByteOrder.BIG_ENDIAN);
+		// a reader takes a segment without a magic or a version as not written yet, so a magic goes last
+		segment.putInt(4, Version);
+		segment.putInt(8, segmentIndex);
+		segment.putInt(0, Magic);
+		segment.position(HeaderSize);
+	}
+
+	// nobody else can look into a restricted directory, so its files can't be opened before they are restricted as
+	// well. Windows doesn't support clearing permissions of others this way, a temp directory is per user there
+	private static void restrictToOwner(File theFile) {
+		boolean isRestricted = theFile.setReadable(false, false) & theFile.setWritable(false, false) & theFile.setExecutable(false, false)
+			& theFile.setReadable(true, true) & theFile.setWritable(true, true) & (!theFile.isDirectory() || theFile.setExecutable(true, true));
+
+		if(!isRestricted && File.separatorChar == '/')
+			throw new RuntimeException(String.format("Failed to restrict access to \"%s\" to its owner", theFile.getAbsolutePath()));
+	}
+
+	// a reader which maps a deleted segment still reads it, a failure to delete one (e.g. it's mapped on Windows)
+	// is ignored, it's just left on a disk
+	private void deleteOldSegment() {
+		int index = segmentIndex - maxSegmentsCount;
+
+		if(index >= 0)
+			new File(directory, getSegmentFileName(index)).delete();
+	}
+}
@@ -41,12 +41,13 @@ public class MetracerClassFileTransformer implements ClassFileTransformer {
 			if(patterns == null)
 				return null; // no transform was performed
 
-			InstrumentClassResult icr = instrumentClass(theClassfileBuffer, theLoader != null ? theLoader : getClass().getClassLoader(), patterns);
+			ClassInstrumenter.Result icr = ClassInstrumenter.instrument(theClassfileBuffer, theLoader != null ? theLoader : getClass().getClassLoader(), patterns, ProbeEmission.choose(theLoader, agent.getIsWithInvokeDynamic()));
 
 			if(icr.isChanged) {
 				String classLoaderName = theLoader != null ? theLoader.toString() : "<boostrap>";
 				String message = String.format("%s (class loader %s) was instrumented (%s, %s)",  theClassName, classLoaderName, patterns.getClassMatchingPattern(), patterns.getMethodMatchingPattern());
 				com.develorium.metracer.Runtime.say(message);
+				CodeSizes.sayAboutGrowth(theClassName, theClassfileBuffer, icr.bytecode);
 				return icr.bytecode;
 			}
 
@@ -59,24 +60,4 @@ public class MetracerClassFileTransformer implements ClassFileTransformer {
 	
 		return theClassfileBuffer;
 	}
-
-	private static class InstrumentClassResult {
-		boolean isChanged = false;
-		byte[] bytecode = null;
-	} 
-
-	private InstrumentClassResult instrumentClass(byte theBytecode[], ClassLoader theLoader, Patterns thePatterns) {
-		ClassReader reader = new ClassReader(theBytecode);
-		ClassNode parsedClass = new ClassNode();
-		reader.accept(parsedClass, 0);
-		
-		MetracerClassWriter writer = new MetracerClassWriter(reader, theLoader);
-		MetracerClassVisitor visitor = new MetracerClassVisitor(writer, theLoader, thePatterns, parsedClass);
-		reader.accept(visitor, ClassReader.EXPAND_FRAMES);
-
-		InstrumentClassResult rv = new InstrumentClassResult();
-		rv.isChanged = visitor.getIsChanged();
-		rv.bytecode = visitor.getIsChanged() ? writer.toByteArray() : theBytecode;
-		return rv;
-	}
 }
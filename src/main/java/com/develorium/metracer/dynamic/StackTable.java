@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.dynamic;
+
+import java.util.*;
+
+// Ids of distinct stack traces of entries. A stack trace is hashed once by a drain thread, encoders send frames of
+// it only for a first event referring to an id (see EventEncoder), and it's reported in a PRINT_AND_REPORT mode once.
+// A table is cleared once it reaches MaxSize, ids are never reused though, as encoders remember sent ones
+class StackTable {
+	static final int MaxSize = 10000;
+	private final Map<List<StackTraceElement>, Integer> ids = new HashMap<List<StackTraceElement>, Integer>();
+	private int nextId = 1;
+	private boolean isLastNew = false;
+
+	int intern(List<StackTraceElement> theStackTraceElements) {
+		Integer id = ids.get(theStackTraceElements);
+		isLastNew = id == null;
+
+		if(id != null)
+			return id;
+
+		if(ids.size() >= MaxSize)
+			ids.clear();
+
+		id = nextId++;
+		ids.put(theStackTraceElements, id);
+		return id;
+	}
+
+	// whether a stack trace given to a last intern was not there before
+	boolean getIsLastNew() {
+		return isLastNew;
+	}
+
+	void clear() {
+		ids.clear();
+	}
+}
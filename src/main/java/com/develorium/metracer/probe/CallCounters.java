@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.util.concurrent.atomic.*;
+
+// Numbers of calls of counted methods (see TracingMode.COUNT) indexed by a method id. Each of Stripes has own chunks
+// of counters, a chunk is padded at both ends so counters of different stripes never share a cache line. Counters
+// of a stripe are summed up only when read. An increment is lock-free and, once a chunk is created, allocation-free
+public class CallCounters {
+	private static final int ChunkShift = 10;
+	private static final int ChunkSize = 1 << ChunkShift;
+	// methods with greater ids are not counted
+	private static final int MaxChunksCount = 1024;
+	// a cache line worth of longs
+	private static final int Padding = 8;
+	// chunk of a stripe s for method ids starting from c << ChunkShift lies at s * MaxChunksCount + c
+	private static final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<AtomicLongArray>(Stripes.Count * MaxChunksCount);
+
+	public static void increment(int theMethodId) {
+		int chunkIndex = theMethodId >>> ChunkShift;
+
+		if(theMethodId < 0 || chunkIndex >= MaxChunksCount)
+			return;
+
+		int index = Stripes.getIndex() * MaxChunksCount + chunkIndex;
+		AtomicLongArray chunk = chunks.get(index);
+
+		if(chunk == null) {
+			chunks.compareAndSet(index, null, new AtomicLongArray(ChunkSize + 2 * Padding));
+			chunk = chunks.get(index);
+		}
+
+		chunk.incrementAndGet(Padding + (theMethodId & (ChunkSize - 1)));
+	}
+
+	public static long get(int theMethodId) {
+		int chunkIndex = theMethodId >>> ChunkShift;
+
+		if(theMethodId < 0 || chunkIndex >= MaxChunksCount)
+			return 0;
+
+		long rv = 0;
+
+		for(int i = 0; i < Stripes.Count; ++i) {
+			AtomicLongArray chunk = chunks.get(i * MaxChunksCount + chunkIndex);
+
+			if(chunk != null)
+				rv += chunk.get(Padding + (theMethodId & (ChunkSize - 1)));
+		}
+
+		return rv;
+	}
+
+	// calls counted concurrently with a reset may survive it
+	public static void reset() {
+		for(int i = 0; i < chunks.length(); ++i) {
+			AtomicLongArray chunk = chunks.get(i);
+
+			if(chunk == null)
+				continue;
+
+			for(int j = 0; j < chunk.length(); ++j)
+				chunk.set(j, 0);
+		}
+	}
+}
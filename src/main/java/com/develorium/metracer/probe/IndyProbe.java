@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.lang.invoke.*;
+import java.lang.ref.*;
+import java.util.*;
+
+// Bootstrap of invokedynamic-linked probes. Call sites of an instrumented method are relinked when its tracing mode
+// changes, hence no retransformation is needed for that. Probe which is switched off is linked to a no-op and is 
+// folded to nothing by JIT. Published along with Probe, requires Java 7 so must be referenced only if 
+// ProbePublisher.isInvokeDynamicSupported. A method is linked in a mode it has in a MethodRegistry, so a linked method
+// is kept only while it has call sites which are not collected
+public class IndyProbe {
+	// call sites of previous versions of a class (before retransformation) and of unloaded classes are let to go
+	static class LinkedCallSite extends WeakReference<MutableCallSite> {
+		final int methodId;
+		final String probeName;
+
+		LinkedCallSite(MutableCallSite theCallSite, int theMethodId, String theProbeName) {
+			super(theCallSite, collectedCallSites);
+			methodId = theMethodId;
+			probeName = theProbeName;
+		}
+	}
+
+	static class LinkedMethod {
+		TracingMode mode = null;
+		List<LinkedCallSite> callSites = new LinkedList<LinkedCallSite>();
+	}
+
+	private static Map<Integer, LinkedMethod> linkedMethods = new HashMap<Integer, LinkedMethod>();
+	private static final ReferenceQueue<MutableCallSite> collectedCallSites = new ReferenceQueue<MutableCallSite>();
+	private static TracingMode defaultMode = TracingMode.TRACE;
+
+	public static synchronized CallSite bootstrap(MethodHandles.Lookup theLookup, String theProbeName, MethodType theProbeType, int theMethodId) {
+		expungeCollectedCallSites();
+		LinkedMethod method = linkedMethods.get(theMethodId);
+
+		if(method == null) {
+			MethodRegistry.Method registeredMethod = MethodRegistry.get(theMethodId);
+			method = new LinkedMethod();
+			method.mode = registeredMethod != null ? registeredMethod.getTracingMode() : defaultMode;
+			linkedMethods.put(theMethodId, method);
+		}
+
+		MutableCallSite callSite = new MutableCallSite(theProbeType);
+		callSite.setTarget(getTarget(theProbeName, theProbeType, method.mode));
+		method.callSites.add(new LinkedCallSite(callSite, theMethodId, theProbeName));
+		return callSite;
+	}
+
+	// call sites of deinstrumented classes are never relinked, they'd be collected along with old versions of classes
+	public static synchronized void unlinkMethods() {
+		linkedMethods.clear();
+	}
+
+	static synchronized boolean isLinked(int theMethodId) {
+		expungeCollectedCallSites();
+		return linkedMethods.containsKey(theMethodId);
+	}
+
+	private static void expungeCollectedCallSites() {
+		for(Reference<? extends MutableCallSite> ref = collectedCallSites.poll(); ref != null; ref = collectedCallSites.poll()) {
+			LinkedCallSite linkedCallSite = (LinkedCallSite)ref;
+			LinkedMethod method = linkedMethods.get(linkedCallSite.methodId);
+
+			if(method != null && method.callSites.remove(linkedCallSite) && method.callSites.isEmpty())
+				linkedMethods.remove(linkedCallSite.methodId);
+		}
+	}
+
+	public static synchronized void setDefaultTracingMode(TracingMode theMode) {
+		defaultMode = theMode;
+	}
+
+	// returns a number of methods which were relinked
+	public static synchronized int setTracingMode(MethodRegistry.MethodSelector theSelector, TracingMode theMode) {
+		expungeCollectedCallSites();
+		List<MutableCallSite> relinkedCallSites = new ArrayList<MutableCallSite>();
+		int rv = 0;
+
+		for(Map.Entry<Integer, LinkedMethod> entry : linkedMethods.entrySet()) {
+			LinkedMethod method = entry.getValue();
+
+			if(method.mode == theMode || (theSelector != null && !isSelected(theSelector, entry.getKey())))
+				continue;
+
+			method.mode = theMode;
+			++rv;
+			Iterator<LinkedCallSite> it = method.callSites.iterator();
+
+			while(it.hasNext()) {
+				LinkedCallSite linkedCallSite = it.next();
+				MutableCallSite callSite = linkedCallSite.get();
+
+				// expunged when it's polled from a queue
+				if(callSite == null)
+					continue;
+
+				callSite.setTarget(getTarget(linkedCallSite.probeName, callSite.type(), theMode));
+				relinkedCallSites.add(callSite);
+			}
+		}
+
+		if(!relinkedCallSites.isEmpty())
+			MutableCallSite.syncAll(relinkedCallSites.toArray(new MutableCallSite[relinkedCallSites.size()]));
+
+		return rv;
+	}
+
+	private static boolean isSelected(MethodRegistry.MethodSelector theSelector, int theMethodId) {
+		MethodRegistry.Method method = MethodRegistry.get(theMethodId);
+		return method != null && theSelector.isSelected(method.getClassName(), method.getMethodName());
+	}
+
+	public static void nop() {
+	}
+
+	private static MethodHandle getTarget(String theProbeName, MethodType theProbeType, TracingMode theMode) {
+		try {
+			if(isProbeNeeded(theProbeName, theMode))
+				return MethodHandles.publicLookup().findStatic(Probe.class, theProbeName, theProbeType);
+		} catch(Throwable e) {
+			// unknown probe, fall back to a no-op
+		}
+
+		return getNopTarget(theProbeType);
+	}
+
+	// timed method captures no arguments, counted one needs an entry probe only (see Probe.getHandler)
+	private static boolean isProbeNeeded(String theProbeName, TracingMode theMode) {
+		if(theMode == TracingMode.OFF)
+			return false;
+		else if(theMode == TracingMode.TRACE)
+			return true;
+		else if(theProbeName.equals("getArgumentSlots"))
+			return false;
+
+		return theMode != TracingMode.COUNT || theProbeName.equals("traceEntry");
+	}
+
+	private static MethodHandle getNopTarget(MethodType theProbeType) {
+		MethodHandle target = null;
+		Class<?> returnType = theProbeType.returnType();
+
+		if(returnType == void.class) {
+			try {
+				target = MethodHandles.publicLookup().findStatic(IndyProbe.class, "nop", MethodType.methodType(void.class));
+			} catch(Throwable e) {
+				throw new RuntimeException(String.format("Failed to link no-op probe: %s", e.getMessage()), e);
+			}
+		} else {
+			Object defaultValue = returnType.isPrimitive() ? java.lang.reflect.Array.get(java.lang.reflect.Array.newInstance(returnType, 1), 0) : null;
+			target = MethodHandles.constant(returnType, defaultValue);
+		}
+
+		return MethodHandles.dropArguments(target, 0, theProbeType.parameterList());
+	}
+}
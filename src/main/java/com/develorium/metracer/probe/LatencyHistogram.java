@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.util.concurrent.atomic.*;
+
+// Log-linear histogram of durations (in nanoseconds) in the HdrHistogram fashion. Values below SubBucketCount are
+// counted exactly, greater ones fall into SubBucketCount / 2 linear sub-buckets per each power of two, so a value
+// reported for a percentile is off by at most 1 / 16 of it. Recording is lock-free and allocation-free (once a
+// stripe is created). Each of Stripes gets own counters, they are merged only when a snapshot is taken
+public class LatencyHistogram {
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long min;
+		private final long max;
+
+		Snapshot(long[] theCounts, long theCount, long theSum, long theMin, long theMax) {
+			counts = theCounts;
+			count = theCount;
+			sum = theSum;
+			min = theMin;
+			max = theMax;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMin() {
+			return count > 0 ? min : 0;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count > 0 ? (double)sum / count : 0;
+		}
+
+		// highest value equivalent to the one at a given percentile (0..100), exact min / max at the edges
+		public long getValueAtPercentile(double thePercentile) {
+			if(count == 0)
+				return 0;
+
+			long rank = (long)Math.ceil(Math.min(thePercentile, 100.0) / 100.0 * count);
+			long accumulatedCount = 0;
+
+			for(int i = 0; i < counts.length; ++i) {
+				accumulatedCount += counts[i];
+
+				if(accumulatedCount >= rank && accumulatedCount > 0)
+					return Math.max(min, Math.min(max, getHighestEquivalentValue(i)));
+			}
+
+			return max;
+		}
+	}
+
+	static final int SubBucketBits = 5;
+	static final int SubBucketCount = 1 << SubBucketBits;
+	static final int SubBucketHalfCount = SubBucketCount >> 1;
+	// durations are capped to ~18 minutes
+	static final long MaxValue = (1L << 40) - 1;
+	static final int BucketsCount = getIndex(MaxValue) + 1;
+	// each stripe holds counts by bucket index followed by these
+	private static final int CountIndex = BucketsCount;
+	private static final int SumIndex = BucketsCount + 1;
+	private static final int MinIndex = BucketsCount + 2;
+	private static final int MaxIndex = BucketsCount + 3;
+	private static final int StripeLength = BucketsCount + 4;
+	private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(Stripes.Count);
+
+	public void record(long theValue) {
+		long value = theValue < 0 ? 0 : Math.min(theValue, MaxValue);
+		AtomicLongArray stripe = getStripe();
+		stripe.incrementAndGet(getIndex(value));
+		stripe.addAndGet(SumIndex, value);
+		long min = stripe.get(MinIndex);
+
+		while(value < min && !stripe.compareAndSet(MinIndex, min, value))
+			min = stripe.get(MinIndex);
+
+		long max = stripe.get(MaxIndex);
+
+		while(value > max && !stripe.compareAndSet(MaxIndex, max, value))
+			max = stripe.get(MaxIndex);
+
+		// incremented last, so a snapshot never sees a count without a value
+		stripe.incrementAndGet(CountIndex);
+	}
+
+	public Snapshot getSnapshot() {
+		long[] counts = new long[BucketsCount];
+		long count = 0;
+		long sum = 0;
+		long min = Long.MAX_VALUE;
+		long max = 0;
+
+		for(int i = 0; i < Stripes.Count; ++i) {
+			AtomicLongArray stripe = stripes.get(i);
+
+			if(stripe == null)
+				continue;
+
+			count += stripe.get(CountIndex);
+			sum += stripe.get(SumIndex);
+			min = Math.min(min, stripe.get(MinIndex));
+			max = Math.max(max, stripe.get(MaxIndex));
+
+			for(int j = 0; j < BucketsCount; ++j)
+				counts[j] += stripe.get(j);
+		}
+
+		return new Snapshot(counts, count, sum, min, max);
+	}
+
+	// values recorded concurrently with a reset may survive it
+	public void reset() {
+		for(int i = 0; i < Stripes.Count; ++i) {
+			AtomicLongArray stripe = stripes.get(i);
+
+			if(stripe == null)
+				continue;
+
+			stripe.set(CountIndex, 0);
+
+			for(int j = 0; j < BucketsCount; ++j)
+				stripe.set(j, 0);
+
+			stripe.set(SumIndex, 0);
+			stripe.set(MinIndex, Long.MAX_VALUE);
+			stripe.set(MaxIndex, 0);
+		}
+	}
+
+	static int getIndex(long theValue) {
+		if(theValue < SubBucketCount)
+			return (int)theValue;
+
+		// theValue >> shift is within [SubBucketHalfCount, SubBucketCount)
+		int shift = 63 - Long.numberOfLeadingZeros(theValue) - (SubBucketBits - 1);
+		return SubBucketCount + (shift - 1) * SubBucketHalfCount + (int)(theValue >> shift) - SubBucketHalfCount;
+	}
+
+	static long getHighestEquivalentValue(int theIndex) {
+		if(theIndex < SubBucketCount)
+			return theIndex;
+
+		int shift = (theIndex - SubBucketCount) / SubBucketHalfCount + 1;
+		long subBucket = (theIndex - SubBucketCount) % SubBucketHalfCount + SubBucketHalfCount;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	private AtomicLongArray getStripe() {
+		int index = Stripes.getIndex();
+		AtomicLongArray stripe = stripes.get(index);
+
+		if(stripe != null)
+			return stripe;
+
+		stripe = new AtomicLongArray(StripeLength);
+		stripe.set(MinIndex, Long.MAX_VALUE);
+		return stripes.compareAndSet(index, null, stripe) ? stripe : stripes.get(index);
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.lang.ref.*;
+import java.util.*;
+
+// Table of instrumented methods. Each method gets a dense int id at transform time, this id is embedded into an
+// instrumented code and is the only thing passed to probes. Names are resolved from the table only when needed.
+// Registration is synchronized (happens at transform time only), lookup by id is lock-free. Ids are never reused:
+// a retransformed method (same class loader, class, name and description) gets back its former id. An unregistered
+// method (e.g. one skipped by a CodeBudget) keeps its id, yet it's disabled until it's registered again
+public class MethodRegistry {
+	public interface MethodSelector {
+		public boolean isSelected(String theClassName, String theMethodName);
+	}
+
+	public static class Method {
+		private final int id;
+		private final String className;
+		private final String methodName;
+		private final String methodDescription;
+		private final String[] argumentNames;
+		private final char[] argumentSorts;
+		private final char returnSort;
+		private final WeakReference<ClassLoader> loader;
+		private volatile WeakReference<Class<?>> resolvedClass = null;
+		private volatile boolean isEnabled = true;
+		private volatile boolean isRegistered = true;
+		private volatile boolean isWithStackTraces = false;
+		private volatile boolean isDegraded = false;
+		private volatile TracingMode tracingMode = TracingMode.TRACE;
+		// created once a method gets timed
+		private volatile LatencyHistogram histogram = null;
+
+		Method(int theId, ClassLoader theLoader, String theClassName, String theMethodName, String theMethodDescription, String[] theArgumentNames) {
+			id = theId;
+			loader = theLoader != null ? new WeakReference<ClassLoader>(theLoader) : null;
+			className = theClassName;
+			methodName = theMethodName;
+			methodDescription = theMethodDescription;
+			argumentNames = theArgumentNames;
+			argumentSorts = parseArgumentSorts(theMethodDescription);
+			returnSort = parseReturnSort(theMethodDescription);
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public String getMethodName() {
+			return methodName;
+		}
+
+		public String getMethodDescription() {
+			return methodDescription;
+		}
+
+		public String[] getArgumentNames() {
+			return argumentNames;
+		}
+
+		// descriptor letter of each argument (Z, B, C, S, I, J, F, D), L for arrays and objects
+		public char[] getArgumentSorts() {
+			return argumentSorts;
+		}
+
+		// V for void methods, otherwise same as argument sorts
+		public char getReturnSort() {
+			return returnSort;
+		}
+
+		public boolean getIsEnabled() {
+			return isEnabled;
+		}
+
+		// false if an instrumentation of a method was given up, its probes aren't called then
+		public boolean getIsRegistered() {
+			return isRegistered;
+		}
+
+		public boolean getIsWithStackTraces() {
+			return isWithStackTraces;
+		}
+
+		// degraded method doesn't pass neither arguments nor a return value to probes (see CodeBudget)
+		public boolean getIsDegraded() {
+			return isDegraded;
+		}
+
+		public TracingMode getTracingMode() {
+			return tracingMode;
+		}
+
+		// null if a method was never timed
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+
+		LatencyHistogram getOrCreateHistogram() {
+			LatencyHistogram rv = histogram;
+
+			if(rv != null)
+				return rv;
+
+			synchronized(this) {
+				if(histogram == null)
+					histogram = new LatencyHistogram();
+
+				return histogram;
+			}
+		}
+
+		// null if a class can't be resolved (e.g. its class loader was GC'ed already)
+		public Class<?> getMethodClass() {
+			WeakReference<Class<?>> ref = resolvedClass;
+			Class<?> rv = ref != null ? ref.get() : null;
+
+			if(rv != null)
+				return rv;
+
+			ClassLoader l = loader != null ? loader.get() : null;
+
+			if(loader != null && l == null)
+				return null;
+
+			try {
+				rv = Class.forName(className, false, l);
+				resolvedClass = new WeakReference<Class<?>>(rv);
+			} catch(Throwable e) {
+				return null;
+			}
+
+			return rv;
+		}
+
+		boolean isLoadedBy(ClassLoader theLoader) {
+			return loader != null ? loader.get() == theLoader : theLoader == null;
+		}
+	}
+
+	private static final int ChunkShift = 10;
+	private static final int ChunkSize = 1 << ChunkShift;
+	private static volatile Method[][] chunks = new Method[16][];
+	private static volatile int count = 0;
+	private static volatile int generation = 0;
+	private static Map<String, List<Method>> methodsByName = new HashMap<String, List<Method>>();
+	// mode of newly registered methods, a re-registered method retains its mode
+	private static TracingMode defaultTracingMode = TracingMode.TRACE;
+
+	public static synchronized int register(ClassLoader theLoader, String theClassName, String theMethodName, String theMethodDescription,
+		String[] theArgumentNames, boolean theIsWithStackTraces) {
+		return register(theLoader, theClassName, theMethodName, theMethodDescription, theArgumentNames, theIsWithStackTraces, false);
+	}
+
+	public static synchronized int register(ClassLoader theLoader, String theClassName, String theMethodName, String theMethodDescription,
+		String[] theArgumentNames, boolean theIsWithStackTraces, boolean theIsDegraded) {
+		String key = theClassName + "." + theMethodName + theMethodDescription;
+		List<Method> methods = methodsByName.get(key);
+
+		if(methods == null) {
+			methods = new ArrayList<Method>(1);
+			methodsByName.put(key, methods);
+		}
+
+		Method registered = find(methods, theLoader);
+
+		if(registered != null) {
+			registered.isWithStackTraces = theIsWithStackTraces;
+			registered.isDegraded = theIsDegraded;
+			registered.isRegistered = true;
+			registered.isEnabled = true;
+			return registered.id;
+		}
+
+		int id = count;
+		Method method = new Method(id, theLoader, theClassName, theMethodName, theMethodDescription, theArgumentNames);
+		method.isWithStackTraces = theIsWithStackTraces;
+		method.isDegraded = theIsDegraded;
+		method.tracingMode = defaultTracingMode;
+		Method[][] c = chunks;
+
+		if((id >>> ChunkShift) >= c.length)
+			c = Arrays.copyOf(c, c.length * 2);
+
+		if(c[id >>> ChunkShift] == null)
+			c[id >>> ChunkShift] = new Method[ChunkSize];
+
+		c[id >>> ChunkShift][id & (ChunkSize - 1)] = method;
+		methods.add(method);
+		chunks = c;
+		count = id + 1; // publishes a new method to lock-free readers
+		return id;
+	}
+
+	// disables a method which was registered by an instrumentation which was given up afterwards, a method keeps
+	// being disabled by enableMethods till it's registered again
+	public static synchronized void unregister(ClassLoader theLoader, String theClassName, String theMethodName, String theMethodDescription) {
+		List<Method> methods = methodsByName.get(theClassName + "." + theMethodName + theMethodDescription);
+		Method method = methods != null ? find(methods, theLoader) : null;
+
+		if(method == null)
+			return;
+
+		method.isRegistered = false;
+		method.isEnabled = false;
+		++generation;
+	}
+
+	private static Method find(List<Method> theMethods, ClassLoader theLoader) {
+		for(Method m : theMethods) {
+			if(m.isLoadedBy(theLoader))
+				return m;
+		}
+
+		return null;
+	}
+
+	// null for an unknown id
+	public static Method get(int theId) {
+		if(theId < 0 || theId >= count)
+			return null;
+
+		return chunks[theId >>> ChunkShift][theId & (ChunkSize - 1)];
+	}
+
+	public static boolean isEnabled(int theId) {
+		Method method = get(theId);
+		return method != null && method.isEnabled;
+	}
+
+	public static int getCount() {
+		return count;
+	}
+
+	// changes each time methods are enabled, disabled or switched to another tracing mode. Calls in flight may have
+	// lost their entries or exits then, so tracers track call depths per generation
+	public static int getGeneration() {
+		return generation;
+	}
+
+	// enables methods accepted by a selector and disables all the others, returns a number of enabled methods
+	public static synchronized int enableMethods(MethodSelector theSelector) {
+		int rv = 0;
+
+		for(int i = 0; i < count; ++i) {
+			Method method = get(i);
+			method.isEnabled = method.isRegistered && theSelector != null && theSelector.isSelected(method.className, method.methodName);
+
+			if(method.isEnabled)
+				++rv;
+		}
+
+		++generation;
+		return rv;
+	}
+
+	public static synchronized void setDefaultTracingMode(TracingMode theMode) {
+		defaultTracingMode = theMode;
+	}
+
+	// switches methods accepted by a selector (null selector - all methods), returns a number of switched methods
+	public static synchronized int setTracingMode(MethodSelector theSelector, TracingMode theMode) {
+		int rv = 0;
+
+		for(int i = 0; i < count; ++i) {
+			Method method = get(i);
+
+			if(method.tracingMode == theMode || (theSelector != null && !theSelector.isSelected(method.className, method.methodName)))
+				continue;
+
+			method.tracingMode = theMode;
+			++rv;
+		}
+
+		++generation;
+		return rv;
+	}
+
+	static char[] parseArgumentSorts(String theMethodDescription) {
+		StringBuilder rv = new StringBuilder();
+		int i = theMethodDescription != null ? theMethodDescription.indexOf('(') + 1 : 0;
+
+		while(i > 0 && i < theMethodDescription.length() && theMethodDescription.charAt(i) != ')') {
+			boolean isArray = false;
+
+			while(theMethodDescription.charAt(i) == '[') {
+				isArray = true;
+				++i;
+			}
+
+			char sort = theMethodDescription.charAt(i);
+
+			if(sort == 'L')
+				i = theMethodDescription.indexOf(';', i);
+
+			rv.append(isArray ? 'L' : sort);
+			++i;
+		}
+
+		return rv.toString().toCharArray();
+	}
+
+	static char parseReturnSort(String theMethodDescription) {
+		int i = theMethodDescription != null ? theMethodDescription.lastIndexOf(')') + 1 : 0;
+
+		if(i <= 0 || i >= theMethodDescription.length())
+			return 'V';
+
+		char sort = theMethodDescription.charAt(i);
+		return sort == '[' ? 'L' : sort;
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.util.*;
+
+// Entry points which are called directly (INVOKESTATIC) from an instrumented code. This class is published 
+// on a bootstrap class path (see ProbePublisher) so it's visible from any class loader. Hence it must not 
+// reference any metracer class except ones which are published along with it (see ProbePublisher.PublishedClassNames)
+public class Probe {
+	// Per-thread buffer for argument values of an instrumented method. Slot 0 holds a long[] with values of primitive
+	// arguments (float / double as raw bits), slot i + 1 holds a value of reference argument i. Instrumented code fills it
+	// only when a method is enabled, so no boxing and no allocation happen otherwise
+	static class ArgumentSlots {
+		Object[] slots = createSlots(8);
+		// set while arguments are being traced, e.g. instrumented toString of an argument re-enters a probe
+		boolean isBusy = false;
+	}
+
+	static class ArgumentSlotsThreadLocal extends ThreadLocal<ArgumentSlots> {
+		@Override
+		protected ArgumentSlots initialValue() {
+			return new ArgumentSlots();
+		}
+	}
+
+	// Entry times of timed methods being executed by a thread
+	static class TimingStack {
+		int[] methodIds = new int[16];
+		long[] entryTimes = new long[16];
+		int depth = 0;
+	}
+
+	static class TimingStackThreadLocal extends ThreadLocal<TimingStack> {
+		@Override
+		protected TimingStack initialValue() {
+			return new TimingStack();
+		}
+	}
+
+	public static abstract class Handler {
+		public abstract void traceEntry(int theMethodId, Object[] theArgumentSlots);
+		public abstract void traceVoidExit(int theMethodId);
+		// primitive value is encoded like in argument slots, i.e. float / double as raw bits
+		public abstract void tracePrimitiveExit(int theMethodId, long theReturnValue);
+		public abstract void traceReferenceExit(int theMethodId, Object theReturnValue);
+		public abstract void traceExceptionExit(int theMethodId, Throwable theException);
+	}
+
+	private static volatile Handler handler = null;
+	private static final ArgumentSlotsThreadLocal argumentSlots = new ArgumentSlotsThreadLocal();
+	private static final TimingStackThreadLocal timingStack = new TimingStackThreadLocal();
+
+	public static void setHandler(Handler theHandler) {
+		handler = theHandler;
+	}
+
+	// returns null if arguments of a method must not be captured
+	public static Object[] getArgumentSlots(int theMethodId, int theArgumentsCount) {
+		MethodRegistry.Method method = MethodRegistry.get(theMethodId);
+
+		if(handler == null || method == null || !method.getIsEnabled() || method.getTracingMode() != TracingMode.TRACE)
+			return null;
+
+		try {
+			ArgumentSlots s = argumentSlots.get();
+
+			if(s.isBusy)
+				return createSlots(theArgumentsCount);
+
+			if(s.slots.length <= theArgumentsCount)
+				s.slots = createSlots(theArgumentsCount);
+
+			s.isBusy = true;
+			return s.slots;
+		} catch(Throwable e) {
+			return null;
+		}
+	}
+
+	// theArgumentSlots are either null (no arguments or they are not captured) or obtained from getArgumentSlots
+	public static void traceEntry(int theMethodId, Object[] theArgumentSlots) {
+		try {
+			Handler h = getHandler(theMethodId, true);
+
+			if(h == null)
+				return;
+
+			h.traceEntry(theMethodId, theArgumentSlots);
+		} catch(Throwable e) {
+			// tracing must never break an instrumented method
+		} finally {
+			releaseArgumentSlots(theArgumentSlots);
+		}
+	}
+
+	// Exit probes are specialized by a type of return value, so the latter is never boxed by an instrumented code
+
+	public static void traceExit(int theMethodId) {
+		try {
+			Handler h = getHandler(theMethodId, false);
+
+			if(h != null)
+				h.traceVoidExit(theMethodId);
+		} catch(Throwable e) {
+			// tracing must never break an instrumented method
+		}
+	}
+
+	// also used for byte, char and short values
+	public static void traceExit(int theMethodId, int theReturnValue) {
+		tracePrimitiveExit(theMethodId, theReturnValue);
+	}
+
+	public static void traceExit(int theMethodId, boolean theReturnValue) {
+		tracePrimitiveExit(theMethodId, theReturnValue ? 1 : 0);
+	}
+
+	public static void traceExit(int theMethodId, long theReturnValue) {
+		tracePrimitiveExit(theMethodId, theReturnValue);
+	}
+
+	public static void traceExit(int theMethodId, float theReturnValue) {
+		tracePrimitiveExit(theMethodId, Float.floatToRawIntBits(theReturnValue));
+	}
+
+	public static void traceExit(int theMethodId, double theReturnValue) {
+		tracePrimitiveExit(theMethodId, Double.doubleToRawLongBits(theReturnValue));
+	}
+
+	public static void traceExit(int theMethodId, Object theReturnValue) {
+		try {
+			Handler h = getHandler(theMethodId, false);
+
+			if(h != null)
+				h.traceReferenceExit(theMethodId, theReturnValue);
+		} catch(Throwable e) {
+			// tracing must never break an instrumented method
+		}
+	}
+
+	public static void traceExceptionExit(int theMethodId, Throwable theException) {
+		try {
+			Handler h = getHandler(theMethodId, false);
+
+			if(h != null)
+				h.traceExceptionExit(theMethodId, theException);
+		} catch(Throwable e) {
+			// tracing must never break an instrumented method
+		}
+	}
+
+	private static void tracePrimitiveExit(int theMethodId, long theReturnValue) {
+		try {
+			Handler h = getHandler(theMethodId, false);
+
+			if(h != null)
+				h.tracePrimitiveExit(theMethodId, theReturnValue);
+		} catch(Throwable e) {
+			// tracing must never break an instrumented method
+		}
+	}
+
+	// returns a handler if a method is traced, a timed method is timed and a counted method is counted here instead
+	private static Handler getHandler(int theMethodId, boolean theIsEntry) {
+		MethodRegistry.Method method = MethodRegistry.get(theMethodId);
+
+		if(method == null || !method.getIsEnabled())
+			return null;
+
+		TracingMode mode = method.getTracingMode();
+
+		if(mode == TracingMode.TRACE)
+			return handler;
+		else if(mode == TracingMode.TIMING) {
+			if(theIsEntry)
+				startTiming(theMethodId);
+			else
+				stopTiming(method);
+		} else if(mode == TracingMode.COUNT && theIsEntry)
+			CallCounters.increment(theMethodId);
+
+		return null;
+	}
+
+	private static void startTiming(int theMethodId) {
+		TimingStack s = timingStack.get();
+
+		if(s.depth == s.methodIds.length) {
+			s.methodIds = Arrays.copyOf(s.methodIds, s.depth * 2);
+			s.entryTimes = Arrays.copyOf(s.entryTimes, s.depth * 2);
+		}
+
+		s.methodIds[s.depth] = theMethodId;
+		s.entryTimes[s.depth] = System.nanoTime();
+		++s.depth;
+	}
+
+	// Entries of inner methods left on a stack (e.g. a mode was switched while they were running) are dropped. An exit
+	// without a matching entry is ignored
+	private static void stopTiming(MethodRegistry.Method theMethod) {
+		long exitTime = System.nanoTime();
+		TimingStack s = timingStack.get();
+		int methodId = theMethod.getId();
+
+		for(int i = s.depth - 1; i >= 0; --i) {
+			if(s.methodIds[i] == methodId) {
+				s.depth = i;
+				theMethod.getOrCreateHistogram().record(exitTime - s.entryTimes[i]);
+				return;
+			}
+		}
+	}
+
+	public static long[] getPrimitiveSlots(Object[] theArgumentSlots) {
+		return (long[])theArgumentSlots[0];
+	}
+
+	private static Object[] createSlots(int theArgumentsCount) {
+		Object[] rv = new Object[theArgumentsCount + 1];
+		rv[0] = new long[theArgumentsCount];
+		return rv;
+	}
+
+	private static void releaseArgumentSlots(Object[] theArgumentSlots) {
+		if(theArgumentSlots == null)
+			return;
+
+		ArgumentSlots s = argumentSlots.get();
+
+		if(s.slots != theArgumentSlots)
+			return;
+
+		// references must not be retained by a thread
+		Arrays.fill(theArgumentSlots, 1, theArgumentSlots.length, null);
+		s.isBusy = false;
+	}
+}
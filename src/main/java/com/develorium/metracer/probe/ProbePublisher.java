@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.io.*;
+import java.lang.instrument.*;
+import java.util.jar.*;
+
+// Puts probe classes into a bootstrap class path, so instrumented classes of any class loader (which delegates 
+// to a bootstrap one) could call a probe directly. Must be invoked before any of the published classes gets loaded,
+// otherwise an agent's class loader would keep its own copy of them. That's why probe classes are referenced by names only
+public class ProbePublisher {
+	public static final String ProbeClassName = "com.develorium.metracer.probe.Probe";
+	public static final String ProbeInternalName = ProbeClassName.replace('.', '/');
+	public static final String IndyProbeClassName = "com.develorium.metracer.probe.IndyProbe";
+	public static final String IndyProbeInternalName = IndyProbeClassName.replace('.', '/');
+	public static final String IndyProbeBootstrapDescription = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)Ljava/lang/invoke/CallSite;";
+	public static final String[] PublishedClassNames = {
+		ProbeClassName,
+		ProbeClassName + "$Handler",
+		ProbeClassName + "$ArgumentSlots",
+		ProbeClassName + "$ArgumentSlotsThreadLocal",
+		ProbeClassName + "$TimingStack",
+		ProbeClassName + "$TimingStackThreadLocal",
+		"com.develorium.metracer.probe.TracingMode",
+		"com.develorium.metracer.probe.MethodRegistry",
+		"com.develorium.metracer.probe.MethodRegistry$Method",
+		"com.develorium.metracer.probe.MethodRegistry$MethodSelector",
+		"com.develorium.metracer.probe.LatencyHistogram",
+		"com.develorium.metracer.probe.LatencyHistogram$Snapshot",
+		"com.develorium.metracer.probe.CallCounters",
+		"com.develorium.metracer.probe.Stripes",
+		IndyProbeClassName,
+		IndyProbeClassName + "$LinkedCallSite",
+		IndyProbeClassName + "$LinkedMethod"
+	};
+	private static volatile boolean isPublished = false;
+	private static Boolean isInvokeDynamicSupported = null;
+
+	public static synchronized void publish(Instrumentation theInstrumentation) throws IOException {
+		if(isPublished)
+			return;
+
+		File jarFile = File.createTempFile("metracer-probe", ".jar");
+		jarFile.deleteOnExit();
+		JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jarFile));
+
+		try {
+			for(String className : PublishedClassNames) {
+				String resourceName = getResourceName(className);
+				jarStream.putNextEntry(new JarEntry(resourceName));
+				copyResource(resourceName, jarStream);
+				jarStream.closeEntry();
+			}
+		} finally {
+			jarStream.close();
+		}
+
+		theInstrumentation.appendToBootstrapClassLoaderSearch(new JarFile(jarFile));
+		isPublished = true;
+	}
+
+	public static boolean getIsPublished() {
+		return isPublished;
+	}
+
+	// Class loaders with a restricted delegation (e.g. OSGi bundles) can't see a probe class even if it's published.
+	// Resource lookup is used instead of a class loading since the latter is unsafe inside of a class file transformer
+	public static boolean isProbeVisible(ClassLoader theLoader) {
+		if(theLoader == null)
+			return isPublished;
+
+		try {
+			return theLoader.getResource(getResourceName(ProbeClassName)) != null;
+		} catch(Throwable e) {
+			return false;
+		}
+	}
+
+	public static synchronized boolean isInvokeDynamicSupported() {
+		if(isInvokeDynamicSupported == null) {
+			try {
+				Class.forName("java.lang.invoke.MutableCallSite");
+				isInvokeDynamicSupported = true;
+			} catch(Throwable e) {
+				isInvokeDynamicSupported = false;
+			}
+		}
+
+		return isInvokeDynamicSupported;
+	}
+
+	private static String getResourceName(String theClassName) {
+		return theClassName.replace('.', '/') + ".class";
+	}
+
+	private static void copyResource(String theResourceName, OutputStream theOutput) throws IOException {
+		InputStream input = ProbePublisher.class.getClassLoader().getResourceAsStream(theResourceName);
+
+		if(input == null)
+			throw new IOException(String.format("Failed to locate %s", theResourceName));
+
+		try {
+			byte[] buffer = new byte[4096];
+			int length = 0;
+
+			while((length = input.read(buffer)) > 0)
+				theOutput.write(buffer, 0, length);
+		} finally {
+			input.close();
+		}
+	}
+}
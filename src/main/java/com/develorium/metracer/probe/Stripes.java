@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+// Threads are spread across stripes of counters, so hot methods called from many threads don't contend on the same
+// cache lines. Ids of threads are sequential, so consecutive threads get different stripes
+class Stripes {
+	// power of two which is not less than a number of processors, but not more than 16
+	static final int Count = Integer.highestOneBit(Math.min(16, Math.max(1, java.lang.Runtime.getRuntime().availableProcessors())) * 2 - 1);
+
+	static int getIndex() {
+		return (int)Thread.currentThread().getId() & (Count - 1);
+	}
+}
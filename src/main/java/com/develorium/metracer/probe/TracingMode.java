@@ -0,0 +1,27 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+// What an instrumented method captures. Could be switched without retransformation of a class
+public enum TracingMode {
+	OFF,
+	TRACE,
+	// only a duration of a call is recorded into a LatencyHistogram of a method, nothing is reported per call
+	TIMING,
+	// only a number of calls is counted by CallCounters, nothing is reported per call
+	COUNT;
+}
@@ -17,9 +17,16 @@
 package com.develorium.metracer.statik;
 
 import java.lang.instrument.Instrumentation;
+import com.develorium.metracer.probe.*;
 
 public class Agent {
 	public static void premain(String theArguments, Instrumentation theInstrumentation) {
+		try {
+			ProbePublisher.publish(theInstrumentation);
+		} catch(Exception e) {
+			System.err.format("Failed to publish probe on a bootstrap class path, falling back to reflective probe calls: %1$s\n", e.toString());
+		}
+
 		try {
 			MetracerClassFileTransformer metracer = new MetracerClassFileTransformer(theArguments);
 			theInstrumentation.addTransformer(metracer);
@@ -43,7 +43,7 @@ public class MetracerClassFileTransformer implements ClassFileTransformer {
 			return theClassfileBuffer;
 
 		try {
-			InstrumentClassResult icr = instrumentClass(theClassfileBuffer, theLoader != null ? theLoader : getClass().getClassLoader());
+			ClassInstrumenter.Result icr = ClassInstrumenter.instrument(theClassfileBuffer, theLoader != null ? theLoader : getClass().getClassLoader(), patterns, ProbeEmission.choose(theLoader, false));
 
 			if(icr.hasSlf4jLogger)
 				runtimeLogger.registerClassWithSlf4jLogger(theClassName.replaceAll("/", "."), theLoader);
@@ -56,24 +56,4 @@ public class MetracerClassFileTransformer implements ClassFileTransformer {
 
 		return theClassfileBuffer;
 	}
-
-	private static class InstrumentClassResult {
-		byte[] bytecode = null;
-		boolean hasSlf4jLogger = false;
-	} 
-
-	private InstrumentClassResult instrumentClass(byte theBytecode[], ClassLoader theLoader) {
-		ClassReader reader = new ClassReader(theBytecode);
-		ClassNode parsedClass = new ClassNode();
-		reader.accept(parsedClass, 0);
-		
-		MetracerClassWriter writer = new MetracerClassWriter(reader, theLoader);
-		MetracerClassVisitor visitor = new MetracerClassVisitor(writer, theLoader, patterns, parsedClass);
-		reader.accept(visitor, ClassReader.EXPAND_FRAMES);
-
-		InstrumentClassResult rv = new InstrumentClassResult();
-		rv.bytecode = visitor.getIsChanged() ? writer.toByteArray() : theBytecode;
-		rv.hasSlf4jLogger = visitor.getHasSlf4Logger();
-		return rv;
-	}
 }
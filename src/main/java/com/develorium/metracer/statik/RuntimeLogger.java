@@ -19,6 +19,8 @@ package com.develorium.metracer.statik;
 import java.util.*;
 import java.lang.ref.*;
 import java.lang.reflect.*;
+import com.develorium.metracer.*;
+import com.develorium.metracer.probe.*;
 
 class RuntimeLogger implements com.develorium.metracer.Runtime.LoggerInterface {
 	private final Object NullLogger = new Object();
@@ -27,14 +29,40 @@ class RuntimeLogger implements com.develorium.metracer.Runtime.LoggerInterface {
 	private Map<String, WeakReference<Object>> loggers = 
 		Collections.synchronizedMap(new HashMap<String, WeakReference<Object>>(1000));
 
+	// called by a traced thread itself, so an event is rendered right away
 	@Override
-	public void printMessage(Class<?> theClass, String theMethodName, String theMessage, List<StackTraceElement> theStackTraceElements) {
-		Object logger = getAndResolveLogger(theClass);
+	public void printEvent(int theMethodId, int theKind, int theCallDepth, String theDetails, List<StackTraceElement> theStackTraceElements) {
+		MethodRegistry.Method method = MethodRegistry.get(theMethodId);
+		Class<?> methodClass = method != null ? method.getMethodClass() : null;
+		Object logger = methodClass != null ? getAndResolveLogger(methodClass) : null;
 
 		if(!isSlf4jLogger(logger)) 
 			logger = findNearestSlf4jLogger();
 
-		printMessageViaLogger(logger, theMessage);
+		TraceEvent event = new TraceEvent();
+		event.kind = theKind;
+		event.threadId = Thread.currentThread().getId();
+		event.methodId = theMethodId;
+		event.className = method != null ? method.getClassName() : null;
+		event.methodName = method != null ? method.getMethodName() : null;
+		event.callDepth = theCallDepth;
+		event.details = theDetails;
+		printMessageViaLogger(logger, event.render());
+
+		if(theStackTraceElements != null) {
+			event.kind = TraceEvent.StackFrame;
+
+			for(StackTraceElement element : theStackTraceElements) {
+				event.details = element.toString();
+				printMessageViaLogger(logger, event.render());
+			}
+		}
+	}
+
+	// there is no other thread to render details on
+	@Override
+	public void printDeferredEvent(int theMethodId, int theKind, int theCallDepth, com.develorium.metracer.Runtime.DeferredDetails theDetails, List<StackTraceElement> theStackTraceElements) {
+		printEvent(theMethodId, theKind, theCallDepth, theDetails.render(), theStackTraceElements);
 	}
 
 	public void registerClassWithSlf4jLogger(String theClassName, ClassLoader theClassLoader) {
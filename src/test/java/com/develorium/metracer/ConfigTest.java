@@ -20,6 +20,7 @@ import java.util.Map;
 import java.util.HashMap;
 import org.junit.Test;
 import org.junit.Assert;
+import com.develorium.metracer.probe.*;
 
 public class ConfigTest {
 	@Test
@@ -376,5 +377,114 @@ public class ConfigTest {
 	public void testZeroMethodArgumentDumpLimit() {
 		Config config = new Config(new String[]{ "-m", "0", "15" });
 	}
-}
 
+	@Test
+	public void testMaxCodeGrowth() {
+		Config config = new Config(new String[]{ "-b", "200", "15" });
+		Assert.assertEquals(200, config.maxCodeGrowth);
+		config = new Config(new String[]{ "15" });
+		Assert.assertEquals(0, config.maxCodeGrowth);
+	}
+
+	@Test(expected = Config.BadConfig.class)
+	public void testEmptyMaxCodeGrowth() {
+		Config config = new Config(new String[]{ "15", "-b" });
+	}
+
+	@Test(expected = Config.BadConfig.class)
+	public void testNegativeMaxCodeGrowth() {
+		Config config = new Config(new String[]{ "-b", "-1", "15" });
+	}
+
+	@Test
+	public void testTimingTracingMode() {
+		Config config = new Config(new String[]{ "-t", "timing", "15" });
+		Assert.assertEquals(TracingMode.TIMING, config.tracingMode);
+	}
+
+	@Test
+	public void testOverflowPolicy() {
+		Config config = new Config(new String[]{ "-o", "drop-oldest", "15" });
+		Assert.assertEquals(OverflowPolicy.DROP_OLDEST, config.overflowPolicy);
+		config = new Config(new String[]{ "15" });
+		Assert.assertEquals(OverflowPolicy.DROP_NEWEST, config.overflowPolicy);
+	}
+
+	@Test(expected = Config.BadConfig.class)
+	public void testUnknownOverflowPolicy() {
+		Config config = new Config(new String[]{ "-o", "block", "15" });
+	}
+
+	@Test
+	public void testNotificationBufferSize() {
+		Config config = new Config(new String[]{ "-n", "5000", "15" });
+		Assert.assertEquals(5000, config.notificationBufferSize);
+		config = new Config(new String[]{ "15" });
+		Assert.assertEquals(0, config.notificationBufferSize);
+	}
+
+	@Test(expected = Config.BadConfig.class)
+	public void testZeroNotificationBufferSize() {
+		Config config = new Config(new String[]{ "-n", "0", "15" });
+	}
+
+	@Test
+	public void testJournal() {
+		Config config = new Config(new String[]{ "-j", "15" });
+		Assert.assertTrue(config.isWithJournal);
+		Assert.assertEquals(15, config.pid);
+	}
+
+	@Test
+	public void testCompression() {
+		Config config = new Config(new String[]{ "-T", "socket", "-z", "15" });
+		Assert.assertTrue(config.isWithCompression);
+		Assert.assertEquals(EventTransport.SOCKET, config.eventTransport);
+		Assert.assertEquals(15, config.pid);
+		Assert.assertFalse(new Config(new String[]{ "15" }).isWithCompression);
+	}
+
+	@Test
+	public void testCollectionSummaries() {
+		Config config = new Config(new String[]{ "-c", "-m", "64", "15" });
+		Assert.assertTrue(config.isWithCollectionSummaries);
+		Assert.assertEquals(64, config.methodArgumentDumpLimit);
+		Assert.assertEquals(15, config.pid);
+		Assert.assertFalse(new Config(new String[]{ "15" }).isWithCollectionSummaries);
+	}
+
+	@Test
+	public void testDeferredRendering() {
+		Config config = new Config(new String[]{ "-d", "-c", "15", "com.test" });
+		Assert.assertTrue(config.isWithDeferredRendering);
+		Assert.assertTrue(config.isWithCollectionSummaries);
+		Assert.assertEquals(15, config.pid);
+		Assert.assertFalse(new Config(new String[]{ "15" }).isWithDeferredRendering);
+	}
+
+	@Test
+	public void testReadJournalCommand() {
+		Config config = new Config(new String[]{ "-v", "-J", "/tmp/journal" });
+		Assert.assertTrue(config.command == Config.COMMAND.READ_JOURNAL);
+		Assert.assertEquals("/tmp/journal", config.journalDirectoryName);
+		Assert.assertTrue(config.isVerbose);
+	}
+
+	@Test(expected = Config.BadConfig.class)
+	public void testReadJournalCommandWithoutDirectory() {
+		Config config = new Config(new String[]{ "-J" });
+	}
+
+	@Test
+	public void testEventTransport() {
+		Config config = new Config(new String[]{ "-T", "socket", "15" });
+		Assert.assertEquals(EventTransport.SOCKET, config.eventTransport);
+		config = new Config(new String[]{ "15" });
+		Assert.assertEquals(EventTransport.JMX, config.eventTransport);
+	}
+
+	@Test(expected = Config.BadConfig.class)
+	public void testUnknownEventTransport() {
+		Config config = new Config(new String[]{ "-T", "pigeon", "15" });
+	}
+}
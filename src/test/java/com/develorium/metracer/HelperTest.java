@@ -19,6 +19,7 @@ package com.develorium.metracer;
 import java.io.*;
 import org.junit.Assert;
 import org.junit.Test;
+import com.develorium.metracer.dynamic.*;
 
 public class HelperTest {
 	@Test
@@ -43,4 +44,50 @@ public class HelperTest {
 		Helper.executeAuxCommands(Config.COMMAND.LIST, new PrintStream(output));
 		Assert.assertTrue(output.size() > 0);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testTimingsAreSortedByTotalTime() {
+		AgentMXBean.Timings timings = new AgentMXBean.Timings();
+		String[] names = { "rare", "frequent", "slow" };
+		long[] counts = { 1, 1000, 10 };
+		double[] means = { 1000, 2000, 500000 };
+
+		for(int i = 0; i < names.length; ++i) {
+			AgentMXBean.MethodTiming timing = new AgentMXBean.MethodTiming();
+			timing.className = "com.test.Timed";
+			timing.methodName = names[i];
+			timing.count = counts[i];
+			timing.mean = means[i];
+			timings.methods.add(timing);
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Helper.printTimings(new PrintStream(output), timings);
+		String table = output.toString();
+		Assert.assertTrue(table.indexOf("::slow") < table.indexOf("::frequent"));
+		Assert.assertTrue(table.indexOf("::frequent") < table.indexOf("::rare"));
+		Assert.assertTrue(table.contains("p99.9"));
+	}
+
+	@Test
+	public void testTopCallCounts() {
+		AgentMXBean.CallCounts callCounts = new AgentMXBean.CallCounts();
+		String[] names = { "cold", "hot", "warm" };
+		double[] rates = { 1, 1000, 10 };
+
+		for(int i = 0; i < names.length; ++i) {
+			AgentMXBean.MethodCallCount callCount = new AgentMXBean.MethodCallCount();
+			callCount.className = "com.test.Counted";
+			callCount.methodName = names[i];
+			callCount.count = 100;
+			callCount.rate = rates[i];
+			callCounts.methods.add(callCount);
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Helper.printCallCounts(new PrintStream(output), callCounts, 2);
+		String table = output.toString();
+		Assert.assertTrue(table.indexOf("::hot") < table.indexOf("::warm"));
+		Assert.assertFalse(table.contains("::cold"));
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IdentitySetTest {
+	// equal to each other and has a same hash code
+	private static class Equal {
+		@Override
+		public boolean equals(Object theOther) {
+			return theOther instanceof Equal;
+		}
+
+		@Override
+		public int hashCode() {
+			return 1;
+		}
+	}
+
+	@Test
+	public void testIdentity() {
+		IdentitySet set = new IdentitySet();
+		Equal a = new Equal();
+		Equal b = new Equal();
+		Assert.assertTrue(set.add(a));
+		Assert.assertTrue(set.add(b));
+		Assert.assertFalse(set.add(a));
+		Assert.assertFalse(set.add(b));
+		Assert.assertEquals(2, set.size());
+	}
+
+	@Test
+	public void testGrowthAndReuse() {
+		IdentitySet set = new IdentitySet();
+		List<Object> objects = new ArrayList<Object>();
+
+		for(int i = 0; i < 5000; ++i)
+			objects.add(new Object());
+
+		for(int round = 0; round < 2; ++round) {
+			for(int i = 0; i < objects.size(); i += 2)
+				Assert.assertTrue(set.add(objects.get(i)));
+
+			for(int i = 0; i < objects.size(); ++i)
+				Assert.assertEquals(i % 2 == 0, set.contains(objects.get(i)));
+
+			Assert.assertEquals(objects.size() / 2, set.size());
+			set.clear();
+			Assert.assertEquals(0, set.size());
+			Assert.assertFalse(set.contains(objects.get(0)));
+		}
+	}
+}
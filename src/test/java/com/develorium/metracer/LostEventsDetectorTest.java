@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LostEventsDetectorTest {
+	@Test
+	public void testContinuousBatches() {
+		LostEventsDetector detector = new LostEventsDetector();
+		Assert.assertEquals(0, detector.check(1, 100, 10)); // joined a session in the middle
+		Assert.assertEquals(0, detector.check(1, 110, 5));
+		Assert.assertEquals(0, detector.check(1, 115, 1));
+		Assert.assertEquals(0, detector.getLostCount());
+	}
+
+	@Test
+	public void testGaps() {
+		LostEventsDetector detector = new LostEventsDetector();
+		Assert.assertEquals(0, detector.check(1, 0, 10));
+		Assert.assertEquals(20, detector.check(1, 30, 10));
+		Assert.assertEquals(0, detector.check(1, 40, 10));
+		Assert.assertEquals(1, detector.check(1, 51, 10));
+		Assert.assertEquals(21, detector.getLostCount());
+	}
+
+	@Test
+	public void testNewSession() {
+		LostEventsDetector detector = new LostEventsDetector();
+		Assert.assertEquals(0, detector.check(1, 0, 10));
+		Assert.assertEquals(0, detector.check(2, 0, 10));
+		Assert.assertEquals(5, detector.check(2, 15, 10));
+		Assert.assertEquals(5, detector.getLostCount());
+	}
+}
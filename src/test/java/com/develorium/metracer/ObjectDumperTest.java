@@ -18,6 +18,7 @@ package com.develorium.metracer;
 
 import java.lang.reflect.Field;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -164,6 +165,74 @@ public class ObjectDumperTest {
 		}
 	}
 
+	@Test
+	public void testClassPlan() {
+		ClassPlan plan = ClassPlan.get(TestObject.class);
+		Assert.assertSame(plan, ClassPlan.get(TestObject.class));
+		Assert.assertEquals(ClassPlan.AsFields, plan.kind);
+		Assert.assertEquals("(c.d.m.ObjectDumperTest$TestObject){", plan.header);
+		Assert.assertEquals(ObjectDumper.getAllDeclaredFields(TestObject.class).size(), plan.fields.length);
+
+		for(int i = 0; i < plan.fields.length; ++i) {
+			Assert.assertTrue(plan.fields[i].isAccessible());
+			Assert.assertNull(plan.fieldFailures[i]);
+			Assert.assertEquals(plan.fields[i].getName() + "=", plan.fieldPrefixes[i]);
+		}
+
+		Assert.assertEquals(ClassPlan.AsCharSequence, ClassPlan.get(String.class).kind);
+		Assert.assertEquals(ClassPlan.AsString, ClassPlan.get(Date.class).kind);
+		Assert.assertEquals(ClassPlan.AsArray, ClassPlan.get(Terminator[].class).kind);
+		Assert.assertEquals(ClassPlan.AsCollection, ClassPlan.get(java.util.ArrayList.class).kind);
+		Assert.assertTrue(ClassPlan.get(java.util.ArrayList.class).isImmediatePrintable);
+		Assert.assertEquals(ClassPlan.AsMap, ClassPlan.get(HashMap.class).kind);
+		Assert.assertFalse(ClassPlan.get(Terminator.class).isImmediatePrintable);
+
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			ObjectDumper.MaxDumpLength = 4096;
+			Assert.assertTrue(new ObjectDumper().dumpObject(new TestObject()).contains("privateString=private property"));
+		} finally {
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
+	public static class PublicFields {
+		public static String staticString = "static";
+		public int number = 42;
+		public char symbol = 'x';
+		public Terminator terminator = new Terminator("T800");
+		String packageString = "package";
+		private long privateNumber = 7;
+	}
+
+	@Test
+	public void testGeneratedFieldReader() {
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			ObjectDumper.MaxDumpLength = 4096;
+			PublicFields object = new PublicFields();
+			ClassPlan plan = ClassPlan.get(PublicFields.class);
+			String expected = new ObjectDumper().dumpObject(object);
+			Assert.assertEquals("(c.d.m.ObjectDumperTest$PublicFields){staticString=static,number=42,symbol=x,terminator=(c.d.m.ObjectDumperTest$Terminator){model=T800},packageString=package,privateNumber=7}", expected);
+
+			for(int i = 0; i < ClassPlan.ReaderGenerationThreshold; ++i)
+				Assert.assertEquals(expected, new ObjectDumper().dumpObject(object));
+
+			FieldReader reader = plan.getReader(object);
+			Assert.assertNotSame(FieldReader.class, reader.getClass());
+			Assert.assertSame(reader, plan.getReader(object));
+			Assert.assertFalse(reader.getClass().getClassLoader() == PublicFields.class.getClassLoader());
+
+			object.number = -1;
+			object.terminator = null;
+			object.privateNumber = 8;
+			Assert.assertEquals(expected.replace("42", "-1").replace("(c.d.m.ObjectDumperTest$Terminator){model=T800}", "null").replace("=7", "=8"), 
+				new ObjectDumper().dumpObject(object));
+		} finally {
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
 	@Test
 	public void testDumpObjectField() {
 		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
@@ -290,6 +359,50 @@ public class ObjectDumperTest {
 		}
 	}
 
+	@Test
+	public void testReusedDumper() {
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			ObjectDumper.MaxDumpLength = 4096;
+			ObjectDumper dumper = new ObjectDumper();
+			StringBuilder output = new StringBuilder("x = ");
+			Terminator terminator = new Terminator("T800");
+			dumper.dumpObject(terminator, output);
+			Assert.assertEquals("x = " + new ObjectDumper().dumpObject(terminator), output.toString());
+			output.setLength(0);
+			dumper.dumpObject(terminator, output); // not a repeat anymore
+			Assert.assertEquals(new ObjectDumper().dumpObject(terminator), output.toString());
+			ObjectDumper.MaxDumpLength = 4;
+			output.setLength(0);
+			dumper.dumpObject("loremipsum", output);
+			Assert.assertEquals(new ObjectDumper().dumpObject("loremipsum"), output.toString());
+		} finally {
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
+	@Test
+	public void testDumpPrimitive() {
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			Object[] samples = { true, (byte)-8, 'c', (short)300, -42, Long.MIN_VALUE, 1.5f, Math.PI };
+			char[] sorts = { 'Z', 'B', 'C', 'S', 'I', 'J', 'F', 'D' };
+			long[] values = { 1, -8, 'c', 300, -42, Long.MIN_VALUE, Float.floatToRawIntBits(1.5f), Double.doubleToRawLongBits(Math.PI) };
+
+			for(int maxDumpLength : new int[] { 4096, 4 }) {
+				ObjectDumper.MaxDumpLength = maxDumpLength;
+
+				for(int i = 0; i < samples.length; ++i) {
+					StringBuilder output = new StringBuilder();
+					new ObjectDumper().dumpPrimitive(sorts[i], values[i], output);
+					Assert.assertEquals(new ObjectDumper().dumpObject(samples[i]), output.toString());
+				}
+			}
+		} finally {
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
 	public static class CircularReference {
 		public String value;
 		public CircularReference reference;
@@ -321,6 +434,33 @@ public class ObjectDumperTest {
 		}
 	}
 
+	public static class HostileObject {
+		public String value = "hostile";
+
+		@Override
+		public boolean equals(Object theOther) {
+			throw new IllegalStateException("equals is called");
+		}
+
+		@Override
+		public int hashCode() {
+			throw new IllegalStateException("hashCode is called");
+		}
+	}
+
+	@Test
+	public void testObjectsAreComparedByIdentity() {
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			ObjectDumper.MaxDumpLength = 4096;
+			HostileObject hostile = new HostileObject();
+			String result = new ObjectDumper().dumpObject(new HostileObject[] { hostile, new HostileObject(), hostile });
+			Assert.assertEquals("[(c.d.m.ObjectDumperTest$HostileObject){value=hostile},(c.d.m.ObjectDumperTest$HostileObject){value=hostile},<!REPEAT!>]", result);
+		} finally {
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
 	@Test
 	public void testDumpArray() {
 		Integer[] a = { 1, 2, 3 };
@@ -365,6 +505,55 @@ public class ObjectDumperTest {
 		Assert.assertTrue(result.contains("" + tooLongString.toString().length()));
 	}
 
+	// a huge value is read only as far as a dump limit goes
+	@Test
+	public void testBoundedRendering() {
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			ObjectDumper.MaxDumpLength = 16;
+			StringBuilder builder = new StringBuilder();
+
+			for(int i = 0; i < 100000; ++i)
+				builder.append("hello, world!");
+
+			Assert.assertEquals("hello, world!hel... (too long value of 1300000 syms)", new ObjectDumper().dumpObject(builder));
+			// keys of maps too
+			Assert.assertEquals("[hello, world!he... (too long value of 1300000 syms)", 
+				new ObjectDumper().dumpObject(java.util.Collections.singletonMap(builder, "value")));
+
+			BitSet bits = new BitSet();
+			bits.set(1);
+			bits.set(3);
+			bits.set(100000000);
+			ObjectDumper.MaxDumpLength = 4096;
+			Assert.assertEquals(bits.toString(), new ObjectDumper().dumpObject(bits));
+			Assert.assertEquals("{}", new ObjectDumper().dumpObject(new BitSet()));
+			bits.set(0, 10000000);
+			ObjectDumper.MaxDumpLength = 16;
+			Assert.assertEquals("{0, 1, 2, 3, 4, ... (too long value)", new ObjectDumper().dumpObject(bits));
+		} finally {
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
+	@Test
+	public void testCollectionSummaries() {
+		int oldMaxDumpLength = ObjectDumper.MaxDumpLength;
+		try {
+			ObjectDumper.MaxDumpLength = 4096;
+			ObjectDumper.IsWithCollectionSummaries = true;
+			Assert.assertEquals("(j.u.Arrays$ArrayList){size=3}", new ObjectDumper().dumpObject(Arrays.asList(1, 2, 3)));
+			Assert.assertEquals("(c.d.m.ObjectDumperTest$TestObject$1){size=2}", new ObjectDumper().dumpObject(new TestObject().gunsMap));
+			Assert.assertEquals("(j.u.c.ConcurrentLinkedQueue){size=?}", new ObjectDumper().dumpObject(new java.util.concurrent.ConcurrentLinkedQueue<String>()));
+			Assert.assertEquals("(j.u.c.ConcurrentSkipListMap$KeySet){size=?}", new ObjectDumper().dumpObject(new java.util.concurrent.ConcurrentSkipListMap<String, String>().keySet()));
+			// arrays are dumped as usual
+			Assert.assertEquals("[1,2]", new ObjectDumper().dumpObject(new int[] { 1, 2 }));
+		} finally {
+			ObjectDumper.IsWithCollectionSummaries = false;
+			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
+		}
+	}
+
 	private static Field findField(List<Field> theFields, String theName) {
 		return findField(theFields, theName, null);
 	}
@@ -17,6 +17,7 @@
 package com.develorium.metracer;
 
 import java.util.*;
+import com.develorium.metracer.probe.*;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -306,4 +307,199 @@ public class RuntimeTest {
 			ObjectDumper.MaxDumpLength = oldMaxDumpLength;
 		}
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testGetArgumentValue() {
+		int methodId = MethodRegistry.register(null, "com.test.Runtime", "method", "(ZCIJFDLjava/lang/String;)V", null, false);
+		Object[] slots = Probe.getArgumentSlots(methodId, 7);
+		long[] primitiveSlots = Probe.getPrimitiveSlots(slots);
+		primitiveSlots[0] = 1;
+		primitiveSlots[1] = 'x';
+		primitiveSlots[2] = -42;
+		primitiveSlots[3] = Long.MIN_VALUE;
+		primitiveSlots[4] = Float.floatToRawIntBits(-2.5f);
+		primitiveSlots[5] = Double.doubleToRawLongBits(3.1415);
+		slots[7] = "hello";
+		Assert.assertEquals(Boolean.TRUE, r.getArgumentValue('Z', slots, 0));
+		Assert.assertEquals(Character.valueOf('x'), r.getArgumentValue('C', slots, 1));
+		Assert.assertEquals(Integer.valueOf(-42), r.getArgumentValue('I', slots, 2));
+		Assert.assertEquals(Long.valueOf(Long.MIN_VALUE), r.getArgumentValue('J', slots, 3));
+		Assert.assertEquals(Float.valueOf(-2.5f), r.getArgumentValue('F', slots, 4));
+		Assert.assertEquals(Double.valueOf(3.1415), r.getArgumentValue('D', slots, 5));
+		Assert.assertEquals("hello", r.getArgumentValue('L', slots, 6));
+		Probe.traceEntry(methodId, slots);
+	}
+
+	@Test
+	public void testMessageFormat() {
+		final List<String> messages = new ArrayList<String>();
+		new Runtime(new Runtime.LoggerInterface() {
+			@Override
+			public void printEvent(int theMethodId, int theKind, int theCallDepth, String theDetails, List<StackTraceElement> theStackTraceElements) {
+				MethodRegistry.Method method = MethodRegistry.get(theMethodId);
+				TraceEvent event = new TraceEvent();
+				event.kind = theKind;
+				event.threadId = Thread.currentThread().getId();
+				event.className = method.getClassName();
+				event.methodName = method.getMethodName();
+				event.callDepth = theCallDepth;
+				event.details = theDetails;
+				messages.add(event.render());
+			}
+
+			@Override
+			public void printDeferredEvent(int theMethodId, int theKind, int theCallDepth, Runtime.DeferredDetails theDetails, List<StackTraceElement> theStackTraceElements) {
+				printEvent(theMethodId, theKind, theCallDepth, theDetails.render(), theStackTraceElements);
+			}
+		});
+
+		// call depth is per thread, so events are traced on a fresh one
+		final int methodId = MethodRegistry.register(null, "com.test.Runtime", "format", "(ILjava/lang/String;)J", new String[] { "i", "s" }, false);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				for(int i = 0; i < 2; ++i) {
+					Object[] slots = Probe.getArgumentSlots(methodId, 2);
+					Probe.getPrimitiveSlots(slots)[0] = -42;
+					slots[2] = "hello";
+					Probe.traceEntry(methodId, slots);
+				}
+
+				Probe.traceExit(methodId, 7L);
+				Probe.traceExceptionExit(methodId, new IllegalStateException("failed"));
+			}
+		};
+
+		try {
+			thread.start();
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			new Runtime(null);
+		}
+
+		String threadTag = String.format("[metracer.%08X]", thread.getId());
+		Assert.assertEquals(Arrays.asList(
+				threadTag + " +++ [0] com.test.Runtime.format(i = -42, s = hello)",
+				threadTag + "  +++ [1] com.test.Runtime.format(i = -42, s = hello)",
+				threadTag + "  --- [1] com.test.Runtime.format => return: 7",
+				threadTag + " --- [0] com.test.Runtime.format => exception: java.lang.IllegalStateException: failed"), messages);
+	}
+
+	@Test
+	public void testCallDepthAfterMethodsAreSwitched() {
+		final List<Integer> callDepths = new ArrayList<Integer>();
+		new Runtime(new Runtime.LoggerInterface() {
+			@Override
+			public void printEvent(int theMethodId, int theKind, int theCallDepth, String theDetails, List<StackTraceElement> theStackTraceElements) {
+				callDepths.add(theKind == TraceEvent.Exit ? -theCallDepth - 1 : theCallDepth);
+			}
+
+			@Override
+			public void printDeferredEvent(int theMethodId, int theKind, int theCallDepth, Runtime.DeferredDetails theDetails, List<StackTraceElement> theStackTraceElements) {
+				printEvent(theMethodId, theKind, theCallDepth, theDetails.render(), theStackTraceElements);
+			}
+		});
+
+		final int methodId = MethodRegistry.register(null, "com.test.Runtime", "switched", "()V", null, false);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				Probe.traceEntry(methodId, null);
+				Probe.traceEntry(methodId, null);
+				// exits of both calls get lost, as if they were disabled meanwhile
+				MethodRegistry.setTracingMode(null, TracingMode.TRACE);
+				Probe.traceEntry(methodId, null);
+				Probe.traceExit(methodId);
+				// an exit of a call entered before a switch
+				Probe.traceExit(methodId);
+				Probe.traceEntry(methodId, null);
+				Probe.traceExit(methodId);
+			}
+		};
+
+		try {
+			thread.start();
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			new Runtime(null);
+		}
+
+		// exits are negated and offset by one
+		Assert.assertEquals(Arrays.asList(0, 1, 0, -1, -1, 0, -1), callDepths);
+	}
+
+	@Test
+	public void testDeferredRendering() {
+		final List<Runtime.DeferredDetails> details = new ArrayList<Runtime.DeferredDetails>();
+		new Runtime(new Runtime.LoggerInterface() {
+			@Override
+			public void printEvent(int theMethodId, int theKind, int theCallDepth, String theDetails, List<StackTraceElement> theStackTraceElements) {
+				Assert.fail("Details were rendered by a traced thread: " + theDetails);
+			}
+
+			@Override
+			public void printDeferredEvent(int theMethodId, int theKind, int theCallDepth, Runtime.DeferredDetails theDetails, List<StackTraceElement> theStackTraceElements) {
+				details.add(theDetails);
+			}
+		});
+
+		final int methodId = MethodRegistry.register(null, "com.test.Runtime", "defer", "(ILjava/lang/StringBuilder;Ljava/util/List;)Ljava/lang/Object;", new String[] { "i", "b", "l" }, false);
+		final StringBuilder builder = new StringBuilder("abc");
+		final List<String> list = new ArrayList<String>();
+		final StringBuilder longBuilder = new StringBuilder();
+
+		for(int i = 0; i < 10; ++i)
+			longBuilder.append("0123456789");
+
+		Runtime.isWithDeferredRendering = true;
+
+		try {
+			Object[] slots = Probe.getArgumentSlots(methodId, 3);
+			Probe.getPrimitiveSlots(slots)[0] = 42;
+			slots[2] = builder;
+			slots[3] = list;
+			Probe.traceEntry(methodId, slots);
+			Probe.traceExit(methodId, longBuilder);
+			// slots of a thread are reused by a next call
+			slots = Probe.getArgumentSlots(methodId, 3);
+			Probe.getPrimitiveSlots(slots)[0] = 7;
+			slots[2] = null;
+			slots[3] = null;
+			Probe.traceEntry(methodId, slots);
+			Probe.traceExit(methodId, (Object)null);
+		} finally {
+			Runtime.isWithDeferredRendering = false;
+			new Runtime(null);
+		}
+
+		builder.append("def");
+		list.add("x");
+		longBuilder.setLength(0);
+		Assert.assertEquals(4, details.size());
+		// a string builder is captured, other mutable arguments are rendered as they are by now
+		Assert.assertEquals("i = 42, b = abc, l = [x]", details.get(0).render());
+		Assert.assertEquals(" => return: 01234567890123456789012345678901... (too long value of 100 syms)", details.get(1).render());
+		Assert.assertEquals("i = 7, b = null, l = null", details.get(2).render());
+		Assert.assertEquals(" => return: null", details.get(3).render());
+		// rendered once
+		Assert.assertSame(details.get(0).render(), details.get(0).render());
+	}
+
+	@Test
+	public void testFormatThreadId() {
+		Assert.assertEquals("0000002A", Runtime.formatThreadId(42));
+		Assert.assertEquals("7FFFFFFF", Runtime.formatThreadId(Integer.MAX_VALUE));
+		Assert.assertEquals("0000000100000000", Runtime.formatThreadId(1L << 32));
+	}
+
+	@Test
+	public void testGetIndent() {
+		Assert.assertEquals("", Runtime.getIndent(0));
+		Assert.assertEquals("   ", Runtime.getIndent(3));
+		Assert.assertEquals(32, Runtime.getIndent(100).length());
+	}
+}
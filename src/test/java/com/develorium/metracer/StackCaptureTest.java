@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer;
+
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StackCaptureTest {
+	@Test
+	public void testThrowableCapture() {
+		testCapture(new StackCapture.ThrowableCapture());
+	}
+
+	@Test
+	public void testStackWalkerCapture() {
+		try {
+			Class.forName("java.lang.StackWalker");
+		} catch(ClassNotFoundException e) {
+			return; // Java 8 and older
+		}
+
+		Assert.assertTrue(StackCapture.instance instanceof StackCapture.AdaptiveCapture);
+		testCapture(new StackCapture.StackWalkerCapture());
+	}
+
+	@Test
+	public void testAdaptiveCapture() {
+		StackCapture capture = null;
+
+		try {
+			capture = new StackCapture.AdaptiveCapture(new StackCapture.StackWalkerCapture());
+		} catch(Throwable e) {
+			return; // Java 8 and older
+		}
+
+		testCapture(capture);
+		// a first capture of a deep stack takes a Throwable, following ones walk it
+		StackCapture[] captures = { capture, capture, capture, new StackCapture.ThrowableCapture() };
+		List<List<StackTraceElement>> stackTraces = captureDeep(4 * StackCapture.AdaptiveCapture.DeepStackFactor * 8, captures);
+		Assert.assertEquals(8, stackTraces.get(0).size());
+
+		for(List<StackTraceElement> stackTrace : stackTraces)
+			Assert.assertEquals(stackTraces.get(3), stackTrace);
+	}
+
+	private static List<List<StackTraceElement>> captureDeep(int theDepth, StackCapture[] theCaptures) {
+		if(theDepth > 0)
+			return captureDeep(theDepth - 1, theCaptures);
+
+		List<List<StackTraceElement>> rv = new ArrayList<List<StackTraceElement>>();
+
+		for(StackCapture capture : theCaptures)
+			rv.add(tracedMethod(capture, 8));
+
+		return rv;
+	}
+
+	@Test
+	public void testDefaultCapture() {
+		testCapture(StackCapture.instance);
+	}
+
+	private void testCapture(StackCapture theCapture) {
+		List<StackTraceElement> stackTrace = tracedMethod(theCapture, 1000);
+		Assert.assertNotNull(stackTrace);
+		Assert.assertEquals("tracedMethod", stackTrace.get(0).getMethodName());
+		Assert.assertEquals("testCapture", stackTrace.get(1).getMethodName());
+		// a whole stack is taken, down to a thread entry point
+		StackTraceElement[] elements = new Throwable().getStackTrace();
+		Assert.assertEquals(elements[elements.length - 1], stackTrace.get(stackTrace.size() - 1));
+
+		List<StackTraceElement> limitedStackTrace = tracedMethod(theCapture, 3);
+		Assert.assertEquals(3, limitedStackTrace.size());
+		Assert.assertEquals(stackTrace.get(2), limitedStackTrace.get(2));
+		Assert.assertNull(theCapture.capture(getClass().getName(), "absentMethod", 3));
+	}
+
+	private static List<StackTraceElement> tracedMethod(StackCapture theCapture, int theMaxDepth) {
+		return theCapture.capture(StackCaptureTest.class.getName(), "tracedMethod", theMaxDepth);
+	}
+}
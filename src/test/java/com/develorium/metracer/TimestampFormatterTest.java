@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer;
+
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimestampFormatterTest {
+	private static final long StartTime = 1476000000000L;
+
+	@Test
+	public void testFormat() {
+		TimestampFormatter formatter = new TimestampFormatter();
+		SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd hh:mm:ss.SSS");
+
+		// within a second, across seconds and back
+		for(long millis : new long[] { StartTime, StartTime + 7, StartTime + 42, StartTime + 999, StartTime + 1000, StartTime + 86400123, StartTime + 5 })
+			Assert.assertEquals(format.format(new Date(millis)), formatter.format(millis * 1000000L + 999999));
+	}
+
+	@Test
+	public void testConcurrentFormat() throws InterruptedException {
+		final TimestampFormatter formatter = new TimestampFormatter();
+		final AtomicInteger mismatchesCount = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+
+		for(int i = 0; i < threads.length; ++i) {
+			final int shift = i * 1500;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd hh:mm:ss.SSS");
+
+					for(long millis = StartTime + shift; millis < StartTime + shift + 20000; millis += 7) {
+						if(!format.format(new Date(millis)).equals(formatter.format(millis * 1000000L)))
+							mismatchesCount.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for(Thread thread : threads)
+			thread.join();
+
+		Assert.assertEquals(0, mismatchesCount.get());
+	}
+}
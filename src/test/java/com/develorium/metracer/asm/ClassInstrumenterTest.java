@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.*;
+import com.develorium.metracer.*;
+import com.develorium.metracer.probe.*;
+
+public class ClassInstrumenterTest {
+	private static final String GeneratedClassName = "com.develorium.metracertest.Generated";
+	private static final String SmallMethod = "small(IJLjava/lang/Object;DZLjava/lang/String;)J";
+
+	@After
+	public void resetBudget() {
+		CodeBudget.MaxCodeGrowth = 0;
+	}
+
+	@Test
+	public void testFullInstrumentation() {
+		byte[] bytecode = generateClass(0);
+		Patterns patterns = new Patterns(GeneratedClassName, null);
+		ClassInstrumenter.Result result = ClassInstrumenter.instrument(bytecode, getClass().getClassLoader(), patterns, ProbeEmission.DIRECT);
+		Assert.assertTrue(result.isChanged);
+		Assert.assertTrue(result.degradedMethods.isEmpty());
+		Assert.assertTrue(result.skippedMethods.isEmpty());
+		Assert.assertTrue(CodeSizes.read(result.bytecode).get(SmallMethod) > CodeSizes.read(bytecode).get(SmallMethod));
+		Assert.assertEquals(1, patterns.getInstrumentedMethodsCount());
+		Assert.assertEquals(42L, invokeSmallMethod(result.bytecode));
+		Assert.assertTrue(getRegisteredMethod("small").getIsRegistered());
+	}
+
+	@Test
+	public void testDegradationByCodeGrowth() {
+		byte[] bytecode = generateClass(0);
+		Patterns patterns = new Patterns(GeneratedClassName, null);
+		CodeBudget.MaxCodeGrowth = 60; // full instrumentation of all arguments takes more
+		ClassInstrumenter.Result result = ClassInstrumenter.instrument(bytecode, getClass().getClassLoader(), patterns, ProbeEmission.DIRECT);
+		Assert.assertTrue(result.isChanged);
+		Assert.assertEquals(Arrays.asList(SmallMethod), result.degradedMethods);
+		Assert.assertTrue(result.skippedMethods.isEmpty());
+		Assert.assertTrue(CodeSizes.read(result.bytecode).get(SmallMethod) - CodeSizes.read(bytecode).get(SmallMethod) <= 60);
+		Assert.assertEquals(1, patterns.getInstrumentedMethodsCount());
+		Assert.assertEquals(1, patterns.getDegradedMethodsCount());
+		Assert.assertEquals(42L, invokeSmallMethod(result.bytecode));
+	}
+
+	@Test
+	public void testSkipByCodeGrowth() {
+		byte[] bytecode = generateClass(0);
+		Patterns patterns = new Patterns(GeneratedClassName, null);
+		CodeBudget.MaxCodeGrowth = 1;
+		ClassInstrumenter.Result result = ClassInstrumenter.instrument(bytecode, getClass().getClassLoader(), patterns, ProbeEmission.DIRECT);
+		Assert.assertFalse(result.isChanged);
+		Assert.assertSame(bytecode, result.bytecode);
+		Assert.assertEquals(Arrays.asList(SmallMethod), result.skippedMethods);
+		Assert.assertEquals(0, patterns.getInstrumentedMethodsCount());
+		Assert.assertEquals(1, patterns.getSkippedMethodsCount());
+		// registered by a first pass, which instrumented it fully
+		MethodRegistry.Method method = getRegisteredMethod("small");
+		Assert.assertFalse(method.getIsRegistered());
+		Assert.assertFalse(method.getIsEnabled());
+		MethodRegistry.enableMethods(new MethodRegistry.MethodSelector() {
+				@Override
+				public boolean isSelected(String theClassName, String theMethodName) {
+					return true;
+				}
+			});
+		Assert.assertFalse(method.getIsEnabled());
+	}
+
+	@Test
+	public void testSkipByHugeMethodLimit() {
+		byte[] bytecode = generateClass(CodeBudget.HugeMethodLimit - 5);
+		Patterns patterns = new Patterns(GeneratedClassName, null);
+		ClassInstrumenter.Result result = ClassInstrumenter.instrument(bytecode, getClass().getClassLoader(), patterns, ProbeEmission.DIRECT);
+		Assert.assertTrue(result.isChanged);
+		Assert.assertEquals(Arrays.asList("big()I"), result.skippedMethods);
+		Assert.assertEquals(CodeSizes.read(bytecode).get("big()I"), CodeSizes.read(result.bytecode).get("big()I"));
+		Assert.assertEquals(42L, invokeSmallMethod(result.bytecode));
+	}
+
+	@Test
+	public void testSkipByMaxCodeSize() {
+		// a method of a half of MaxCodeSize fits, only the one which doesn't is demoted
+		byte[] bytecode = generateClass(CodeBudget.MaxCodeSize - 5, CodeBudget.MaxCodeSize / 2 + 100);
+		Patterns patterns = new Patterns(GeneratedClassName, null);
+		ClassInstrumenter.Result result = ClassInstrumenter.instrument(bytecode, getClass().getClassLoader(), patterns, ProbeEmission.REFLECTIVE);
+		Assert.assertTrue(result.isChanged);
+		Assert.assertEquals(Arrays.asList("big()I"), result.skippedMethods);
+		Assert.assertTrue(result.degradedMethods.isEmpty());
+		Assert.assertTrue(CodeSizes.read(result.bytecode).get("medium()I") > CodeSizes.read(bytecode).get("medium()I"));
+		Assert.assertEquals(42L, invokeSmallMethod(result.bytecode));
+		Assert.assertFalse(getRegisteredMethod("big").getIsRegistered());
+		Assert.assertTrue(getRegisteredMethod("medium").getIsRegistered());
+	}
+
+	@Test
+	public void testIsWithin() {
+		Assert.assertTrue(CodeBudget.isWithin(100, 1000));
+		Assert.assertTrue(CodeBudget.isWithin(9000, 9100));
+		Assert.assertFalse(CodeBudget.isWithin(7990, 8010));
+		Assert.assertFalse(CodeBudget.isWithin(65500, 65536));
+		CodeBudget.MaxCodeGrowth = 100;
+		Assert.assertTrue(CodeBudget.isWithin(100, 200));
+		Assert.assertFalse(CodeBudget.isWithin(100, 201));
+	}
+
+	private static MethodRegistry.Method getRegisteredMethod(String theMethodName) {
+		for(int i = 0; i < MethodRegistry.getCount(); ++i) {
+			MethodRegistry.Method method = MethodRegistry.get(i);
+
+			if(method.getClassName().equals(GeneratedClassName) && method.getMethodName().equals(theMethodName))
+				return method;
+		}
+
+		return null;
+	}
+
+	private static byte[] generateClass(int theBigMethodSize) {
+		return generateClass(theBigMethodSize, 0);
+	}
+
+	// small method returns its long argument, big and medium methods (if their sizes > 0) consist of NOPs and return 0
+	private static byte[] generateClass(int theBigMethodSize, int theMediumMethodSize) {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, GeneratedClassName.replace('.', '/'), null, "java/lang/Object", null);
+		MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "small", SmallMethod.substring(5), null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.LLOAD, 1);
+		mv.visitInsn(Opcodes.LRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		if(theBigMethodSize > 0)
+			generateNopMethod(writer, "big", theBigMethodSize);
+
+		if(theMediumMethodSize > 0)
+			generateNopMethod(writer, "medium", theMediumMethodSize);
+
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static void generateNopMethod(ClassWriter theWriter, String theName, int theSize) {
+		MethodVisitor mv = theWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, theName, "()I", null, null);
+		mv.visitCode();
+
+		for(int i = 0; i < theSize - 2; ++i)
+			mv.visitInsn(Opcodes.NOP);
+
+		mv.visitInsn(Opcodes.ICONST_0);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private static long invokeSmallMethod(final byte[] theBytecode) {
+		ClassLoader loader = new ClassLoader(ClassInstrumenterTest.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String theName) throws ClassNotFoundException {
+				if(!theName.equals(GeneratedClassName))
+					throw new ClassNotFoundException(theName);
+
+				return defineClass(theName, theBytecode, 0, theBytecode.length);
+			}
+		};
+
+		try {
+			Class<?> c = loader.loadClass(GeneratedClassName);
+			java.lang.reflect.Method method = c.getMethod("small", int.class, long.class, Object.class, double.class, boolean.class, String.class);
+			return (Long)method.invoke(null, 1, 42L, null, 2.0, true, "s");
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.asm;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodeSizesTest {
+	static abstract class Sample {
+		int field = 42;
+
+		void empty() {
+		}
+
+		abstract void notImplemented();
+	}
+
+	@Test
+	public void testRead() throws IOException {
+		Map<String, Integer> sizes = CodeSizes.read(readBytecode(Sample.class));
+		Assert.assertEquals(Integer.valueOf(1), sizes.get("empty()V")); // RETURN
+		Assert.assertTrue(sizes.get("<init>()V") > 1);
+		Assert.assertFalse(sizes.containsKey("notImplemented()V"));
+	}
+
+	private static byte[] readBytecode(Class<?> theClass) throws IOException {
+		InputStream stream = theClass.getResourceAsStream(theClass.getName().replaceAll(".*\\.", "") + ".class");
+		ByteArrayOutputStream rv = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count = 0;
+
+		while((count = stream.read(buffer)) > 0)
+			rv.write(buffer, 0, count);
+
+		stream.close();
+		return rv.toByteArray();
+	}
+}
@@ -17,6 +17,7 @@
 package com.develorium.metracer.dynamic;
 
 import java.io.*;
+import java.util.*;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -27,10 +28,95 @@ public class AgentMXBeanTest {
 		counters.classesCount = 1;
 		counters.methodsCount = 2;
 		counters.failedClassesCount = 3;
+		counters.degradedMethodsCount = 4;
+		counters.skippedMethodsCount = 5;
 		byte[] data = counters.serialize();
 		AgentMXBean.Counters restoredCounters = AgentMXBean.Counters.deserialize(data);
 		Assert.assertEquals(counters.classesCount, restoredCounters.classesCount);
 		Assert.assertEquals(counters.methodsCount, restoredCounters.methodsCount);
 		Assert.assertEquals(counters.failedClassesCount, restoredCounters.failedClassesCount);
+		Assert.assertEquals(counters.degradedMethodsCount, restoredCounters.degradedMethodsCount);
+		Assert.assertEquals(counters.skippedMethodsCount, restoredCounters.skippedMethodsCount);
+	}
+
+	@Test
+	public void testTimingsSerialization() throws IOException, ClassNotFoundException {
+		AgentMXBean.Timings timings = new AgentMXBean.Timings();
+		AgentMXBean.MethodTiming timing = new AgentMXBean.MethodTiming();
+		timing.className = "com.test.Timed";
+		timing.methodName = "method";
+		timing.count = 10;
+		timing.mean = 1.5;
+		timing.p999 = 42;
+		timings.methods.add(timing);
+		AgentMXBean.Timings restoredTimings = AgentMXBean.Timings.deserialize(timings.serialize());
+		Assert.assertEquals(1, restoredTimings.methods.size());
+		AgentMXBean.MethodTiming restoredTiming = restoredTimings.methods.get(0);
+		Assert.assertEquals(timing.className, restoredTiming.className);
+		Assert.assertEquals(timing.methodName, restoredTiming.methodName);
+		Assert.assertEquals(timing.count, restoredTiming.count);
+		Assert.assertEquals(timing.p999, restoredTiming.p999);
+		Assert.assertEquals(15.0, restoredTiming.getTotal(), 0.001);
+	}
+
+	@Test(expected = ClassCastException.class)
+	public void testDeserializationOfAnotherClass() throws IOException, ClassNotFoundException {
+		AgentMXBean.Counters.deserialize(new AgentMXBean.Timings().serialize());
+	}
+
+	@Test
+	public void testCallCountsSerialization() throws IOException, ClassNotFoundException {
+		AgentMXBean.CallCounts callCounts = new AgentMXBean.CallCounts();
+		AgentMXBean.MethodCallCount callCount = new AgentMXBean.MethodCallCount();
+		callCount.className = "com.test.Counted";
+		callCount.methodName = "method";
+		callCount.count = 10;
+		callCount.rate = 2.5;
+		callCounts.methods.add(callCount);
+		AgentMXBean.CallCounts restoredCallCounts = AgentMXBean.CallCounts.deserialize(callCounts.serialize());
+		Assert.assertEquals(1, restoredCallCounts.methods.size());
+		AgentMXBean.MethodCallCount restoredCallCount = restoredCallCounts.methods.get(0);
+		Assert.assertEquals(callCount.className, restoredCallCount.className);
+		Assert.assertEquals(callCount.methodName, restoredCallCount.methodName);
+		Assert.assertEquals(callCount.count, restoredCallCount.count);
+		Assert.assertEquals(callCount.rate, restoredCallCount.rate, 0.001);
+	}
+
+	@Test
+	public void testEventBatchSerialization() throws IOException, ClassNotFoundException {
+		AgentMXBean.EventBatch batch = new AgentMXBean.EventBatch();
+		batch.sessionId = 3;
+		batch.firstSequenceNumber = 1024;
+		batch.eventsCount = 2;
+		batch.events = new byte[] { 1, 0, 0, 0, 2, 0 };
+		batch.rawLength = 42;
+		AgentMXBean.EventBatch restoredBatch = AgentMXBean.EventBatch.deserialize(batch.serialize());
+		Assert.assertEquals(batch.sessionId, restoredBatch.sessionId);
+		Assert.assertEquals(batch.firstSequenceNumber, restoredBatch.firstSequenceNumber);
+		Assert.assertEquals(batch.eventsCount, restoredBatch.eventsCount);
+		Assert.assertArrayEquals(batch.events, restoredBatch.events);
+		Assert.assertEquals(batch.rawLength, restoredBatch.rawLength);
+	}
+
+	@Test
+	public void testEventStreamAddressSerialization() throws IOException, ClassNotFoundException {
+		AgentMXBean.EventStreamAddress address = new AgentMXBean.EventStreamAddress();
+		address.port = 40123;
+		address.token = -5304832712221989304L;
+		AgentMXBean.EventStreamAddress restoredAddress = AgentMXBean.EventStreamAddress.deserialize(address.serialize());
+		Assert.assertEquals(address.port, restoredAddress.port);
+		Assert.assertEquals(address.token, restoredAddress.token);
+	}
+
+	@Test
+	public void testSerialVersionUIDsAreDistinct() {
+		Class<?>[] classes = { AgentMXBean.Counters.class, AgentMXBean.MethodTiming.class, AgentMXBean.Timings.class,
+			AgentMXBean.MethodCallCount.class, AgentMXBean.CallCounts.class, AgentMXBean.EventBatch.class,
+			AgentMXBean.EventStreamAddress.class };
+		Set<Long> uids = new HashSet<Long>();
+
+		for(Class<?> c : classes) {
+			Assert.assertTrue(c.getName(), uids.add(ObjectStreamClass.lookup(c).getSerialVersionUID()));
+		}
 	}
 }
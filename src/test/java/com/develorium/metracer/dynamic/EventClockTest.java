@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventClockTest {
+	@Test
+	public void testMonotonicity() {
+		EventClock clock = new EventClock();
+		long previous = clock.getTime();
+		Assert.assertTrue(Math.abs(previous - System.currentTimeMillis() * 1000000L) < 2 * EventClock.MaxDrift);
+
+		for(int i = 0; i < 100000; ++i) {
+			long current = clock.getTime();
+			Assert.assertTrue(current >= previous);
+			previous = current;
+		}
+	}
+
+	@Test
+	public void testResync() {
+		EventClock clock = new EventClock();
+		long nanoTime = System.nanoTime();
+		long time = clock.getTime();
+		Assert.assertFalse(clock.resync(nanoTime, time + EventClock.MaxDrift / 2));
+		Assert.assertFalse(clock.resyncIfDue());
+
+		// a wall clock stepped forward
+		Assert.assertTrue(clock.resync(nanoTime, time + 60000L * 1000000L));
+		Assert.assertTrue(clock.getTime() - time >= 60000L * 1000000L);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+import com.develorium.metracer.*;
+
+public class EventEncoderTest {
+	private static final long StartTime = 1476000000000L * 1000000L;
+
+	@Test
+	public void testRoundTrip() {
+		List<TraceEvent> events = new ArrayList<TraceEvent>();
+		events.add(createEvent(TraceEvent.Entry, 0, 1, "s = \u0432\u0442\u043e\u0440\u043e\u0439 \ud83d\ude00 \ud83d"));
+		events.add(createEvent(TraceEvent.StackFrame, 0, 1, "com.test.Class1.method1(Class1.java:10)"));
+		events.add(createEvent(TraceEvent.Entry, 1, 2, ""));
+		events.add(JournalTest.note("[metracer] a note"));
+		events.add(createEvent(TraceEvent.Exit, 1, 2, " => void"));
+		events.add(createEvent(TraceEvent.Exit, 0, 1, " => return: -1"));
+		// earlier than a previous one, as events of different threads may come
+		events.add(createEvent(TraceEvent.Exit, 2, 1000, " => exception: java.lang.Error"));
+		events.get(events.size() - 1).time = StartTime - 1;
+		events.get(events.size() - 1).callDepth = -1;
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		EventEncoder encoder = new EventEncoder();
+
+		for(TraceEvent event : events)
+			encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+
+		buffer.flip();
+		EventDecoder decoder = new EventDecoder();
+
+		for(TraceEvent event : events) {
+			TraceEvent decoded = decoder.decode(buffer);
+			Assert.assertEquals(event.kind, decoded.kind);
+			Assert.assertEquals(event.time, decoded.time);
+			Assert.assertEquals(event.render().replace("\ud83d\ude00 \ud83d", "\ud83d\ude00 ?"), decoded.render());
+
+			if(event.kind != TraceEvent.Note) {
+				Assert.assertEquals(event.threadId, decoded.threadId);
+				Assert.assertEquals(event.threadName, decoded.threadName);
+				Assert.assertEquals(event.methodId, decoded.methodId);
+			}
+		}
+
+		Assert.assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void testDefinitionsAreSentOnce() {
+		EventEncoder encoder = new EventEncoder();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		TraceEvent event = createEvent(TraceEvent.Entry, 0, 1, "");
+		encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+		int firstSize = buffer.position();
+		encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+		// kind, thread index, method id, call depth, zero time delta and an empty string
+		Assert.assertEquals(6, buffer.position() - firstSize);
+
+		encoder.reset();
+		int start = buffer.position();
+		encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+		Assert.assertEquals(firstSize, buffer.position() - start);
+	}
+
+	@Test
+	public void testOverflow() {
+		EventEncoder encoder = new EventEncoder();
+		TraceEvent event = createEvent(TraceEvent.Entry, 0, 1, "i = 1");
+		ByteBuffer small = ByteBuffer.allocate(20);
+		small.put((byte)42);
+
+		try {
+			encoder.encode(event, small, EventEncoder.MaxDetailsLength);
+			Assert.fail();
+		} catch(BufferOverflowException e) {
+		}
+
+		Assert.assertEquals(1, small.position());
+
+		// definitions which didn't fit are sent again
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		encoder.encode(event, buffer, 3);
+		buffer.flip();
+		Assert.assertEquals(event.render().replace("i = 1", "i ="), new EventDecoder().decode(buffer).render());
+	}
+
+	@Test
+	public void testStackTraces() throws UnsupportedEncodingException {
+		List<StackTraceElement> stackTrace = Arrays.asList(
+			new StackTraceElement("com.test.Class1", "method1", "Class1.java", 10),
+			new StackTraceElement("com.test.Main", "main", "Main.java", 3));
+		StackTable table = new StackTable();
+		TraceEvent event = createEvent(TraceEvent.Entry, 0, 1, "i = 1");
+		event.stackTraceElements = stackTrace;
+		event.stackId = table.intern(stackTrace);
+		Assert.assertTrue(table.getIsLastNew());
+		Assert.assertEquals(event.stackId, table.intern(new ArrayList<StackTraceElement>(stackTrace)));
+		Assert.assertFalse(table.getIsLastNew());
+		Assert.assertTrue(event.stackId != table.intern(stackTrace.subList(1, 2)));
+
+		EventEncoder encoder = new EventEncoder();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+		int firstSize = buffer.position();
+		encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+		// frames are sent once, a next entry carries a stack id only
+		Assert.assertTrue(buffer.position() - firstSize < 16);
+		encoder.encode(createEvent(TraceEvent.Exit, 0, 1, " => void"), buffer, EventEncoder.MaxDetailsLength);
+
+		buffer.flip();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		PrintStream textStream = new PrintStream(text, true, "UTF-8");
+		EventDecoder decoder = new EventDecoder();
+
+		while(buffer.hasRemaining())
+			decoder.print(buffer, textStream);
+
+		String[] lines = JournalTest.stripTimestamps(text.toString("UTF-8")).split("\n");
+		Assert.assertEquals(7, lines.length);
+
+		for(int i = 0; i < 2; ++i) {
+			Assert.assertEquals(event.render(), lines[3 * i]);
+			Assert.assertTrue(lines[3 * i + 1].endsWith(" +++ [1]     at com.test.Class1.method1(Class1.java:10)"));
+			Assert.assertTrue(lines[3 * i + 2].endsWith(" +++ [1]     at com.test.Main.main(Main.java:3)"));
+		}
+
+		Assert.assertTrue(lines[6].endsWith(" --- [1] com.develorium.metracertest.service.Class1.method1 => void"));
+	}
+
+	// an encoded form of a typical trace is compared to its text one
+	@Test
+	public void testSize() throws UnsupportedEncodingException {
+		EventEncoder encoder = new EventEncoder();
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		PrintStream textStream = new PrintStream(text, true, "UTF-8");
+		EventDecoder decoder = new EventDecoder();
+
+		for(int i = 0; i < 10000; ++i) {
+			TraceEvent event = i % 2 == 0
+				? createEvent(TraceEvent.Entry, i % 4, i % 50, String.format("id = %d, flag = true", i % 1000))
+				: createEvent(TraceEvent.Exit, i % 4, i % 50, " => void");
+			event.time += i * 25000L;
+			int start = buffer.position();
+			encoder.encode(event, buffer, EventEncoder.MaxDetailsLength);
+			ByteBuffer record = buffer.duplicate();
+			record.position(start);
+			record.limit(buffer.position());
+			decoder.print(record, textStream);
+		}
+
+		Assert.assertTrue(String.format("%d bytes of text vs %d bytes encoded", text.size(), buffer.position()),
+			text.size() >= 5 * buffer.position());
+	}
+
+	static TraceEvent createEvent(int theKind, int theThreadIndex, int theMethodIndex, String theDetails) {
+		TraceEvent rv = new TraceEvent();
+		rv.kind = theKind;
+		rv.time = StartTime + theMethodIndex * 1000L;
+		rv.threadId = 100 + theThreadIndex;
+		rv.threadName = String.format("worker-%d", theThreadIndex);
+		rv.methodId = theMethodIndex;
+		rv.className = String.format("com.develorium.metracertest.service.Class%d", theMethodIndex % 5);
+		rv.methodName = String.format("method%d", theMethodIndex);
+		rv.callDepth = theMethodIndex % 5;
+		rv.details = theDetails;
+		return rv;
+	}
+}
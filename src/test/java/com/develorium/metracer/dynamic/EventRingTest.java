@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+import com.develorium.metracer.*;
+
+public class EventRingTest {
+	private static class CollectingSink implements EventDrain.Sink {
+		List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		long droppedCount = 0;
+
+		@Override
+		public void consumeEvent(TraceEvent theEvent) {
+			Assert.assertEquals(Integer.parseInt(theEvent.details), theEvent.methodId);
+			Assert.assertEquals(theEvent.methodId * 10L, theEvent.time);
+			Assert.assertEquals(TraceEvent.Exit, theEvent.kind);
+			Assert.assertEquals(theEvent.methodId % 7, theEvent.callDepth);
+			messages.add(theEvent.details);
+		}
+
+		@Override
+		public void consumeDroppedEvents(String theThreadName, long theDroppedCount) {
+			droppedCount += theDroppedCount;
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+
+	@Test
+	public void testDropNewest() {
+		CollectingSink sink = new CollectingSink();
+		EventRing ring = fill(10, OverflowPolicy.DROP_NEWEST);
+		Assert.assertEquals(2, ring.getDroppedCount());
+		Assert.assertEquals(3, ring.drain(sink, new TraceEvent(), 3));
+		Assert.assertEquals(5, ring.drain(sink, new TraceEvent(), 100));
+		Assert.assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7"), sink.messages);
+		Assert.assertTrue(ring.isEmpty());
+		Assert.assertEquals(2, ring.takeDroppedCount());
+		Assert.assertEquals(0, ring.takeDroppedCount());
+	}
+
+	@Test
+	public void testDropOldest() {
+		CollectingSink sink = new CollectingSink();
+		EventRing ring = fill(10, OverflowPolicy.DROP_OLDEST);
+		Assert.assertEquals(2, ring.getDroppedCount());
+		Assert.assertEquals(8, ring.drain(sink, new TraceEvent(), 100));
+		Assert.assertEquals(Arrays.asList("2", "3", "4", "5", "6", "7", "8", "9"), sink.messages);
+	}
+
+	@Test
+	public void testSample() {
+		CollectingSink sink = new CollectingSink();
+		EventRing ring = fill(8 + 2 * OverflowPolicy.SampleRate, OverflowPolicy.SAMPLE);
+		Assert.assertEquals(2 * OverflowPolicy.SampleRate, ring.getDroppedCount());
+		Assert.assertEquals(8, ring.drain(sink, new TraceEvent(), 100));
+		Assert.assertEquals(Arrays.asList("2", "3", "4", "5", "6", "7", 
+				"" + (8 + OverflowPolicy.SampleRate - 1), "" + (8 + 2 * OverflowPolicy.SampleRate - 1)), sink.messages);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadCapacity() {
+		new EventRing(10, Thread.currentThread());
+	}
+
+	@Test
+	public void testConcurrentDrain() throws InterruptedException {
+		for(final OverflowPolicy policy : OverflowPolicy.values()) {
+			final int eventsCount = 200000;
+			final EventRing ring = new EventRing(64, Thread.currentThread());
+			final CollectingSink sink = new CollectingSink();
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < eventsCount; ++i)
+						ring.offer(i, i * 10L, TraceEvent.Exit, i % 7, Integer.toString(i), null, policy);
+				}
+			};
+			producer.start();
+
+			while(producer.isAlive())
+				ring.drain(sink, new TraceEvent(), 16);
+
+			producer.join();
+			ring.drain(sink, new TraceEvent(), Integer.MAX_VALUE);
+			Assert.assertEquals(eventsCount, sink.messages.size() + ring.getDroppedCount());
+			int previous = -1;
+
+			for(String message : sink.messages) {
+				int current = Integer.parseInt(message);
+				Assert.assertTrue(current > previous);
+				previous = current;
+			}
+		}
+	}
+
+	@Test
+	public void testDrain() throws InterruptedException {
+		CollectingSink sink = new CollectingSink();
+		EventDrain drain = new EventDrain(sink);
+		drain.start();
+
+		for(int i = 0; i < 100; ++i)
+			drain.offer(i, i * 10L, TraceEvent.Exit, i % 7, Integer.toString(i), null);
+
+		drain.stop();
+		Assert.assertEquals(100, sink.messages.size());
+		Assert.assertEquals(0, drain.getDroppedCount());
+	}
+
+	@Test
+	public void testDrainRestart() throws InterruptedException {
+		CollectingSink sink = new CollectingSink();
+		EventDrain drain = new EventDrain(sink);
+		Assert.assertFalse(drain.getIsStarted());
+		drain.start();
+		Assert.assertTrue(drain.getIsStarted());
+		drain.stop();
+		Assert.assertFalse(drain.getIsStarted());
+		drain.start();
+		// an idle drain thread backs off, yet still delivers events in time
+		Thread.sleep(200);
+
+		for(int i = 0; i < 10; ++i)
+			drain.offer(i, i * 10L, TraceEvent.Exit, i % 7, Integer.toString(i), null);
+
+		for(int i = 0; i < 100 && sink.messages.size() < 10; ++i)
+			Thread.sleep(10);
+
+		Assert.assertEquals(10, sink.messages.size());
+		drain.stop();
+		Assert.assertFalse(drain.getIsStarted());
+	}
+
+	private static EventRing fill(int theEventsCount, OverflowPolicy thePolicy) {
+		EventRing rv = new EventRing(8, Thread.currentThread());
+
+		for(int i = 0; i < theEventsCount; ++i)
+			rv.offer(i, i * 10L, TraceEvent.Exit, i % 7, Integer.toString(i), null, thePolicy);
+
+		return rv;
+	}
+}
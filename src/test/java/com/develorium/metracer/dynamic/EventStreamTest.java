@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import java.io.*;
+import org.junit.Assert;
+import org.junit.Test;
+import com.develorium.metracer.*;
+
+public class EventStreamTest {
+	@Test(timeout = 10000)
+	public void testStreaming() throws Exception {
+		BlockDecompressor decompressor = stream(false).getDecompressor();
+		Assert.assertEquals(decompressor.getRawBytesCount(), decompressor.getReceivedBytesCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testCompressedStreaming() throws Exception {
+		BlockDecompressor decompressor = stream(true).getDecompressor();
+		Assert.assertTrue(decompressor.getRawBytesCount() > 2 * decompressor.getReceivedBytesCount());
+	}
+
+	private static EventStreamReader stream(boolean theIsCompressed) throws Exception {
+		EventStream stream = new EventStream(theIsCompressed);
+		Assert.assertFalse(stream.append(JournalTest.note("before a client")));
+		final EventStreamReader reader = new EventStreamReader(stream.getPort(), stream.getToken());
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final PrintStream printStream = new PrintStream(output, true, "UTF-8");
+		// writes block once socket buffers are full, hence a concurrent reader
+		Thread readerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(reader.read(printStream) >= 0)
+						;
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		readerThread.start();
+
+		while(!stream.getIsConnected())
+			Thread.sleep(10);
+
+		StringBuilder expected = new StringBuilder();
+		StringBuilder huge = new StringBuilder();
+
+		for(int i = 0; i < EventStream.MaxPayloadSize; ++i)
+			huge.append('x');
+
+		// more than a single frame
+		for(int i = 0; i < 20000; ++i) {
+			TraceEvent event = EventEncoderTest.createEvent(TraceEvent.Entry, i % 10, i % 100, String.format("i = %d", i));
+			Assert.assertTrue(stream.append(event));
+			expected.append(String.format("%s%n", event.render()));
+		}
+
+		Assert.assertTrue(stream.append(JournalTest.note(huge.toString())));
+		stream.flush();
+		stream.close();
+		Assert.assertFalse(stream.append(JournalTest.note("after a close")));
+		readerThread.join();
+		reader.close();
+		Assert.assertEquals(20001, reader.getReadCount());
+		String text = JournalTest.stripTimestamps(output.toString("UTF-8"));
+		String[] lines = text.split(String.format("%n"));
+		Assert.assertEquals(expected.toString(), text.substring(0, expected.length()));
+		Assert.assertTrue(lines[20000].length() > 0 && lines[20000].length() < EventStream.MaxPayloadSize);
+		return reader;
+	}
+
+	@Test(timeout = 10000)
+	public void testWrongToken() throws Exception {
+		EventStream stream = new EventStream(false);
+		EventStreamReader reader = new EventStreamReader(stream.getPort(), stream.getToken() + 1);
+		Assert.assertEquals(-1, reader.read(new PrintStream(new ByteArrayOutputStream())));
+		Assert.assertFalse(stream.append(JournalTest.note("message")));
+		reader.close();
+		stream.close();
+	}
+}
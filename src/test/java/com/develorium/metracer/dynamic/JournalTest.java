@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.develorium.metracer.dynamic;
+
+import java.io.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.develorium.metracer.*;
+
+public class JournalTest {
+	private File directory = null;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("metracer-journal-test", "");
+		directory.delete();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+
+		for(int i = 0; files != null && i < files.length; ++i)
+			files[i].delete();
+
+		directory.delete();
+	}
+
+	@Test
+	public void testFollowing() {
+		Journal journal = new Journal(directory, 4096, Journal.MaxSegmentsCount);
+		JournalReader reader = new JournalReader(directory);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Assert.assertEquals(0, reader.read(toStream(output)));
+
+		Assert.assertTrue(journal.append(note("first")));
+		Assert.assertTrue(journal.append(note("\u0432\u0442\u043e\u0440\u043e\u0439")));
+		Assert.assertEquals(2, reader.read(toStream(output)));
+		Assert.assertEquals(0, reader.read(toStream(output)));
+		Assert.assertFalse(reader.getIsClosed());
+
+		journal.close();
+		Assert.assertFalse(journal.append(note("third")));
+		Assert.assertEquals(0, reader.read(toStream(output)));
+		Assert.assertTrue(reader.getIsClosed());
+		Assert.assertEquals(String.format("first%n\u0432\u0442\u043e\u0440\u043e\u0439%n"), stripTimestamps(decode(output)));
+	}
+
+	@Test
+	public void testSegments() {
+		Journal journal = new Journal(directory, 256, Integer.MAX_VALUE);
+		StringBuilder expected = new StringBuilder();
+
+		for(int i = 0; i < 100; ++i) {
+			TraceEvent event = EventEncoderTest.createEvent(i % 2 == 0 ? TraceEvent.Entry : TraceEvent.Exit, i % 3, i / 2, String.format(" => return: %d", i));
+			Assert.assertTrue(journal.append(event));
+			expected.append(String.format("%s%n", event.render()));
+		}
+
+		journal.close();
+		Assert.assertTrue(directory.listFiles().length > 1);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		JournalReader reader = new JournalReader(directory);
+		Assert.assertEquals(100, reader.read(toStream(output)));
+		Assert.assertTrue(reader.getIsClosed());
+		// definitions are repeated in each segment
+		Assert.assertEquals(expected.toString(), stripTimestamps(decode(output)));
+	}
+
+	@Test
+	public void testHugeMessage() {
+		Journal journal = new Journal(directory, 256, Journal.MaxSegmentsCount);
+		StringBuilder message = new StringBuilder();
+
+		for(int i = 0; i < 1000; ++i)
+			message.append('x');
+
+		Assert.assertTrue(journal.append(note(message.toString())));
+		Assert.assertTrue(journal.append(note("next")));
+		journal.close();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Assert.assertEquals(2, new JournalReader(directory).read(toStream(output)));
+		String[] lines = stripTimestamps(decode(output)).split(String.format("%n"));
+		Assert.assertTrue(lines[0].length() > 0 && lines[0].length() < 256);
+		Assert.assertEquals("next", lines[1]);
+	}
+
+	@Test
+	public void testRotation() {
+		Journal journal = new Journal(directory, 256, 3);
+		JournalReader reader = new JournalReader(directory);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Assert.assertTrue(journal.append(note("first")));
+		Assert.assertEquals(1, reader.read(toStream(output)));
+
+		for(int i = 0; i < 100; ++i)
+			Assert.assertTrue(journal.append(note(String.format("event %d", i))));
+
+		Assert.assertEquals(3, directory.listFiles().length);
+		Assert.assertTrue(journal.append(note("last")));
+		journal.close();
+
+		// a reader finishes a segment it has mapped and goes on with an oldest one left, a new one starts with it
+		Assert.assertTrue(reader.read(toStream(output)) > 0);
+		Assert.assertTrue(reader.getIsClosed());
+		Assert.assertTrue(reader.getSkippedSegmentsCount() > 0);
+		String[] lines = stripTimestamps(decode(output)).split(String.format("%n"));
+		Assert.assertEquals("first", lines[0]);
+		Assert.assertEquals("last", lines[lines.length - 1]);
+
+		ByteArrayOutputStream newOutput = new ByteArrayOutputStream();
+		JournalReader newReader = new JournalReader(directory);
+		Assert.assertTrue(newReader.read(toStream(newOutput)) < reader.getReadCount());
+		Assert.assertEquals(0, newReader.getSkippedSegmentsCount());
+		Assert.assertTrue(stripTimestamps(decode(output)).endsWith(stripTimestamps(decode(newOutput))));
+	}
+
+	@Test
+	public void testExistingDirectory() {
+		Assert.assertTrue(directory.mkdir());
+
+		try {
+			new Journal(directory, 256, Journal.MaxSegmentsCount);
+			Assert.fail("Journal must not reuse an existing directory");
+		} catch(RuntimeException e) {
+			Assert.assertTrue(e.getMessage().contains("exists already"));
+		}
+
+		Assert.assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testPartialHeader() throws IOException {
+		Assert.assertTrue(directory.mkdir());
+		RandomAccessFile raf = new RandomAccessFile(new File(directory, Journal.getSegmentFileName(0)), "rw");
+
+		try {
+			raf.setLength(256);
+			raf.writeInt(Journal.Magic);
+			JournalReader reader = new JournalReader(directory);
+			Assert.assertEquals(0, reader.read(toStream(new ByteArrayOutputStream())));
+			Assert.assertFalse(reader.getIsClosed());
+
+			raf.writeInt(Journal.Version);
+			raf.writeInt(0);
+			raf.writeInt(Journal.EndOfJournal);
+			Assert.assertEquals(0, reader.read(toStream(new ByteArrayOutputStream())));
+			Assert.assertTrue(reader.getIsClosed());
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testNotJournal() {
+		new JournalReader(directory);
+	}
+
+	static TraceEvent note(String theText) {
+		TraceEvent rv = new TraceEvent();
+		rv.kind = TraceEvent.Note;
+		rv.time = System.currentTimeMillis() * 1000000L;
+		rv.details = theText;
+		return rv;
+	}
+
+	// "yyyy.MM.dd hh:mm:ss.SSS " in front of each line
+	static String stripTimestamps(String theText) {
+		return theText.replaceAll("(?m)^\\d{4}\\.\\d{2}\\.\\d{2} \\d{2}:\\d{2}:\\d{2}\\.\\d{3} ", "");
+	}
+
+	private static PrintStream toStream(ByteArrayOutputStream theOutput) {
+		try {
+			return new PrintStream(theOutput, true, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decode(ByteArrayOutputStream theOutput) {
+		try {
+			return theOutput.toString("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CallCountersTest {
+	@Test
+	public void testIncrement() {
+		CallCounters.reset();
+		CallCounters.increment(1);
+		CallCounters.increment(1);
+		CallCounters.increment(5000); // another chunk
+		Assert.assertEquals(2, CallCounters.get(1));
+		Assert.assertEquals(1, CallCounters.get(5000));
+		Assert.assertEquals(0, CallCounters.get(2));
+		CallCounters.reset();
+		Assert.assertEquals(0, CallCounters.get(1));
+	}
+
+	@Test
+	public void testOutOfRangeIds() {
+		CallCounters.increment(-1);
+		CallCounters.increment(Integer.MAX_VALUE);
+		Assert.assertEquals(0, CallCounters.get(-1));
+		Assert.assertEquals(0, CallCounters.get(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testConcurrentIncrements() throws InterruptedException {
+		CallCounters.reset();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for(int i = 0; i < 8; ++i) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 100000; ++j)
+						CallCounters.increment(7);
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		for(Thread thread : threads)
+			thread.join();
+
+		Assert.assertEquals(800000, CallCounters.get(7));
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.util.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void testIndices() {
+		for(long value = 0; value < 100000; ++value) {
+			int index = LatencyHistogram.getIndex(value);
+			Assert.assertTrue(value <= LatencyHistogram.getHighestEquivalentValue(index));
+
+			if(index > 0)
+				Assert.assertTrue(value > LatencyHistogram.getHighestEquivalentValue(index - 1));
+		}
+
+		Assert.assertEquals(LatencyHistogram.BucketsCount - 1, LatencyHistogram.getIndex(LatencyHistogram.MaxValue));
+		Assert.assertEquals(LatencyHistogram.MaxValue, LatencyHistogram.getHighestEquivalentValue(LatencyHistogram.BucketsCount - 1));
+	}
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+		Assert.assertEquals(0, snapshot.getCount());
+		Assert.assertEquals(0, snapshot.getMin());
+		Assert.assertEquals(0, snapshot.getMax());
+		Assert.assertEquals(0, snapshot.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void testStatistics() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for(long value = 1; value <= 1000; ++value)
+			histogram.record(value * 1000);
+
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		Assert.assertEquals(1000, snapshot.getCount());
+		Assert.assertEquals(1000, snapshot.getMin());
+		Assert.assertEquals(1000000, snapshot.getMax());
+		Assert.assertEquals(500500.0, snapshot.getMean(), 0.001);
+		assertClose(500000, snapshot.getValueAtPercentile(50));
+		assertClose(900000, snapshot.getValueAtPercentile(90));
+		assertClose(990000, snapshot.getValueAtPercentile(99));
+		Assert.assertEquals(1000000, snapshot.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testOutOfRangeValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		Assert.assertEquals(2, snapshot.getCount());
+		Assert.assertEquals(0, snapshot.getMin());
+		Assert.assertEquals(LatencyHistogram.MaxValue, snapshot.getMax());
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(42);
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getSnapshot().getCount());
+		histogram.record(7);
+		Assert.assertEquals(7, histogram.getSnapshot().getMin());
+		Assert.assertEquals(7, histogram.getSnapshot().getMax());
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for(int i = 0; i < 8; ++i) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < 10000; ++j)
+						histogram.record(j);
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		for(Thread thread : threads)
+			thread.join();
+
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		Assert.assertEquals(80000, snapshot.getCount());
+		Assert.assertEquals(9999, snapshot.getMax());
+		Assert.assertEquals(4999.5, snapshot.getMean(), 0.001);
+	}
+
+	// percentile is reported with a relative error of at most 1 / 16
+	private static void assertClose(long theExpected, long theActual) {
+		Assert.assertTrue(String.format("%d is not close to %d", theActual, theExpected), Math.abs(theActual - theExpected) <= theExpected / 16);
+	}
+}
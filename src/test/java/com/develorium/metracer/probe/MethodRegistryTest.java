@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MethodRegistryTest {
+	@Test
+	public void testRegister() {
+		String[] argumentNames = { "theFirst", "theSecond" };
+		int id = MethodRegistry.register(null, "com.test.Registered", "method", "(IJ)V", argumentNames, true);
+		MethodRegistry.Method method = MethodRegistry.get(id);
+		Assert.assertNotNull(method);
+		Assert.assertEquals(id, method.getId());
+		Assert.assertEquals("com.test.Registered", method.getClassName());
+		Assert.assertEquals("method", method.getMethodName());
+		Assert.assertEquals("(IJ)V", method.getMethodDescription());
+		Assert.assertArrayEquals(argumentNames, method.getArgumentNames());
+		Assert.assertTrue(method.getIsWithStackTraces());
+		Assert.assertTrue(MethodRegistry.isEnabled(id));
+	}
+
+	@Test
+	public void testReregisterGivesSameId() {
+		int id = MethodRegistry.register(null, "com.test.Reregistered", "method", "()V", null, false);
+		Assert.assertEquals(id, MethodRegistry.register(null, "com.test.Reregistered", "method", "()V", null, true));
+		Assert.assertTrue(MethodRegistry.get(id).getIsWithStackTraces());
+		Assert.assertTrue(id != MethodRegistry.register(null, "com.test.Reregistered", "method", "(I)V", null, false));
+		Assert.assertTrue(id != MethodRegistry.register(null, "com.test.Reregistered", "other", "()V", null, false));
+	}
+
+	@Test
+	public void testSameMethodInDifferentClassLoaders() {
+		ClassLoader loader = new ClassLoader(null) {
+		};
+		int id = MethodRegistry.register(null, "com.test.Loaded", "method", "()V", null, false);
+		int otherId = MethodRegistry.register(loader, "com.test.Loaded", "method", "()V", null, false);
+		Assert.assertTrue(id != otherId);
+		Assert.assertEquals(otherId, MethodRegistry.register(loader, "com.test.Loaded", "method", "()V", null, false));
+	}
+
+	@Test
+	public void testManyMethods() {
+		int firstId = MethodRegistry.register(null, "com.test.Many", "method0", "()V", null, false);
+
+		for(int i = 1; i < 5000; ++i) {
+			int id = MethodRegistry.register(null, "com.test.Many", "method" + i, "()V", null, false);
+			Assert.assertEquals(firstId + i, id);
+		}
+
+		for(int i = 0; i < 5000; ++i)
+			Assert.assertEquals("method" + i, MethodRegistry.get(firstId + i).getMethodName());
+	}
+
+	@Test
+	public void testUnknownId() {
+		Assert.assertNull(MethodRegistry.get(-1));
+		Assert.assertNull(MethodRegistry.get(MethodRegistry.getCount()));
+		Assert.assertFalse(MethodRegistry.isEnabled(-1));
+	}
+
+	@Test
+	public void testMethodClassIsResolved() {
+		int id = MethodRegistry.register(MethodRegistryTest.class.getClassLoader(), MethodRegistryTest.class.getName(), "testMethodClassIsResolved", "()V", null, false);
+		Assert.assertEquals(MethodRegistryTest.class, MethodRegistry.get(id).getMethodClass());
+		id = MethodRegistry.register(null, "com.test.Missing", "method", "()V", null, false);
+		Assert.assertNull(MethodRegistry.get(id).getMethodClass());
+	}
+
+	@Test
+	public void testEnableMethods() {
+		int id = MethodRegistry.register(null, "com.test.Enabled", "method", "()V", null, false);
+		int otherId = MethodRegistry.register(null, "com.test.Enabled", "other", "()V", null, false);
+		MethodRegistry.enableMethods(new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return theMethodName.equals("method");
+			}
+		});
+		Assert.assertTrue(MethodRegistry.isEnabled(id));
+		Assert.assertFalse(MethodRegistry.isEnabled(otherId));
+		Assert.assertEquals(0, MethodRegistry.enableMethods(null));
+		Assert.assertFalse(MethodRegistry.isEnabled(id));
+		MethodRegistry.register(null, "com.test.Enabled", "method", "()V", null, false);
+		Assert.assertTrue(MethodRegistry.isEnabled(id));
+	}
+
+	@Test
+	public void testParseArgumentSorts() {
+		Assert.assertEquals("", new String(MethodRegistry.parseArgumentSorts("()V")));
+		Assert.assertEquals("ZBCSIJFD", new String(MethodRegistry.parseArgumentSorts("(ZBCSIJFD)V")));
+		Assert.assertEquals("LIL", new String(MethodRegistry.parseArgumentSorts("(Ljava/lang/String;I[J)Ljava/lang/Object;")));
+		Assert.assertEquals("LLJ", new String(MethodRegistry.parseArgumentSorts("([[Ljava/lang/String;[[[DJ)V")));
+	}
+
+	@Test
+	public void testParseReturnSort() {
+		Assert.assertEquals('V', MethodRegistry.parseReturnSort("()V"));
+		Assert.assertEquals('C', MethodRegistry.parseReturnSort("(Ljava/lang/String;)C"));
+		Assert.assertEquals('L', MethodRegistry.parseReturnSort("(I)Ljava/lang/Object;"));
+		Assert.assertEquals('L', MethodRegistry.parseReturnSort("()[J"));
+	}
+
+	@Test
+	public void testSetTracingMode() {
+		int id = MethodRegistry.register(null, "com.test.Mode", "method", "()V", null, false);
+		Assert.assertEquals(TracingMode.TRACE, MethodRegistry.get(id).getTracingMode());
+		Assert.assertNull(MethodRegistry.get(id).getHistogram());
+		MethodRegistry.MethodSelector selector = new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return theClassName.startsWith("com.test.Mode");
+			}
+		};
+		Assert.assertEquals(1, MethodRegistry.setTracingMode(selector, TracingMode.TIMING));
+		Assert.assertEquals(0, MethodRegistry.setTracingMode(selector, TracingMode.TIMING));
+		Assert.assertEquals(TracingMode.TIMING, MethodRegistry.get(id).getTracingMode());
+
+		// re-registered method retains its mode, a new one gets a default mode
+		MethodRegistry.register(null, "com.test.Mode", "method", "()V", null, false);
+		Assert.assertEquals(TracingMode.TIMING, MethodRegistry.get(id).getTracingMode());
+		MethodRegistry.setDefaultTracingMode(TracingMode.OFF);
+
+		try {
+			int otherId = MethodRegistry.register(null, "com.test.ModeOther", "method", "()V", null, false);
+			Assert.assertEquals(TracingMode.OFF, MethodRegistry.get(otherId).getTracingMode());
+		} finally {
+			MethodRegistry.setDefaultTracingMode(TracingMode.TRACE);
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2015-2016 Michael Kocherov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.develorium.metracer.probe;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProbeTest {
+	@After
+	public void resetHandler() {
+		Probe.setHandler(null);
+	}
+
+	@Test
+	public void testNoHandler() {
+		Probe.setHandler(null);
+		int methodId = MethodRegistry.register(null, ProbeTest.class.getName(), "testNoHandler", "()V", null, false);
+		Probe.traceEntry(methodId, null);
+		Probe.traceExit(methodId);
+	}
+
+	@Test
+	public void testHandlerFailureIsSuppressed() {
+		Probe.setHandler(new Probe.Handler() {
+			public void traceEntry(int theMethodId, Object[] theArgumentValues) {
+				throw new RuntimeException("entry");
+			}
+			public void traceVoidExit(int theMethodId) {
+				throw new RuntimeException("exit");
+			}
+			public void tracePrimitiveExit(int theMethodId, long theReturnValue) {
+				throw new RuntimeException("exit");
+			}
+			public void traceReferenceExit(int theMethodId, Object theReturnValue) {
+				throw new RuntimeException("exit");
+			}
+			public void traceExceptionExit(int theMethodId, Throwable theException) {
+				throw new RuntimeException("exit");
+			}
+		});
+		int methodId = MethodRegistry.register(null, ProbeTest.class.getName(), "testHandlerFailureIsSuppressed", "()V", null, false);
+		Probe.traceEntry(methodId, null);
+		Probe.traceExit(methodId);
+		Probe.traceExit(methodId, 42);
+		Probe.traceExit(methodId, "42");
+		Probe.traceExceptionExit(methodId, new RuntimeException());
+	}
+
+	@Test
+	public void testNoArgumentSlotsForDisabledMethod() {
+		int methodId = MethodRegistry.register(null, "com.test.NoSlots", "method", "(I)V", null, false);
+		Assert.assertNull(Probe.getArgumentSlots(methodId, 1));
+		Probe.setHandler(new RecordingHandler());
+		Assert.assertNotNull(Probe.getArgumentSlots(methodId, 1));
+		Probe.traceEntry(methodId, null);
+	}
+
+	@Test
+	public void testArgumentSlotsAreReused() {
+		Probe.setHandler(new RecordingHandler());
+		int methodId = MethodRegistry.register(null, "com.test.Slots", "method", "(JLjava/lang/String;)V", null, false);
+		Object[] slots = Probe.getArgumentSlots(methodId, 2);
+		Assert.assertTrue(slots.length >= 3);
+		Probe.getPrimitiveSlots(slots)[0] = 42;
+		slots[2] = "hello";
+		Probe.traceEntry(methodId, slots);
+		Assert.assertNull(slots[2]);
+		Assert.assertSame(slots, Probe.getArgumentSlots(methodId, 2));
+		Probe.traceEntry(methodId, slots);
+	}
+
+	@Test
+	public void testArgumentSlotsOnReentry() {
+		final int methodId = MethodRegistry.register(null, "com.test.Reentered", "method", "(Ljava/lang/Object;)V", null, false);
+		final List<Object> values = new ArrayList<Object>();
+		Probe.setHandler(new RecordingHandler() {
+			public void traceEntry(int theMethodId, Object[] theArgumentSlots) {
+				if(values.isEmpty()) {
+					// e.g. an instrumented toString of an argument is called while tracing
+					Object[] nestedSlots = Probe.getArgumentSlots(methodId, 1);
+					Assert.assertNotSame(theArgumentSlots, nestedSlots);
+					nestedSlots[1] = "nested";
+					values.add(theArgumentSlots[1]);
+					Probe.traceEntry(methodId, nestedSlots);
+				} 
+
+				values.add(theArgumentSlots[1]);
+			}
+		});
+		Object[] slots = Probe.getArgumentSlots(methodId, 1);
+		slots[1] = "outer";
+		Probe.traceEntry(methodId, slots);
+		Assert.assertEquals(Arrays.asList("outer", "nested", "outer"), values);
+	}
+
+	@Test
+	public void testProbeIsVisibleFromAgentClassLoader() {
+		Assert.assertTrue(ProbePublisher.isProbeVisible(ProbeTest.class.getClassLoader()));
+	}
+
+	@Test
+	public void testProbeIsNotVisibleFromIsolatedClassLoader() {
+		ClassLoader isolated = new ClassLoader(null) {
+		};
+		Assert.assertFalse(ProbePublisher.isProbeVisible(isolated));
+	}
+
+	@Test
+	public void testAllProbeClassesArePublished() throws Exception {
+		File probePackage = new File(Probe.class.getResource("Probe.class").toURI()).getParentFile();
+		Set<String> publishedClassNames = new HashSet<String>(Arrays.asList(ProbePublisher.PublishedClassNames));
+
+		for(String fileName : probePackage.list()) {
+			if(!fileName.endsWith(".class") || fileName.startsWith("ProbePublisher"))
+				continue;
+
+			String className = Probe.class.getPackage().getName() + "." + fileName.replace(".class", "");
+			Assert.assertTrue(className + " is not published", publishedClassNames.contains(className));
+		}
+	}
+
+	static class RecordingHandler extends Probe.Handler {
+		List<String> events = new ArrayList<String>();
+
+		public void traceEntry(int theMethodId, Object[] theArgumentValues) {
+			events.add("+" + theMethodId);
+		}
+
+		public void traceVoidExit(int theMethodId) {
+			events.add("-" + theMethodId);
+		}
+
+		public void tracePrimitiveExit(int theMethodId, long theReturnValue) {
+			events.add("-" + theMethodId + "=" + theReturnValue);
+		}
+
+		public void traceReferenceExit(int theMethodId, Object theReturnValue) {
+			events.add("-" + theMethodId + "=" + theReturnValue);
+		}
+
+		public void traceExceptionExit(int theMethodId, Throwable theException) {
+			events.add("-" + theMethodId + "!" + theException.getMessage());
+		}
+	}
+
+	@Test
+	public void testTypedExits() {
+		RecordingHandler handler = new RecordingHandler();
+		Probe.setHandler(handler);
+		int methodId = MethodRegistry.register(null, "com.test.Exits", "method", "()V", null, false);
+		Probe.traceExit(methodId);
+		Probe.traceExit(methodId, -1);
+		Probe.traceExit(methodId, true);
+		Probe.traceExit(methodId, Long.MAX_VALUE);
+		Probe.traceExit(methodId, 1.5f);
+		Probe.traceExit(methodId, 2.5);
+		Probe.traceExit(methodId, "hello");
+		Probe.traceExceptionExit(methodId, new RuntimeException("failure"));
+		String prefix = "-" + methodId;
+		Assert.assertEquals(Arrays.asList(
+				prefix, 
+				prefix + "=-1", 
+				prefix + "=1", 
+				prefix + "=" + Long.MAX_VALUE,
+				prefix + "=" + Float.floatToRawIntBits(1.5f),
+				prefix + "=" + Double.doubleToRawLongBits(2.5),
+				prefix + "=hello",
+				prefix + "!failure"), 
+			handler.events);
+	}
+
+	@Test
+	public void testDisabledMethodIsNotTraced() {
+		RecordingHandler handler = new RecordingHandler();
+		Probe.setHandler(handler);
+		final int methodId = MethodRegistry.register(null, "com.test.Disabled", "disabled", "()V", null, false);
+		Probe.traceEntry(methodId, null);
+		Assert.assertEquals(Arrays.asList("+" + methodId), handler.events);
+
+		MethodRegistry.enableMethods(new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return !theClassName.equals("com.test.Disabled");
+			}
+		});
+		Probe.traceExit(methodId);
+		Assert.assertEquals(Arrays.asList("+" + methodId), handler.events);
+
+		MethodRegistry.register(null, "com.test.Disabled", "disabled", "()V", null, false);
+		Probe.traceExit(methodId);
+		Assert.assertEquals(Arrays.asList("+" + methodId, "-" + methodId), handler.events);
+	}
+
+	@Test
+	public void testIndyProbeIsRelinked() throws Throwable {
+		RecordingHandler handler = new RecordingHandler();
+		Probe.setHandler(handler);
+		int methodId = MethodRegistry.register(null, "com.test.Relinked", "relinked", "()V", null, false);
+		MethodType type = MethodType.methodType(void.class, int.class, long.class);
+		CallSite callSite = IndyProbe.bootstrap(MethodHandles.lookup(), "traceExit", type, methodId);
+		MethodHandle invoker = callSite.dynamicInvoker();
+		invoker.invokeWithArguments(methodId, 42L);
+		Assert.assertEquals(1, handler.events.size());
+
+		MethodRegistry.MethodSelector selector = new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return theClassName.equals("com.test.Relinked");
+			}
+		};
+		Assert.assertEquals(1, IndyProbe.setTracingMode(selector, TracingMode.OFF));
+		invoker.invokeWithArguments(methodId, 42L);
+		Assert.assertEquals(1, handler.events.size());
+
+		Assert.assertEquals(1, IndyProbe.setTracingMode(selector, TracingMode.TRACE));
+		invoker.invokeWithArguments(methodId, 42L);
+		Assert.assertEquals(2, handler.events.size());
+	}
+
+	@Test
+	public void testIndyProbeLetsCallSitesGo() throws Throwable {
+		int methodId = MethodRegistry.register(null, "com.test.Collected", "collected", "()V", null, false);
+		IndyProbe.bootstrap(MethodHandles.lookup(), "traceExit", MethodType.methodType(void.class, int.class), methodId);
+		Assert.assertTrue(IndyProbe.isLinked(methodId));
+
+		// a call site is referenced by nothing but a linked method
+		for(int i = 0; i < 100 && IndyProbe.isLinked(methodId); ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		Assert.assertFalse(IndyProbe.isLinked(methodId));
+
+		CallSite callSite = IndyProbe.bootstrap(MethodHandles.lookup(), "traceExit", MethodType.methodType(void.class, int.class), methodId);
+		IndyProbe.unlinkMethods();
+		Assert.assertFalse(IndyProbe.isLinked(methodId));
+		Assert.assertNotNull(callSite);
+	}
+
+	@Test
+	public void testIndyProbeIsLinkedInRegisteredMode() throws Throwable {
+		RecordingHandler handler = new RecordingHandler();
+		Probe.setHandler(handler);
+		int methodId = MethodRegistry.register(null, "com.test.Off", "off", "()V", null, false);
+		MethodRegistry.MethodSelector selector = new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return theClassName.equals("com.test.Off");
+			}
+		};
+		MethodRegistry.setTracingMode(selector, TracingMode.OFF);
+		CallSite callSite = IndyProbe.bootstrap(MethodHandles.lookup(), "traceExit", MethodType.methodType(void.class, int.class), methodId);
+		callSite.dynamicInvoker().invokeWithArguments(methodId);
+		Assert.assertTrue(handler.events.isEmpty());
+		MethodRegistry.setTracingMode(selector, TracingMode.TRACE);
+		IndyProbe.setTracingMode(selector, TracingMode.TRACE);
+		callSite.dynamicInvoker().invokeWithArguments(methodId);
+		Assert.assertEquals(1, handler.events.size());
+	}
+
+	@Test
+	public void testTimedMethod() throws InterruptedException {
+		RecordingHandler handler = new RecordingHandler();
+		Probe.setHandler(handler);
+		int methodId = MethodRegistry.register(null, "com.test.Timed", "timed", "(I)I", null, false);
+		MethodRegistry.MethodSelector selector = new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return theClassName.equals("com.test.Timed");
+			}
+		};
+		Assert.assertEquals(1, MethodRegistry.setTracingMode(selector, TracingMode.TIMING));
+		Assert.assertNull(Probe.getArgumentSlots(methodId, 1));
+
+		for(int i = 0; i < 2; ++i) {
+			Probe.traceEntry(methodId, null);
+			Probe.traceEntry(methodId, null); // recursion
+			Thread.sleep(1);
+			Probe.traceExit(methodId, 42);
+			Probe.traceExceptionExit(methodId, new RuntimeException());
+		}
+
+		Probe.traceExit(methodId, 42); // no matching entry
+		Assert.assertTrue(handler.events.isEmpty());
+		LatencyHistogram.Snapshot snapshot = MethodRegistry.get(methodId).getHistogram().getSnapshot();
+		Assert.assertEquals(4, snapshot.getCount());
+		Assert.assertTrue(snapshot.getMin() >= 1000000);
+
+		MethodRegistry.setTracingMode(selector, TracingMode.TRACE);
+		Probe.traceEntry(methodId, null);
+		Assert.assertEquals(Arrays.asList("+" + methodId), handler.events);
+		Assert.assertEquals(4, MethodRegistry.get(methodId).getHistogram().getSnapshot().getCount());
+	}
+
+	@Test
+	public void testCountedMethod() throws Throwable {
+		RecordingHandler handler = new RecordingHandler();
+		Probe.setHandler(handler);
+		int methodId = MethodRegistry.register(null, "com.test.Counted", "counted", "(I)V", null, false);
+		MethodRegistry.MethodSelector selector = new MethodRegistry.MethodSelector() {
+			public boolean isSelected(String theClassName, String theMethodName) {
+				return theClassName.equals("com.test.Counted");
+			}
+		};
+		MethodRegistry.setTracingMode(selector, TracingMode.COUNT);
+		Assert.assertNull(Probe.getArgumentSlots(methodId, 1));
+		long count = CallCounters.get(methodId);
+		Probe.traceEntry(methodId, null);
+		Probe.traceExit(methodId);
+		Probe.traceEntry(methodId, null);
+		Probe.traceExceptionExit(methodId, new RuntimeException());
+		Assert.assertEquals(count + 2, CallCounters.get(methodId));
+		Assert.assertTrue(handler.events.isEmpty());
+
+		// exit probes linked via invokedynamic are no-ops
+		IndyProbe.setTracingMode(selector, TracingMode.COUNT);
+		CallSite entry = IndyProbe.bootstrap(MethodHandles.lookup(), "traceEntry", MethodType.methodType(void.class, int.class, Object[].class), methodId);
+		CallSite exit = IndyProbe.bootstrap(MethodHandles.lookup(), "traceExit", MethodType.methodType(void.class, int.class), methodId);
+		entry.dynamicInvoker().invokeWithArguments(methodId, null);
+		exit.dynamicInvoker().invokeWithArguments(methodId);
+		Assert.assertEquals(count + 3, CallCounters.get(methodId));
+		MethodRegistry.setTracingMode(selector, TracingMode.TRACE);
+		IndyProbe.setTracingMode(selector, TracingMode.TRACE);
+	}
+}